@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.common;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.FastInputStream;
+import org.apache.solr.common.util.FastOutputStream;
+import org.apache.solr.common.util.JavaBinCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A document captured as its javabin encoding, so that the producer can keep it for mirroring without a deep copy
+ * while the update chain goes on modifying the original. The serializer writes the captured bytes as they are, and
+ * the consumer reads them back as a regular document.
+ * <p>
+ * The document is read-only: its accessors decode the captured bytes on first use, e.g. for a
+ * {@code RequestMirroringHandler} looking at the documents it mirrors, and its mutators throw
+ * {@link UnsupportedOperationException}, since a change would not be mirrored.
+ */
+public final class CapturedSolrInputDocument extends SolrInputDocument {
+
+    // Buffers grown larger are not kept, so that a single large document does not pin memory in each indexing thread.
+    private static final int MAX_POOLED_BUFFER_SIZE = 1 << 20;
+
+    // Output buffer reused by the captures of each thread, see capture().
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(1024));
+
+    private final byte[] bytes;
+
+    // The captured document decoded on first access, see decoded().
+    private volatile SolrInputDocument decoded;
+
+    private CapturedSolrInputDocument(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Captures the document as it is now, without the given top level field.
+     *
+     * @param doc        the document to capture
+     * @param skipField  the name of a top level field to leave out, e.g. the internal version, or null
+     * @return the captured document
+     */
+    public static CapturedSolrInputDocument capture(SolrInputDocument doc, String skipField) throws IOException {
+        ByteArrayOutputStream baos = BUFFER.get();
+        baos.reset();
+        try {
+            new CaptureCodec(baos).write(doc, skipField);
+            return new CapturedSolrInputDocument(baos.toByteArray());
+        } finally {
+            if (baos.size() > MAX_POOLED_BUFFER_SIZE) {
+                BUFFER.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the document once serialized, in bytes.
+     */
+    public int getSizeInBytes() {
+        return bytes.length;
+    }
+
+    void writeTo(FastOutputStream os) throws IOException {
+        os.write(bytes);
+    }
+
+    /**
+     * Copies the bytes of the document to the array at the given offset, and returns the offset after them.
+     */
+    int copyTo(byte[] dest, int offset) {
+        System.arraycopy(bytes, 0, dest, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    /**
+     * Returns the captured document, decoded once.
+     */
+    private SolrInputDocument decoded() {
+        SolrInputDocument doc = decoded;
+        if (doc == null) {
+            try {
+                doc = new DecodeCodec().read(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not decode the captured document", e);
+            }
+            decoded = doc;
+        }
+        return doc;
+    }
+
+    @Override
+    public Object getFieldValue(String name) {
+        return decoded().getFieldValue(name);
+    }
+
+    @Override
+    public Collection<Object> getFieldValues(String name) {
+        return decoded().getFieldValues(name);
+    }
+
+    @Override
+    public Collection<String> getFieldNames() {
+        return Collections.unmodifiableCollection(decoded().getFieldNames());
+    }
+
+    @Override
+    public SolrInputField getField(String field) {
+        return decoded().getField(field);
+    }
+
+    @Override
+    public Iterator<SolrInputField> iterator() {
+        return Collections.unmodifiableCollection(decoded().values()).iterator();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return decoded().containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return decoded().containsValue(value);
+    }
+
+    @Override
+    public SolrInputField get(Object key) {
+        return decoded().get(key);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return decoded().isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return decoded().size();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(decoded().keySet());
+    }
+
+    @Override
+    public Collection<SolrInputField> values() {
+        return Collections.unmodifiableCollection(decoded().values());
+    }
+
+    @Override
+    public Set<Entry<String, SolrInputField>> entrySet() {
+        return Collections.unmodifiableSet(decoded().entrySet());
+    }
+
+    @Override
+    public List<SolrInputDocument> getChildDocuments() {
+        List<SolrInputDocument> children = decoded().getChildDocuments();
+        return children == null ? null : Collections.unmodifiableList(children);
+    }
+
+    @Override
+    public boolean hasChildDocuments() {
+        return decoded().hasChildDocuments();
+    }
+
+    @Override
+    public int getChildDocumentCount() {
+        return decoded().getChildDocumentCount();
+    }
+
+    @Override
+    public void writeMap(EntryWriter ew) throws IOException {
+        decoded().writeMap(ew);
+    }
+
+    /**
+     * Returns a regular, modifiable copy of the captured document.
+     */
+    @Override
+    public SolrInputDocument deepCopy() {
+        return decoded().deepCopy();
+    }
+
+    @Override
+    public void addField(String name, Object value) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setField(String name, Object value) {
+        throw readOnly();
+    }
+
+    @Override
+    public SolrInputField removeField(String name) {
+        throw readOnly();
+    }
+
+    @Override
+    public SolrInputField put(String key, SolrInputField value) {
+        throw readOnly();
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends SolrInputField> t) {
+        throw readOnly();
+    }
+
+    @Override
+    public SolrInputField remove(Object key) {
+        throw readOnly();
+    }
+
+    @Override
+    public void clear() {
+        throw readOnly();
+    }
+
+    @Override
+    public void addChildDocument(SolrInputDocument child) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addChildDocuments(Collection<SolrInputDocument> children) {
+        throw readOnly();
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("A captured document is read-only, changes would not be mirrored");
+    }
+
+    @Override
+    public String toString() {
+        return "CapturedSolrInputDocument{" + bytes.length + " bytes, " + decoded() + "}";
+    }
+
+    private static final class DecodeCodec extends JavaBinCodec {
+
+        SolrInputDocument read(byte[] bytes) throws IOException {
+            // no version byte, see CaptureCodec
+            return (SolrInputDocument) readVal(new FastInputStream(null, bytes, 0, bytes.length));
+        }
+    }
+
+    private static final class CaptureCodec extends JavaBinCodec {
+
+        CaptureCodec(OutputStream os) {
+            super(null);
+            // no version byte, the document is embedded in the stream of the serializer
+            daos = FastOutputStream.wrap(os);
+        }
+
+        void write(SolrInputDocument doc, String skipField) throws IOException {
+            SolrInputField skipped = skipField == null ? null : doc.getField(skipField);
+            List<SolrInputDocument> children = doc.getChildDocuments();
+            int size = doc.size() - (skipped == null ? 0 : 1) + (children == null ? 0 : children.size());
+            // the layout of JavaBinCodec.writeSolrInputDocument
+            writeTag(SOLRINPUTDOC, size);
+            writeFloat(1f); // document boost
+            for (SolrInputField field : doc) {
+                if (field != skipped) {
+                    writeExternString(field.getName());
+                    writeVal(field.getValue());
+                }
+            }
+            if (children != null) {
+                for (SolrInputDocument child : children) {
+                    writeSolrInputDocument(child);
+                }
+            }
+            daos.flushBuffer();
+        }
+
+        /**
+         * Writes field names as plain strings: an extern string refers to a table built while reading the whole
+         * stream, which the serializer writing the document into its own stream knows nothing of.
+         */
+        @Override
+        public void writeExternString(CharSequence s) throws IOException {
+            writeStr(s);
+        }
+    }
+}
@@ -38,23 +38,32 @@ public interface IQueueHandler<T> {
         private final ResultStatus _status;
         private final Throwable _throwable;
         private final T _newItem;
+        private final long _latencyNanos;
 
         public Result(final ResultStatus status) {
-            _status = status;
-            _throwable = null;
-            _newItem = null;
+            this(status, null, null);
         }
 
         public Result(final ResultStatus status, final Throwable throwable) {
-            _status = status;
-            _throwable = throwable;
-            _newItem = null;
+            this(status, throwable, null);
         }
 
         public Result(final ResultStatus status, final Throwable throwable, final T newItem) {
+            this(status, throwable, newItem, -1L);
+        }
+
+        public Result(final ResultStatus status, final Throwable throwable, final T newItem, final long latencyNanos) {
             _status = status;
             _throwable = throwable;
             _newItem = newItem;
+            _latencyNanos = latencyNanos;
+        }
+
+        /**
+         * Returns a copy of this result carrying the latency of the call that processed the item.
+         */
+        public Result<T> withLatencyNanos(final long latencyNanos) {
+            return new Result<>(_status, _throwable, _newItem, latencyNanos);
         }
 
         public ResultStatus status() {
@@ -68,6 +77,13 @@ public interface IQueueHandler<T> {
         public T newItem() {
             return _newItem;
         }
+
+        /**
+         * The latency of the call that processed the item, excluding any backoff before a retry, or -1 if unknown.
+         */
+        public long latencyNanos() {
+            return _latencyNanos;
+        }
     }
 
     Result<T> handleItem(T item);
@@ -55,6 +55,50 @@ public class KafkaCrossDcConf extends CrossDcConf {
 
   public static final String DEFAULT_SESSION_TIMEOUT_MS = "10000";
 
+  public static final String DEFAULT_OFFSET_COMMIT_INTERVAL_MS = "1000";
+
+  public static final String DEFAULT_OFFSET_COMMIT_MAX_WORK_UNITS = "100";
+
+  public static final String DEFAULT_PARTITION_PAUSE_IN_FLIGHT_BATCHES = "10";
+
+  public static final String DEFAULT_PARTITION_RESUME_IN_FLIGHT_BATCHES = "5";
+
+  public static final String DEFAULT_MERGE_PARTITION_BATCHES = "false";
+
+  public static final String DEFAULT_SOLR_BATCH_MAX_DOCS = "1000";
+
+  public static final String DEFAULT_SOLR_BATCH_MAX_BYTES = "5242880";
+
+  public static final String DEFAULT_SOLR_BATCH_ADAPTIVE = "false";
+
+  public static final String DEFAULT_SOLR_BATCH_MIN_DOCS = "10";
+
+  public static final String DEFAULT_SOLR_BATCH_TARGET_LATENCY_MS = "2000";
+
+  public static final String DEFAULT_CONSUMER_VIRTUAL_THREADS = "false";
+
+  public static final String DEFAULT_CONSUMER_MAX_IN_FLIGHT_BATCHES = "256";
+
+  public static final String DEFAULT_CONSUMER_ASYNC_SUBMISSION = "false";
+
+  public static final String DEFAULT_RETRY_TOPIC_DELAYS_MS = "5000";
+
+  public static final String DEFAULT_SOLR_BATCH_ISOLATE_FAILURES = "false";
+
+  public static final String DEFAULT_SOLR_BATCH_ISOLATE_MAX_REQUESTS = "32";
+
+  public static final String DEFAULT_SOLR_BATCH_COMPACTION = "false";
+
+  public static final String DEFAULT_JAVABIN_UPDATE_FORMAT = "false";
+
+  public static final String DEFAULT_SOLR_PASS_THROUGH = "false";
+
+  public static final String DEFAULT_MIRROR_ACK_MODE = "none";
+
+  public static final String DEFAULT_DBQ_EXPANSION_THREADS = "4";
+
+  public static final String DEFAULT_PARTITION_STRATEGY = ShardPartitioner.NONE;
+
   public static final String DEFAULT_PORT = "8090";
 
   private static final String DEFAULT_GROUP_ID = "SolrCrossDCConsumer";
@@ -112,6 +156,81 @@ public class KafkaCrossDcConf extends CrossDcConf {
 
   public static final String ZK_CONNECT_STRING = "zkConnectString";
 
+  // Completed consumer offsets are coalesced and committed at most once per interval...
+  public static final String OFFSET_COMMIT_INTERVAL_MS = "offsetCommitIntervalMs";
+
+  // ...or as soon as this many work units (Solr update batches) completed since the last commit.
+  public static final String OFFSET_COMMIT_MAX_WORK_UNITS = "offsetCommitMaxWorkUnits";
+
+  // A partition is paused in the consumer when this many of its batches are in flight...
+  public static final String PARTITION_PAUSE_IN_FLIGHT_BATCHES = "partitionPauseInFlightBatches";
+
+  // ...and resumed once its in-flight batches drained down to this many.
+  public static final String PARTITION_RESUME_IN_FLIGHT_BATCHES = "partitionResumeInFlightBatches";
+
+  // Merges the batches of different partitions with the same params (and so the same collection) into one update request.
+  public static final String MERGE_PARTITION_BATCHES = "mergePartitionBatches";
+
+  // Maximum number of updates (docs, deletes by id and by query) of an update request sent by the consumer.
+  public static final String SOLR_BATCH_MAX_DOCS = "solrBatchMaxDocs";
+
+  // Maximum size, as serialized in Kafka, of the records batched into one update request.
+  public static final String SOLR_BATCH_MAX_BYTES = "solrBatchMaxBytes";
+
+  // Adapts the max number of updates of each collection to the observed request latencies and errors (AIMD).
+  public static final String SOLR_BATCH_ADAPTIVE = "solrBatchAdaptive";
+
+  // Lowest max number of updates of an update request when adaptive.
+  public static final String SOLR_BATCH_MIN_DOCS = "solrBatchMinDocs";
+
+  // Update requests slower than this shrink the max number of updates of their collection when adaptive.
+  public static final String SOLR_BATCH_TARGET_LATENCY_MS = "solrBatchTargetLatencyMs";
+
+  // Runs each consumer batch on a virtual thread instead of the consumerProcessingThreads pool, when the JDK supports it.
+  public static final String CONSUMER_VIRTUAL_THREADS = "consumerVirtualThreads";
+
+  // Maximum number of batches processed at the same time on virtual threads.
+  public static final String CONSUMER_MAX_IN_FLIGHT_BATCHES = "consumerMaxInFlightBatches";
+
+  // Sends the consumer batches with an asynchronous HTTP/2 client, without blocking a worker thread per request.
+  public static final String CONSUMER_ASYNC_SUBMISSION = "consumerAsyncSubmission";
+
+  // Comma separated retry topics, failed requests move to the next topic on each failure.
+  public static final String RETRY_TOPIC_NAMES = "retryTopicNames";
+
+  // Comma separated minimum delays of the retry topics, the last delay applies to the remaining topics.
+  public static final String RETRY_TOPIC_DELAYS_MS = "retryTopicDelaysMs";
+
+  // Topic receiving the requests that failed on the last retry topic.
+  public static final String DEAD_LETTER_TOPIC_NAME = "deadLetterTopicName";
+
+  // Bisects the batches rejected by Solr to only resubmit the rejected updates.
+  public static final String SOLR_BATCH_ISOLATE_FAILURES = "solrBatchIsolateFailures";
+
+  // Max number of requests sent to isolate the rejected updates of a batch, the rest is resubmitted as is.
+  public static final String SOLR_BATCH_ISOLATE_MAX_REQUESTS = "solrBatchIsolateMaxRequests";
+
+  // Keeps only the last full document add or delete by id of each id within a consumer batch.
+  public static final String SOLR_BATCH_COMPACTION = "solrBatchCompaction";
+
+  // Writes the mirrored requests in the javabin format read by Solr's update handler.
+  public static final String JAVABIN_UPDATE_FORMAT = "javabinUpdateFormat";
+
+  // Forwards the records written in the javabin update format to Solr as is, without decoding them.
+  public static final String SOLR_PASS_THROUGH = "solrPassThrough";
+
+  // When an update request waits for Kafka to acknowledge its mirrored updates: none, request or document.
+  public static final String MIRROR_ACK_MODE = "mirrorAckMode";
+
+  // Number of shards read, and of id batches deleted, in parallel to expand a delete-by-query into deletes by id.
+  public static final String DBQ_EXPANSION_THREADS = "dbqExpansionThreads";
+
+  // How the mirrored records are partitioned: none (unkeyed) or shard (keyed by collection and shard, see ShardPartitioner).
+  public static final String PARTITION_STRATEGY = "partitionStrategy";
+
+  // Comma separated collection/shard:partition entries, overriding the partitions of the shard strategy.
+  public static final String SHARD_PARTITION_MAP = "shardPartitionMap";
+
 
   public static final List<ConfigProperty> CONFIG_PROPERTIES;
   private static final Map<String, ConfigProperty> CONFIG_PROPERTIES_MAP;
@@ -136,6 +255,11 @@ public class KafkaCrossDcConf extends CrossDcConf {
             new ConfigProperty(NUM_RETRIES, DEFAULT_NUM_RETRIES),
             new ConfigProperty(RETRY_BACKOFF_MS, DEFAULT_RETRY_BACKOFF_MS),
             new ConfigProperty(DELIVERY_TIMEOUT_MS, DEFAULT_DELIVERY_TIMEOUT_MS),
+            new ConfigProperty(JAVABIN_UPDATE_FORMAT, DEFAULT_JAVABIN_UPDATE_FORMAT),
+            new ConfigProperty(MIRROR_ACK_MODE, DEFAULT_MIRROR_ACK_MODE),
+            new ConfigProperty(DBQ_EXPANSION_THREADS, DEFAULT_DBQ_EXPANSION_THREADS),
+            new ConfigProperty(PARTITION_STRATEGY, DEFAULT_PARTITION_STRATEGY),
+            new ConfigProperty(SHARD_PARTITION_MAP, null),
 
             // Consumer only zkConnectString
             new ConfigProperty(ZK_CONNECT_STRING, null),
@@ -147,6 +271,27 @@ public class KafkaCrossDcConf extends CrossDcConf {
             new ConfigProperty(SESSION_TIMEOUT_MS, DEFAULT_SESSION_TIMEOUT_MS),
 
 
+            new ConfigProperty(OFFSET_COMMIT_INTERVAL_MS, DEFAULT_OFFSET_COMMIT_INTERVAL_MS),
+            new ConfigProperty(OFFSET_COMMIT_MAX_WORK_UNITS, DEFAULT_OFFSET_COMMIT_MAX_WORK_UNITS),
+            new ConfigProperty(PARTITION_PAUSE_IN_FLIGHT_BATCHES, DEFAULT_PARTITION_PAUSE_IN_FLIGHT_BATCHES),
+            new ConfigProperty(PARTITION_RESUME_IN_FLIGHT_BATCHES, DEFAULT_PARTITION_RESUME_IN_FLIGHT_BATCHES),
+            new ConfigProperty(MERGE_PARTITION_BATCHES, DEFAULT_MERGE_PARTITION_BATCHES),
+            new ConfigProperty(SOLR_BATCH_MAX_DOCS, DEFAULT_SOLR_BATCH_MAX_DOCS),
+            new ConfigProperty(SOLR_BATCH_MAX_BYTES, DEFAULT_SOLR_BATCH_MAX_BYTES),
+            new ConfigProperty(SOLR_BATCH_ADAPTIVE, DEFAULT_SOLR_BATCH_ADAPTIVE),
+            new ConfigProperty(SOLR_BATCH_MIN_DOCS, DEFAULT_SOLR_BATCH_MIN_DOCS),
+            new ConfigProperty(SOLR_BATCH_TARGET_LATENCY_MS, DEFAULT_SOLR_BATCH_TARGET_LATENCY_MS),
+            new ConfigProperty(CONSUMER_VIRTUAL_THREADS, DEFAULT_CONSUMER_VIRTUAL_THREADS),
+            new ConfigProperty(CONSUMER_MAX_IN_FLIGHT_BATCHES, DEFAULT_CONSUMER_MAX_IN_FLIGHT_BATCHES),
+            new ConfigProperty(CONSUMER_ASYNC_SUBMISSION, DEFAULT_CONSUMER_ASYNC_SUBMISSION),
+            new ConfigProperty(RETRY_TOPIC_NAMES),
+            new ConfigProperty(RETRY_TOPIC_DELAYS_MS, DEFAULT_RETRY_TOPIC_DELAYS_MS),
+            new ConfigProperty(DEAD_LETTER_TOPIC_NAME),
+            new ConfigProperty(SOLR_BATCH_ISOLATE_FAILURES, DEFAULT_SOLR_BATCH_ISOLATE_FAILURES),
+            new ConfigProperty(SOLR_BATCH_ISOLATE_MAX_REQUESTS, DEFAULT_SOLR_BATCH_ISOLATE_MAX_REQUESTS),
+            new ConfigProperty(SOLR_BATCH_COMPACTION, DEFAULT_SOLR_BATCH_COMPACTION),
+            new ConfigProperty(SOLR_PASS_THROUGH, DEFAULT_SOLR_PASS_THROUGH),
+
             new ConfigProperty(MAX_PARTITION_FETCH_BYTES, DEFAULT_MAX_PARTITION_FETCH_BYTES),
             new ConfigProperty(MAX_POLL_RECORDS, DEFAULT_MAX_POLL_RECORDS),
             new ConfigProperty(PORT, DEFAULT_PORT),
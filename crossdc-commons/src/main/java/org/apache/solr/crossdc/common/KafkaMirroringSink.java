@@ -20,7 +20,9 @@ import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.solr.common.cloud.DocRouter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +30,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static org.apache.solr.crossdc.common.KafkaCrossDcConf.SLOW_SUBMIT_THRESHOLD_MS;
@@ -38,27 +41,79 @@ public class KafkaMirroringSink implements RequestMirroringSink, Closeable {
 
     private final KafkaCrossDcConf conf;
     private final Producer<String, MirroredSolrRequest> producer;
+    private final ShardPartitioner partitioner;
 
     public KafkaMirroringSink(final KafkaCrossDcConf conf) {
         // Create Kafka Mirroring Sink
         this.conf = conf;
+        this.partitioner = new ShardPartitioner(conf.get(KafkaCrossDcConf.PARTITION_STRATEGY),
+            conf.get(KafkaCrossDcConf.SHARD_PARTITION_MAP));
         this.producer = initProducer();
     }
 
     @Override
     public void submit(MirroredSolrRequest request) throws MirroringException {
+        submitAsync(request);
+    }
+
+    /**
+     * Submits the request to the first configured topic, see {@link #submitAsync(MirroredSolrRequest, String)}.
+     */
+    public CompletableFuture<RecordMetadata> submitAsync(MirroredSolrRequest request) throws MirroringException {
+        return submitAsync(request, conf.get(KafkaCrossDcConf.TOPIC_NAME).split(",")[0]);
+    }
+
+    /**
+     * Submits the updates of a shard to the first configured topic, in the partition of the shard when the records
+     * are partitioned by shard, see {@link ShardPartitioner}.
+     *
+     * @param shardRange the hash range of the shard, or null if unknown
+     */
+    public CompletableFuture<RecordMetadata> submitAsync(MirroredSolrRequest request, String collection, String shard,
+                                                         DocRouter.Range shardRange) throws MirroringException {
+        return send(request, conf.get(KafkaCrossDcConf.TOPIC_NAME).split(",")[0], collection, shard, shardRange);
+    }
+
+    /**
+     * Submits the request to the given topic, e.g. to a retry topic, without waiting for Kafka to acknowledge it.
+     *
+     * @return the future of the record, completed when Kafka acknowledges it, or exceptionally if its delivery fails
+     * @throws MirroringException if the request cannot be handed to the producer
+     */
+    public CompletableFuture<RecordMetadata> submitAsync(MirroredSolrRequest request, String topic) throws MirroringException {
+        return send(request, topic, null, null, null);
+    }
+
+    /**
+     * Returns the key of the records submitted for the updates of the shard, or null if they are not keyed.
+     */
+    public String recordKey(String collection, String shard) {
+        return partitioner.isEnabled() && collection != null && shard != null ? ShardPartitioner.key(collection, shard) : null;
+    }
+
+    private CompletableFuture<RecordMetadata> send(MirroredSolrRequest request, String topic, String collection,
+                                                   String shard, DocRouter.Range shardRange) throws MirroringException {
         if (log.isDebugEnabled()) {
-            log.debug("About to submit a MirroredSolrRequest");
+            log.debug("About to submit a MirroredSolrRequest to topic={}", topic);
         }
 
         final long enqueueStartNanos = System.nanoTime();
+        final CompletableFuture<RecordMetadata> acked = new CompletableFuture<>();
 
         // Create Producer record
         try {
 
-            producer.send(new ProducerRecord<>(conf.get(KafkaCrossDcConf.TOPIC_NAME).split(",")[0], request), (metadata, exception) -> {
+            String key = recordKey(collection, shard);
+            Integer partition = null;
+            if (key != null) {
+                partition = partitioner.partition(collection, shard, shardRange, producer.partitionsFor(topic).size());
+            }
+            producer.send(new ProducerRecord<>(topic, partition, key, request), (metadata, exception) -> {
                 if (exception != null) {
                     log.error("Failed adding update to CrossDC queue! request=" + request.getSolrRequest(), exception);
+                    acked.completeExceptionally(exception);
+                } else {
+                    acked.complete(metadata);
                 }
             });
 
@@ -70,6 +125,7 @@ public class KafkaMirroringSink implements RequestMirroringSink, Closeable {
             if (elapsedTimeMillis > conf.getInt(SLOW_SUBMIT_THRESHOLD_MS)) {
                 slowSubmitAction(request, elapsedTimeMillis);
             }
+            return acked;
         } catch (Exception e) {
             // We are intentionally catching all exceptions, the expected exception form this function is {@link MirroringException}
             String message = "Unable to enqueue request " + request + ", configured retries is" + conf.getInt(KafkaCrossDcConf.NUM_RETRIES) +
@@ -110,6 +166,8 @@ public class KafkaMirroringSink implements RequestMirroringSink, Closeable {
 
         kafkaProducerProps.put("key.serializer", StringSerializer.class.getName());
         kafkaProducerProps.put("value.serializer", MirroredSolrRequestSerializer.class.getName());
+        // read by the serializer when it is configured
+        kafkaProducerProps.put(KafkaCrossDcConf.JAVABIN_UPDATE_FORMAT, String.valueOf(conf.getBool(KafkaCrossDcConf.JAVABIN_UPDATE_FORMAT)));
 
         KafkaCrossDcConf.addSecurityProps(conf, kafkaProducerProps);
 
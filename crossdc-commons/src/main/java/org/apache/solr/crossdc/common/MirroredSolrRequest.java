@@ -17,15 +17,27 @@
 package org.apache.solr.crossdc.common;
 
 import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.params.SolrParams;
 
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * Class to encapsulate a mirrored Solr request.
  * This adds a timestamp and #attempts to the request for tracking purpopse.
  */
 public class MirroredSolrRequest {
-    private final SolrRequest solrRequest;
+    private volatile SolrRequest solrRequest;
+
+    // Raw serialized request and its decoder when the request is decoded lazily, dropped once decoded.
+    private byte[] serialized;
+    private Function<byte[], SolrRequest> decoder;
+    // Params and number of updates decoded up front from a lazy request, see getParams() and getNumUpdates().
+    private SolrParams params;
+    private int numUpdates = -1;
+    // Whether the serialized request is in the javabin format read by Solr's update handler.
+    private boolean updateFormat;
 
     // Attempts counter for processing the request
     private int attempt = 1;
@@ -33,6 +45,9 @@ public class MirroredSolrRequest {
     // Timestamp to track when this request was first written. This should be used to track the replication lag.
     private long submitTimeNanos = 0;
 
+    // Canonical form of the request params, computed once, see getParamsKey().
+    private String paramsKey;
+
     public MirroredSolrRequest(final SolrRequest solrRequest) {
         this(1, solrRequest, 0);
     }
@@ -53,6 +68,36 @@ public class MirroredSolrRequest {
         solrRequest = null;
     }
 
+    /**
+     * Creates a request that is decoded on the first call to {@link #getSolrRequest()}, so that the documents are
+     * only materialized by the thread that actually needs them.
+     *
+     * @param serialized the serialized request, kept until the request is decoded
+     * @param params     the params of the request, decoded up front
+     * @param numUpdates the number of documents, deletes by id and deletes by query of the request
+     * @param decoder    decodes the serialized request
+     */
+    public MirroredSolrRequest(final byte[] serialized, final SolrParams params, final int numUpdates,
+                               final Function<byte[], SolrRequest> decoder) {
+        this(serialized, params, numUpdates, false, decoder);
+    }
+
+    /**
+     * @param updateFormat whether the serialized request is in the javabin format read by Solr's update handler,
+     *                     see {@link #getSerializedUpdate()}
+     */
+    public MirroredSolrRequest(final byte[] serialized, final SolrParams params, final int numUpdates,
+                               final boolean updateFormat, final Function<byte[], SolrRequest> decoder) {
+        if (serialized == null || decoder == null) {
+            throw new NullPointerException("serialized request and decoder cannot be null");
+        }
+        this.serialized = serialized;
+        this.params = params;
+        this.numUpdates = numUpdates;
+        this.updateFormat = updateFormat;
+        this.decoder = decoder;
+    }
+
     public int getAttempt() {
         return attempt;
     }
@@ -61,8 +106,109 @@ public class MirroredSolrRequest {
         this.attempt = attempt;
     }
 
+    /**
+     * Returns the request, decoding it first if it was deserialized lazily.
+     */
     public SolrRequest getSolrRequest() {
-        return solrRequest;
+        SolrRequest request = solrRequest;
+        if (request == null && decoder != null) {
+            synchronized (this) {
+                request = solrRequest;
+                if (request == null && decoder != null) {
+                    request = decoder.apply(serialized);
+                    solrRequest = request;
+                    serialized = null;
+                    decoder = null;
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Returns whether the request is decoded, i.e. {@link #getSolrRequest()} returns without decoding documents.
+     */
+    public boolean isDecoded() {
+        return solrRequest != null || decoder == null;
+    }
+
+    /**
+     * Returns the serialized request if it can be sent to Solr's update handler as a javabin content stream, i.e.
+     * it is not decoded and was serialized in the update handler format; null otherwise.
+     */
+    public synchronized byte[] getSerializedUpdate() {
+        return updateFormat && solrRequest == null ? serialized : null;
+    }
+
+    /**
+     * Returns the params of the request, without decoding it.
+     */
+    public SolrParams getParams() {
+        SolrRequest request = solrRequest;
+        if (request != null) {
+            return request.getParams();
+        }
+        return decoder != null ? params : null;
+    }
+
+    /**
+     * Returns the number of documents, deletes by id and deletes by query of an update request, without decoding
+     * it; 0 for any other request.
+     */
+    public int getNumUpdates() {
+        if (numUpdates >= 0) {
+            return numUpdates;
+        }
+        SolrRequest request = getSolrRequest();
+        if (!(request instanceof UpdateRequest)) {
+            return 0;
+        }
+        return UpdateRequestUtil.countUpdates((UpdateRequest) request);
+    }
+
+    /**
+     * Returns a canonical representation of the request params: the param names sorted, each followed by its values
+     * in order. Requests with equal params have equal keys, so the consumer can tell whether consecutive requests
+     * can be batched together by comparing their keys with the key of the batch. The key is computed
+     * on the first call, which the deserializer does when the request is read from Kafka. It does not decode a lazy
+     * request.
+     */
+    public String getParamsKey() {
+        String key = paramsKey;
+        if (key == null) {
+            key = computeParamsKey(getParams());
+            paramsKey = key;
+        }
+        return key;
+    }
+
+    private static String computeParamsKey(SolrParams params) {
+        if (params == null) {
+            return "";
+        }
+        List<String> names = new ArrayList<>();
+        params.getParameterNamesIterator().forEachRemaining(names::add);
+        if (names.isEmpty()) {
+            return "";
+        }
+        Collections.sort(names);
+        // length-prefixed so that no name or value can be confused with a separator
+        StringBuilder key = new StringBuilder(32 * names.size());
+        for (String name : names) {
+            key.append(name.length()).append(':').append(name);
+            String[] values = params.getParams(name);
+            key.append('[').append(values == null ? 0 : values.length).append(']');
+            if (values != null) {
+                for (String value : values) {
+                    key.append(value == null ? -1 : value.length()).append(':');
+                    if (value != null) {
+                        key.append(value);
+                    }
+                }
+            }
+        }
+        // not interned: the values come from the clients, interning them would grow the string table without bound
+        return key.toString();
     }
 
     public long getSubmitTimeNanos() {
@@ -80,18 +226,18 @@ public class MirroredSolrRequest {
 
         final MirroredSolrRequest that = (MirroredSolrRequest)o;
 
-        return Objects.equals(solrRequest, that.solrRequest);
+        return Objects.equals(getSolrRequest(), that.getSolrRequest());
     }
 
     @Override
     public int hashCode() {
-        return solrRequest.hashCode();
+        return Objects.hashCode(getSolrRequest());
     }
 
     @Override
     public String toString() {
         return "MirroredSolrRequest{" +
-               "solrRequest=" + solrRequest +
+               "solrRequest=" + (isDecoded() ? solrRequest : "<" + numUpdates + " updates, not decoded>") +
                ", attempt=" + attempt +
                ", submitTimeNanos=" + submitTimeNanos +
                '}';
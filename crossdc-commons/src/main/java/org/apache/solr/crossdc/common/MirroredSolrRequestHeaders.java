@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.common;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Kafka record headers written along with each mirrored request: the version of the envelope, the format of the
+ * body, the attempt and submit time of the request, and enough about its content to route, filter or batch the
+ * record, or measure the replication lag, without deserializing the body. Values are UTF-8 strings.
+ * <p>
+ * Records without headers, written by older producers, are read as version 1 in the map format, first attempt,
+ * unknown submit time. A consumer reading a record of a newer version than it knows fails rather than misreading
+ * it, so consumers must be upgraded before producers start writing a new version.
+ */
+public final class MirroredSolrRequestHeaders {
+
+    public static final String VERSION = "crossdc.version";
+    public static final String FORMAT = "crossdc.format";
+    public static final String ATTEMPT = "crossdc.attempt";
+    public static final String SUBMIT_TIME_NANOS = "crossdc.submitTimeNanos";
+    public static final String COLLECTION = "crossdc.collection";
+    public static final String OPERATION = "crossdc.op";
+    public static final String NUM_DOCS = "crossdc.numDocs";
+    public static final String NUM_UPDATES = "crossdc.numUpdates";
+
+    public static final int CURRENT_VERSION = 1;
+
+    // Body formats, see MirroredSolrRequestSerializer.
+    public static final String FORMAT_MAP = "map";
+    public static final String FORMAT_UPDATE = "update";
+
+    // Operations: documents only, deletes (by id or by query) only, or both.
+    public static final String OP_ADD = "add";
+    public static final String OP_DELETE = "delete";
+    public static final String OP_MIXED = "mixed";
+
+    // Maximum lengths of the header values: ints, longs, and the longest format and operation.
+    private static final int MAX_INT_LENGTH = 11;
+    private static final int MAX_LONG_LENGTH = 20;
+    private static final int MAX_NAME_LENGTH = 6;
+
+    private MirroredSolrRequestHeaders() {
+    }
+
+    /**
+     * Writes the headers of a serialized request, replacing any header of a previous serialization.
+     */
+    static void write(Headers headers, MirroredSolrRequest request, UpdateRequest solrRequest, boolean updateFormat) {
+        Map<SolrInputDocument, Map<String, Object>> docs = solrRequest.getDocumentsMap();
+        Map<String, Map<String, Object>> deletes = solrRequest.getDeleteByIdMap();
+        List<String> deleteQuery = solrRequest.getDeleteQuery();
+        int numDocs = docs == null ? 0 : docs.size();
+        int numDeletes = (deletes == null ? 0 : deletes.size()) + (deleteQuery == null ? 0 : deleteQuery.size());
+        String collection = solrRequest.getCollection();
+        if (collection == null && solrRequest.getParams() != null) {
+            collection = solrRequest.getParams().get("collection");
+        }
+
+        put(headers, VERSION, Integer.toString(CURRENT_VERSION));
+        put(headers, FORMAT, updateFormat ? FORMAT_UPDATE : FORMAT_MAP);
+        put(headers, ATTEMPT, Integer.toString(request.getAttempt()));
+        put(headers, SUBMIT_TIME_NANOS, Long.toString(request.getSubmitTimeNanos()));
+        if (collection != null) {
+            put(headers, COLLECTION, collection);
+        } else {
+            headers.remove(COLLECTION);
+        }
+        put(headers, OPERATION, numDeletes == 0 ? OP_ADD : numDocs == 0 ? OP_DELETE : OP_MIXED);
+        put(headers, NUM_DOCS, Integer.toString(numDocs));
+        put(headers, NUM_UPDATES, Integer.toString(numDocs + numDeletes));
+    }
+
+    /**
+     * Returns an upper bound of the bytes that the headers of a record of the collection take in a Kafka record.
+     */
+    static int maxSizeInBytes(String collection) {
+        return maxHeaderSize(VERSION, MAX_INT_LENGTH) + maxHeaderSize(FORMAT, MAX_NAME_LENGTH)
+            + maxHeaderSize(ATTEMPT, MAX_INT_LENGTH) + maxHeaderSize(SUBMIT_TIME_NANOS, MAX_LONG_LENGTH)
+            + maxHeaderSize(COLLECTION, collection == null ? 0 : Utils.utf8Length(collection))
+            + maxHeaderSize(OPERATION, MAX_NAME_LENGTH) + maxHeaderSize(NUM_DOCS, MAX_INT_LENGTH)
+            + maxHeaderSize(NUM_UPDATES, MAX_INT_LENGTH);
+    }
+
+    private static int maxHeaderSize(String key, int maxValueLength) {
+        // the key and the value, each preceded by its length as a varint of up to 5 bytes
+        return 5 + key.length() + 5 + maxValueLength;
+    }
+
+    /**
+     * Checks that the record was not written with a newer envelope version than this one.
+     *
+     * @throws SerializationException if the record was written with a newer envelope version
+     */
+    static void checkVersion(Headers headers) {
+        int version = getVersion(headers);
+        if (version > CURRENT_VERSION) {
+            throw new SerializationException("Unsupported CrossDC envelope version " + version + ", this consumer reads up to version "
+                + CURRENT_VERSION + ", upgrade it");
+        }
+    }
+
+    /**
+     * Sets the attempt and submit time of a deserialized request from the headers of its record.
+     */
+    static void read(Headers headers, MirroredSolrRequest request) {
+        String attempt = get(headers, ATTEMPT);
+        if (attempt != null) {
+            request.setAttempt(Integer.parseInt(attempt));
+        }
+        String submitTimeNanos = get(headers, SUBMIT_TIME_NANOS);
+        if (submitTimeNanos != null) {
+            request.setSubmitTimeNanos(Long.parseLong(submitTimeNanos));
+        }
+    }
+
+    /**
+     * Returns the envelope version of the record, 1 for records written without headers.
+     */
+    public static int getVersion(Headers headers) {
+        String version = get(headers, VERSION);
+        return version == null ? 1 : Integer.parseInt(version);
+    }
+
+    /**
+     * Returns the collection targeted by the record, or null if unknown.
+     */
+    public static String getCollection(Headers headers) {
+        return get(headers, COLLECTION);
+    }
+
+    /**
+     * Returns the number of documents, deletes by id and deletes by query of the record, or -1 if unknown.
+     */
+    public static int getNumUpdates(Headers headers) {
+        String numUpdates = get(headers, NUM_UPDATES);
+        return numUpdates == null ? -1 : Integer.parseInt(numUpdates);
+    }
+
+    /**
+     * Returns the time the request was first submitted, in nanoseconds since the epoch, or 0 if unknown.
+     */
+    public static long getSubmitTimeNanos(Headers headers) {
+        String submitTimeNanos = get(headers, SUBMIT_TIME_NANOS);
+        return submitTimeNanos == null ? 0L : Long.parseLong(submitTimeNanos);
+    }
+
+    /**
+     * Returns the value of the last header with the given key, or null.
+     */
+    public static String get(Headers headers, String key) {
+        if (headers == null) {
+            return null;
+        }
+        Header header = headers.lastHeader(key);
+        return header == null || header.value() == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    private static void put(Headers headers, String key, String value) {
+        headers.remove(key);
+        headers.add(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -16,12 +16,20 @@
  */
 package org.apache.solr.crossdc.common;
 
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.record.DefaultRecord;
+import org.apache.kafka.common.record.DefaultRecordBatch;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.utils.Utils;
 import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.MapSolrParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.FastInputStream;
 import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,7 +37,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -37,7 +48,22 @@ public class MirroredSolrRequestSerializer implements Serializer<MirroredSolrReq
 
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    // Buffers grown larger are not kept, so that a single large request does not pin memory in each producer thread.
+    private static final int MAX_POOLED_BUFFER_SIZE = 1 << 20;
+
+    // Room for the sizes of the documents and deletes arrays, and the number of documents, in a record envelope.
+    private static final int ENVELOPE_SIZES_BYTES = 16;
+
+    // Output buffer reused by the serializations of each thread, see serialize().
+    private static final ThreadLocal<ExposedByteArrayOutputStream> BUFFER = ThreadLocal.withInitial(ExposedByteArrayOutputStream::new);
+
     private boolean isKey;
+
+    // Whether requests are serialized in the javabin format of Solr's update handler, see KafkaCrossDcConf.JAVABIN_UPDATE_FORMAT.
+    private boolean updateFormat;
+
     /**
      * Configure this class.
      *
@@ -47,63 +73,183 @@ public class MirroredSolrRequestSerializer implements Serializer<MirroredSolrReq
     @Override
     public void configure(Map<String, ?> configs, boolean isKey) {
         this.isKey = isKey;
+        Object updateFormat = configs.get(KafkaCrossDcConf.JAVABIN_UPDATE_FORMAT);
+        this.updateFormat = updateFormat != null && Boolean.parseBoolean(updateFormat.toString());
     }
 
+    /**
+     * Deserializes the request lazily when possible: only the params and the number of updates are decoded here,
+     * on the poll thread, and the documents are decoded by the first call to
+     * {@link MirroredSolrRequest#getSolrRequest()}. This relies on the documents being the last entry of the
+     * serialized map, as written by {@link #serialize}; requests serialized otherwise are decoded right away.
+     * <p>
+     * Both the default format, a map, and the javabin update format, a named list, are read whatever the
+     * configuration, so that producers can switch formats once all the consumers are upgraded.
+     */
     @Override
     public MirroredSolrRequest deserialize(String topic, byte[] data) {
-        Map solrRequest;
-        UpdateRequest updateRequest = new UpdateRequest();
-        try (JavaBinCodec codec = new JavaBinCodec()) {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
+        MirroredSolrRequest mirroredSolrRequest;
+        try (EnvelopeCodec codec = new EnvelopeCodec()) {
+            mirroredSolrRequest = codec.readEnvelope(data);
+        } catch (Exception e) {
+            log.error("Exception unmarshalling JavaBin envelope", e);
+            throw new RuntimeException(e);
+        }
+        if (mirroredSolrRequest == null) {
+            mirroredSolrRequest = new MirroredSolrRequest(decode(data));
+        }
+        // compute the params key once here, the consumer groups the requests in batches with it
+        mirroredSolrRequest.getParamsKey();
+        return mirroredSolrRequest;
+    }
 
-            try {
-                solrRequest = (Map) codec.unmarshal(bais);
+    /**
+     * Deserializes the request like {@link #deserialize(String, byte[])}, and sets its attempt and submit time from
+     * the record headers, see {@link MirroredSolrRequestHeaders}.
+     */
+    @Override
+    public MirroredSolrRequest deserialize(String topic, Headers headers, byte[] data) {
+        MirroredSolrRequestHeaders.checkVersion(headers);
+        MirroredSolrRequest mirroredSolrRequest = deserialize(topic, data);
+        MirroredSolrRequestHeaders.read(headers, mirroredSolrRequest);
+        return mirroredSolrRequest;
+    }
 
-                if (log.isTraceEnabled()) {
-                    log.trace("Deserialized class={} solrRequest={}", solrRequest.getClass().getName(),
-                        solrRequest);
-                }
+    private static UpdateRequest decode(byte[] data) {
+        Object decoded;
+        try (JavaBinCodec codec = new JavaBinCodec()) {
+            decoded = codec.unmarshal(new ByteArrayInputStream(data));
 
-            } catch (Exception e) {
-                log.error("Exception unmarshalling JavaBin", e);
-                throw new RuntimeException(e);
+            if (log.isTraceEnabled()) {
+                log.trace("Deserialized class={} solrRequest={}", decoded.getClass().getName(),
+                    decoded);
             }
+        } catch (Exception e) {
+            log.error("Exception unmarshalling JavaBin", e);
+            throw new RuntimeException(e);
+        }
+        if (decoded instanceof NamedList) {
+            return decodeUpdateFormat((NamedList) decoded);
+        }
 
+        Map solrRequest = (Map) decoded;
+        UpdateRequest updateRequest = new UpdateRequest();
+        List docs = (List) solrRequest.get("docs");
+        if (docs != null) {
+            updateRequest.add(docs);
+        }
 
-            List docs = (List) solrRequest.get("docs");
-            if (docs != null) {
-                updateRequest.add(docs);
-            } else {
-                updateRequest.add("id", "1"); // TODO huh?
-                updateRequest.getDocumentsMap().clear();
-            }
+        List deletes = (List) solrRequest.get("deletes");
+        if (deletes != null) {
+            updateRequest.deleteById(deletes);
+        }
 
-            List deletes = (List) solrRequest.get("deletes");
-            if (deletes != null) {
-                updateRequest.deleteById(deletes);
+        List deletesQuery = (List) solrRequest.get("deleteQuery");
+        if (deletesQuery != null) {
+            for (Object delQuery : deletesQuery) {
+                updateRequest.deleteByQuery((String) delQuery);
             }
+        }
 
-            List deletesQuery = (List) solrRequest.get("deleteQuery");
-            if (deletesQuery != null) {
-                for (Object delQuery : deletesQuery) {
-                    updateRequest.deleteByQuery((String) delQuery);
-                }
-            }
+        updateRequest.setParams(toParams((Map) solrRequest.get("params")));
+        return updateRequest;
+    }
+
+    private static UpdateRequest decodeUpdateFormat(NamedList solrRequest) {
+        UpdateRequest updateRequest = new UpdateRequest();
+        List docs = (List) solrRequest.get("docs");
+        if (docs != null) {
+            updateRequest.add(docs);
+        }
+
+        List deletes = (List) solrRequest.get("delById");
+        if (deletes != null) {
+            updateRequest.deleteById(deletes);
+        }
 
-            Map params = (Map) solrRequest.get("params");
-            if (params != null) {
-                updateRequest.setParams(ModifiableSolrParams.of(new MapSolrParams(params)));
+        List deletesQuery = (List) solrRequest.get("delByQ");
+        if (deletesQuery != null) {
+            for (Object delQuery : deletesQuery) {
+                updateRequest.deleteByQuery((String) delQuery);
             }
-        } catch (IOException e) {
-            log.error("Error in deserialize", e);
-            throw new RuntimeException(e);
         }
 
-        return new MirroredSolrRequest(updateRequest);
+        updateRequest.setParams(toParams((NamedList) solrRequest.get("params")));
+        return updateRequest;
+    }
+
+    private static ModifiableSolrParams toParams(Map params) {
+        return params == null ? null : ModifiableSolrParams.of(new MapSolrParams(params));
+    }
+
+    private static ModifiableSolrParams toParams(NamedList params) {
+        return params == null ? null : new ModifiableSolrParams(SolrParams.toSolrParams(params));
     }
 
     /**
-     * Convert {@code data} into a byte array.
+     * Reads the entries of the serialized request that precede the documents, and only the number of documents.
+     */
+    private static class EnvelopeCodec extends JavaBinCodec {
+
+        /**
+         * Returns the lazily decoded request, or null if the documents are not the last entry of the request.
+         */
+        MirroredSolrRequest readEnvelope(byte[] data) throws IOException {
+            FastInputStream dis = initRead(new ByteArrayInputStream(data));
+            tagByte = dis.readByte();
+            boolean updateFormat;
+            int size;
+            if (tagByte == MAP) {
+                updateFormat = false;
+                size = readVInt(dis);
+            } else if ((tagByte >>> 5) == (NAMED_LST >>> 5)) {
+                updateFormat = true;
+                size = readSize(dis);
+            } else {
+                return null;
+            }
+            Map<Object, Object> envelope = new HashMap<>(8);
+            for (int i = 0; i < size; i++) {
+                Object key = readVal(dis);
+                if (!"docs".equals(key)) {
+                    envelope.put(key, readVal(dis));
+                    continue;
+                }
+                if (i != size - 1) {
+                    return null;
+                }
+                int numDocs;
+                if (updateFormat) {
+                    // the update handler streams the documents, they are written without their number
+                    Object count = envelope.get("numDocs");
+                    if (!(count instanceof Number)) {
+                        return null;
+                    }
+                    numDocs = ((Number) count).intValue();
+                } else {
+                    tagByte = dis.readByte();
+                    if (tagByte == NULL) {
+                        numDocs = 0;
+                    } else if ((tagByte >>> 5) == (ARR >>> 5)) {
+                        numDocs = readSize(dis);
+                    } else {
+                        return null;
+                    }
+                }
+                List deletes = (List) envelope.get(updateFormat ? "delById" : "deletes");
+                List deleteQuery = (List) envelope.get(updateFormat ? "delByQ" : "deleteQuery");
+                int numUpdates = numDocs + (deletes == null ? 0 : deletes.size()) + (deleteQuery == null ? 0 : deleteQuery.size());
+                ModifiableSolrParams params = updateFormat ? toParams((NamedList) envelope.get("params")) : toParams((Map) envelope.get("params"));
+                return new MirroredSolrRequest(data, params, numUpdates, updateFormat, MirroredSolrRequestSerializer::decode);
+            }
+            // no documents to defer
+            return null;
+        }
+    }
+
+    /**
+     * Convert {@code data} into a byte array. The request is written to an output buffer kept by the calling thread
+     * and reused across records, and only the written bytes are returned.
      *
      * @param topic topic associated with data
      * @param request  MirroredSolrRequest that needs to be serialized
@@ -119,25 +265,230 @@ public class MirroredSolrRequestSerializer implements Serializer<MirroredSolrReq
                 solrRequest.getDocuments(), solrRequest.getDeleteById());
         }
 
-        try (JavaBinCodec codec = new JavaBinCodec(null)) {
+        ExposedByteArrayOutputStream baos = BUFFER.get();
+        baos.reset();
+        try (EnvelopeWriter writer = new EnvelopeWriter(true)) {
+            writer.write(solrRequest, baos, updateFormat);
+            // exactly the written bytes, not the whole buffer
+            return writer.hasDeferredDocuments() ? writer.assemble(baos) : baos.toByteArray();
+        } catch (IOException e) {
+            log.error("Error in serialize", e);
+            throw new RuntimeException(e);
+        } finally {
+            if (baos.capacity() > MAX_POOLED_BUFFER_SIZE) {
+                BUFFER.remove();
+            }
+        }
+    }
+
+    /**
+     * Serializes the request like {@link #serialize(String, MirroredSolrRequest)}, and writes its attempt, submit
+     * time and a summary of its content in the record headers, see {@link MirroredSolrRequestHeaders}.
+     */
+    @Override
+    public byte[] serialize(String topic, Headers headers, MirroredSolrRequest request) {
+        byte[] data = serialize(topic, request);
+        if (headers != null) {
+            MirroredSolrRequestHeaders.write(headers, request, (UpdateRequest) request.getSolrRequest(), updateFormat);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the record overhead of {@link #recordOverheadBytes(SolrParams, String)} for a record without key.
+     */
+    public static int recordOverheadBytes(SolrParams params) {
+        return recordOverheadBytes(params, null);
+    }
 
+    /**
+     * Returns an upper bound of the bytes that the record of an update request with the given params takes in a
+     * Kafka produce request besides its documents and deletes: the record key, the envelope of the body in either
+     * format, the record headers, and the overhead of the Kafka record and record batch. Adding the sizes of the
+     * captured documents and of the deletes to it gives at least the size that the producer checks against
+     * {@code max.request.size}.
+     *
+     * @param key the key of the record, or null
+     */
+    public static int recordOverheadBytes(SolrParams params, String key) {
+        UpdateRequest empty = new UpdateRequest();
+        empty.setParams(params == null ? null : new ModifiableSolrParams(params));
+        int envelopeBytes = 0;
+        for (boolean updateFormat : new boolean[] {false, true}) {
             ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream();
-            Map map = new HashMap(8);
-            map.put("params", solrRequest.getParams());
-            map.put("docs", solrRequest.getDocuments());
+            try (EnvelopeWriter writer = new EnvelopeWriter(false)) {
+                writer.write(empty, baos, updateFormat);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            envelopeBytes = Math.max(envelopeBytes, baos.size());
+        }
+        return envelopeBytes + ENVELOPE_SIZES_BYTES + (key == null ? 0 : key.getBytes(StandardCharsets.UTF_8).length)
+            + MirroredSolrRequestHeaders.maxSizeInBytes(params == null ? null : params.get("collection"))
+            + DefaultRecordBatch.RECORD_BATCH_OVERHEAD + DefaultRecord.MAX_RECORD_OVERHEAD;
+    }
+
+    /**
+     * Returns an upper bound of the bytes that a delete by id takes in the body of a record.
+     */
+    public static int deleteSizeInBytes(String id) {
+        // a javabin string: a tag and up to a 5 bytes size, and the UTF-8 bytes
+        return 6 + Utils.utf8Length(id);
+    }
 
-            map.put("deletes", solrRequest.getDeleteById());
-            map.put("deleteQuery", solrRequest.getDeleteQuery());
+    /**
+     * Writes the request envelope entry by entry, without building an intermediate map or copying the documents
+     * and deletes into lists. The documents are always written last.
+     * <p>
+     * When all the documents were captured by the producer, a deferring writer only records where they go, and
+     * {@link #assemble} copies their bytes to the record directly rather than to the output buffer first.
+     */
+    private static class EnvelopeWriter extends JavaBinCodec {
 
-            codec.marshal(map, baos);
+        private final boolean deferCapturedDocuments;
+        private Collection<SolrInputDocument> deferredDocs;
+        private int deferredBytes;
+        private int docsOffset;
+        private ExposedByteArrayOutputStream out;
 
-            return baos.byteArray();
+        EnvelopeWriter(boolean deferCapturedDocuments) {
+            super(null);
+            this.deferCapturedDocuments = deferCapturedDocuments;
+        }
 
-        } catch (IOException e) {
-            log.error("Error in serialize", e);
-            throw new RuntimeException(e);
+        boolean hasDeferredDocuments() {
+            return deferredDocs != null;
         }
 
+        /**
+         * Returns the record: the written envelope with the bytes of the deferred documents in their place.
+         */
+        byte[] assemble(ExposedByteArrayOutputStream baos) {
+            byte[] buf = baos.buffer();
+            int size = baos.size();
+            byte[] data = new byte[size + deferredBytes];
+            System.arraycopy(buf, 0, data, 0, docsOffset);
+            int pos = docsOffset;
+            for (SolrInputDocument doc : deferredDocs) {
+                pos = ((CapturedSolrInputDocument) doc).copyTo(data, pos);
+            }
+            System.arraycopy(buf, docsOffset, data, pos, size - docsOffset);
+            return data;
+        }
+
+        void write(UpdateRequest solrRequest, ExposedByteArrayOutputStream os, boolean updateFormat) throws IOException {
+            out = os;
+            initWrite(os);
+            try {
+                if (updateFormat) {
+                    writeUpdateFormat(solrRequest);
+                } else {
+                    writeMapFormat(solrRequest);
+                }
+            } finally {
+                daos.flushBuffer();
+            }
+        }
+
+        private void writeMapFormat(UpdateRequest solrRequest) throws IOException {
+            writeTag(MAP, 4);
+            writeExternString("params");
+            writeVal(solrRequest.getParams());
+            writeExternString("deletes");
+            writeDeletes(solrRequest);
+            writeExternString("deleteQuery");
+            writeVal(solrRequest.getDeleteQuery());
+            // the documents go last, so that the deserializer can decode everything else without them
+            writeExternString("docs");
+            Map<SolrInputDocument, Map<String, Object>> docs = solrRequest.getDocumentsMap();
+            if (docs == null) {
+                writeVal(null);
+            } else {
+                writeTag(ARR, docs.size());
+                writeDocuments(docs.keySet());
+            }
+        }
+
+        /**
+         * Writes the request in the javabin format read by Solr's update handler, see JavaBinUpdateRequestCodec:
+         * the params, the deletes, and the documents last, as an iterator that the update handler streams. The
+         * number of documents is added for the consumer, the update handler ignores it.
+         */
+        private void writeUpdateFormat(UpdateRequest solrRequest) throws IOException {
+            writeTag(NAMED_LST, 5);
+            writeExternString("params");
+            // the update handler expects params, even empty
+            NamedList<Object> params = new NamedList<>();
+            if (solrRequest.getParams() != null) {
+                Iterator<String> names = solrRequest.getParams().getParameterNamesIterator();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    for (String value : solrRequest.getParams().getParams(name)) {
+                        params.add(name, value);
+                    }
+                }
+            }
+            writeVal(params);
+            writeExternString("delById");
+            writeDeletes(solrRequest);
+            writeExternString("delByQ");
+            writeVal(solrRequest.getDeleteQuery());
+            Map<SolrInputDocument, Map<String, Object>> docs = solrRequest.getDocumentsMap();
+            writeExternString("numDocs");
+            writeVal(docs == null ? 0 : docs.size());
+            writeExternString("docs");
+            writeTag(ITERATOR);
+            if (docs != null) {
+                writeDocuments(docs.keySet());
+            }
+            writeTag(END);
+        }
+
+        private void writeDocuments(Collection<SolrInputDocument> docs) throws IOException {
+            if (deferCapturedDocuments && !docs.isEmpty()) {
+                long capturedBytes = 0;
+                for (SolrInputDocument doc : docs) {
+                    if (!(doc instanceof CapturedSolrInputDocument)) {
+                        capturedBytes = -1;
+                        break;
+                    }
+                    capturedBytes += ((CapturedSolrInputDocument) doc).getSizeInBytes();
+                }
+                if (capturedBytes >= 0 && capturedBytes < Integer.MAX_VALUE / 2) {
+                    daos.flushBuffer();
+                    docsOffset = out.size();
+                    deferredBytes = (int) capturedBytes;
+                    deferredDocs = docs;
+                    return;
+                }
+            }
+            for (SolrInputDocument doc : docs) {
+                writeDocument(doc);
+            }
+        }
+
+        /**
+         * Writes a document, a document captured by the producer as it is.
+         */
+        private void writeDocument(SolrInputDocument doc) throws IOException {
+            if (doc instanceof CapturedSolrInputDocument) {
+                ((CapturedSolrInputDocument) doc).writeTo(daos);
+            } else {
+                writeSolrInputDocument(doc);
+            }
+        }
+
+        private void writeDeletes(UpdateRequest solrRequest) throws IOException {
+            Map<String, Map<String, Object>> deletes = solrRequest.getDeleteByIdMap();
+            if (deletes == null) {
+                writeVal(null);
+                return;
+            }
+            writeTag(ARR, deletes.size());
+            for (String id : deletes.keySet()) {
+                writeVal(id);
+            }
+        }
     }
 
     /**
@@ -152,10 +503,14 @@ public class MirroredSolrRequestSerializer implements Serializer<MirroredSolrReq
 
     private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
         ExposedByteArrayOutputStream() {
-            super();
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        int capacity() {
+            return buf.length;
         }
 
-        byte[] byteArray() {
+        byte[] buffer() {
             return buf;
         }
     }
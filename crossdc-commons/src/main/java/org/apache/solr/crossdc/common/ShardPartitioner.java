@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.common;
+
+import org.apache.solr.common.cloud.DocRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the Kafka partition of the records mirrored from a shard, see {@link KafkaCrossDcConf#PARTITION_STRATEGY}.
+ * <p>
+ * A producer only mirrors the updates of the shard it leads, so the records of a shard carry all the updates of its
+ * docs. With the {@code shard} strategy, the records are keyed by collection and shard, and the partition of a shard
+ * is the one mapped to it by {@link KafkaCrossDcConf#SHARD_PARTITION_MAP}, or else the partition covering the middle
+ * of the hash range of the shard, when the hash space of the {@link DocRouter} is split evenly between the partitions.
+ * With evenly split shards and at least as many partitions as shards, each partition carries the updates of one shard
+ * at most, and the updates of a doc stay in order in their partition. Without a range, e.g. for the implicit router,
+ * Kafka hashes the key.
+ */
+public class ShardPartitioner {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String NONE = "none";
+    public static final String SHARD = "shard";
+
+    private final boolean enabled;
+    private final Map<String, Integer> mapping;
+
+    /**
+     * @param strategy {@link #NONE} or {@link #SHARD}
+     * @param mapping  comma separated {@code collection/shard:partition} entries, or null
+     */
+    public ShardPartitioner(String strategy, String mapping) {
+        String s = strategy == null ? NONE : strategy.trim().toLowerCase(Locale.ROOT);
+        if (!NONE.equals(s) && !SHARD.equals(s)) {
+            throw new IllegalArgumentException("Invalid " + KafkaCrossDcConf.PARTITION_STRATEGY + " " + strategy
+                + ", expected " + NONE + " or " + SHARD);
+        }
+        this.enabled = SHARD.equals(s);
+        this.mapping = parseMapping(mapping);
+    }
+
+    private static Map<String, Integer> parseMapping(String mapping) {
+        if (mapping == null || mapping.isBlank()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> parsed = new HashMap<>();
+        for (String entry : mapping.split(",")) {
+            int sep = entry.lastIndexOf(':');
+            try {
+                if (sep < 0) {
+                    throw new NumberFormatException("no partition");
+                }
+                int partition = Integer.parseInt(entry.substring(sep + 1).trim());
+                if (partition < 0) {
+                    throw new NumberFormatException("negative partition");
+                }
+                parsed.put(entry.substring(0, sep).trim(), partition);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + KafkaCrossDcConf.SHARD_PARTITION_MAP + " entry " + entry
+                    + ", expected collection/shard:partition", e);
+            }
+        }
+        return parsed;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the key of the records of the shard.
+     */
+    public static String key(String collection, String shard) {
+        return collection + "/" + shard;
+    }
+
+    /**
+     * Returns the partition of the records of the shard, or null to let Kafka hash the key.
+     *
+     * @param range          the hash range of the shard, or null
+     * @param numPartitions  the number of partitions of the topic
+     */
+    public Integer partition(String collection, String shard, DocRouter.Range range, int numPartitions) {
+        Integer mapped = mapping.get(key(collection, shard));
+        if (mapped != null) {
+            if (mapped < numPartitions) {
+                return mapped;
+            }
+            log.warn("Partition {} mapped to {} does not exist, the topic has {} partitions", mapped, key(collection, shard),
+                numPartitions);
+        }
+        return range == null ? null : rangePartition(range, numPartitions);
+    }
+
+    /**
+     * Returns the partition covering the middle of the hash range, the hash space being split evenly.
+     */
+    static int rangePartition(DocRouter.Range range, int numPartitions) {
+        long middle = ((long) range.min + range.max) / 2;
+        // 0 to 2^32 - 1, times the number of partitions fits in a long
+        long offset = middle - Integer.MIN_VALUE;
+        return (int) ((offset * numPartitions) >>> 32);
+    }
+}
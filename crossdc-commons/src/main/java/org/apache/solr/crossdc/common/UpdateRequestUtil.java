@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.common;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts and copies the updates of an update request: its documents, deletes by id and deletes by query.
+ */
+public class UpdateRequestUtil {
+
+    public static int countUpdates(UpdateRequest request) {
+        Map<SolrInputDocument, Map<String, Object>> docs = request.getDocumentsMap();
+        List<String> deletes = request.getDeleteById();
+        List<String> deleteByQuery = request.getDeleteQuery();
+        return (docs == null ? 0 : docs.size()) + (deletes == null ? 0 : deletes.size()) + (deleteByQuery == null ? 0 : deleteByQuery.size());
+    }
+
+    /**
+     * Adds the updates of the source request to the target request, in order, and returns their number.
+     */
+    public static int copyUpdates(UpdateRequest source, UpdateRequest target) {
+        int numUpdates = 0;
+        // getDocuments() copies the documents into a new list, read the map directly
+        Map<SolrInputDocument, Map<String, Object>> docs = source.getDocumentsMap();
+        if (docs != null) {
+            for (SolrInputDocument doc : docs.keySet()) {
+                target.add(doc);
+            }
+            numUpdates += docs.size();
+        }
+        List<String> deletes = source.getDeleteById();
+        if (deletes != null) {
+            target.deleteById(deletes);
+            numUpdates += deletes.size();
+        }
+        List<String> deleteByQuery = source.getDeleteQuery();
+        if (deleteByQuery != null) {
+            for (String query : deleteByQuery) {
+                target.deleteByQuery(query);
+            }
+            numUpdates += deleteByQuery.size();
+        }
+        return numUpdates;
+    }
+}
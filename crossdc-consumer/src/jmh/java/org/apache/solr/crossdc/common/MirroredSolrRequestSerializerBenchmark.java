@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.common;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the serialization of a record as the serializer used to do it, with a new codec, map and growing buffer
+ * per record returning the whole buffer, and with the pooled buffer and the envelope written directly. The
+ * {@code serializedBytes} and {@code records} counters give the bytes shipped per record, run with
+ * {@code -Pjmh.args="MirroredSolrRequestSerializerBenchmark -prof gc"} to see the bytes allocated per record
+ * ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MirroredSolrRequestSerializerBenchmark {
+
+    @Param({"1", "100"})
+    public int docsPerRecord;
+
+    private final MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+    private MirroredSolrRequest request;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RecordSize {
+        public long serializedBytes;
+        public long records;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            serializedBytes = 0;
+            records = 0;
+        }
+
+        byte[] count(byte[] data) {
+            serializedBytes += data.length;
+            records++;
+            return data;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        UpdateRequest updateRequest = new UpdateRequest();
+        for (int i = 0; i < docsPerRecord; i++) {
+            SolrInputDocument doc = new SolrInputDocument("id", "doc-" + i);
+            doc.addField("title_s", "a mirrored document " + i);
+            doc.addField("count_i", i);
+            updateRequest.add(doc);
+        }
+        updateRequest.deleteById("deleted-" + docsPerRecord);
+        updateRequest.setParams(new ModifiableSolrParams()
+            .add("collection", "collection1")
+            .add("commitWithin", "1000")
+            .add("mirror.shouldMirror", "false"));
+        request = new MirroredSolrRequest(updateRequest);
+    }
+
+    @Benchmark
+    public byte[] legacy(RecordSize size) throws IOException {
+        return size.count(legacySerialize(request));
+    }
+
+    @Benchmark
+    public byte[] pooled(RecordSize size) {
+        return size.count(serializer.serialize("topic", request));
+    }
+
+    private static byte[] legacySerialize(MirroredSolrRequest request) throws IOException {
+        UpdateRequest solrRequest = (UpdateRequest) request.getSolrRequest();
+        try (JavaBinCodec codec = new JavaBinCodec(null)) {
+            LegacyByteArrayOutputStream baos = new LegacyByteArrayOutputStream();
+            Map<String, Object> map = new HashMap<>(8);
+            map.put("params", solrRequest.getParams());
+            map.put("docs", solrRequest.getDocuments());
+            map.put("deletes", solrRequest.getDeleteById());
+            map.put("deleteQuery", solrRequest.getDeleteQuery());
+            codec.marshal(map, baos);
+            return baos.byteArray();
+        }
+    }
+
+    private static final class LegacyByteArrayOutputStream extends ByteArrayOutputStream {
+        byte[] byteArray() {
+            return buf;
+        }
+    }
+}
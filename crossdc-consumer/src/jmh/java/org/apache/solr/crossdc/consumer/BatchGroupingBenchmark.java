@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.consumer;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.crossdc.common.MirroredSolrRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per record cost of deciding whether a record can join the current batch, by comparing the params
+ * as NamedLists as the poll loop used to do, or by comparing the precomputed params keys. Run with
+ * {@code -Pjmh.args="BatchGroupingBenchmark -prof gc"} to see the allocation rate of each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchGroupingBenchmark {
+
+    private static final int NUM_REQUESTS = 64;
+
+    private final MirroredSolrRequest[] requests = new MirroredSolrRequest[NUM_REQUESTS];
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            UpdateRequest updateRequest = new UpdateRequest();
+            updateRequest.add("id", Integer.toString(i));
+            // mostly equal params, a new batch every 16 requests
+            updateRequest.setParams(new ModifiableSolrParams()
+                .add("collection", "collection" + (i / 16))
+                .add("commitWithin", "1000")
+                .add("mirror.shouldMirror", "false"));
+            requests[i] = new MirroredSolrRequest(updateRequest);
+            requests[i].getParamsKey();
+        }
+    }
+
+    @Benchmark
+    public int namedListEquals() {
+        int batches = 0;
+        ModifiableSolrParams lastParams = null;
+        for (MirroredSolrRequest request : requests) {
+            ModifiableSolrParams params = (ModifiableSolrParams) request.getSolrRequest().getParams();
+            if (lastParams != null && !lastParams.toNamedList().equals(params.toNamedList())) {
+                batches++;
+            }
+            lastParams = params;
+        }
+        return batches;
+    }
+
+    @Benchmark
+    public int paramsKeyEquals() {
+        int batches = 0;
+        String lastParamsKey = null;
+        for (MirroredSolrRequest request : requests) {
+            String paramsKey = request.getParamsKey();
+            if (lastParamsKey != null && !lastParamsKey.equals(paramsKey)) {
+                batches++;
+            }
+            lastParamsKey = paramsKey;
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.consumer;
+
+import org.apache.kafka.common.TopicPartition;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of registering and completing work units on a single partition when many
+ * worker threads complete them concurrently, which is the contended path of the offset tracking.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class PartitionManagerBenchmark {
+
+    private final TopicPartition partition = new TopicPartition("benchmark-topic", 0);
+    private long nextOffset;
+    private PartitionManager.PartitionWork partitionWork;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        partitionWork = new PartitionManager.PartitionWork();
+        nextOffset = 0;
+    }
+
+    @Benchmark
+    @Group("tracker")
+    @GroupThreads(8)
+    public long registerAndComplete() {
+        PartitionManager.WorkUnit workUnit = new PartitionManager.WorkUnit(partition);
+        workUnit.addPending();
+        synchronized (partitionWork) {
+            // registration happens in offset order on the poll thread, keep that order here too
+            workUnit.nextOffset = ++nextOffset;
+            partitionWork.register(workUnit);
+        }
+        workUnit.complete(null);
+        return partitionWork.completedOffset.get();
+    }
+
+    @Benchmark
+    @Group("tracker")
+    @GroupThreads(1)
+    public int pollThreadCheck() {
+        return partitionWork.partitionQueue.isEmpty() ? 0 : 1;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.consumer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sizes the update requests sent to each target collection. Without adaptive sizing every request is limited to
+ * solrBatchMaxDocs updates. With adaptive sizing the limit of each collection follows an AIMD (additive increase,
+ * multiplicative decrease) control: it starts at solrBatchMaxDocs, is halved after a request that failed or took
+ * longer than the target latency, and grows by a small step after a request that used most of the limit and
+ * completed in time. The limit always stays between solrBatchMinDocs and solrBatchMaxDocs, and the current limit
+ * of each collection is exposed as the {@code solr-batch-max-docs.<collection>} gauge.
+ */
+public class AdaptiveBatchSizer {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // The limit grows by this fraction of solrBatchMaxDocs after each fast request.
+    private static final int INCREASE_DIVISOR = 50;
+
+    private final MetricRegistry metrics;
+    private final boolean adaptive;
+    private final int minDocs;
+    private final int maxDocs;
+    private final int increaseStep;
+    private final long targetLatencyNanos;
+    private final ConcurrentHashMap<String, AtomicInteger> limits = new ConcurrentHashMap<>();
+
+    /**
+     * @param metrics         the registry of the limit gauges
+     * @param adaptive        whether the limits adapt to the observed latencies and errors
+     * @param minDocs         the lowest adaptive limit
+     * @param maxDocs         the highest limit, and the fixed limit when not adaptive
+     * @param targetLatencyMs requests slower than this shrink the limit
+     */
+    public AdaptiveBatchSizer(MetricRegistry metrics, boolean adaptive, int minDocs, int maxDocs, long targetLatencyMs) {
+        if (minDocs < 1 || minDocs > maxDocs) {
+            throw new IllegalArgumentException("Invalid batch size limits min=" + minDocs + " max=" + maxDocs);
+        }
+        this.metrics = metrics;
+        this.adaptive = adaptive;
+        this.minDocs = minDocs;
+        this.maxDocs = maxDocs;
+        this.increaseStep = Math.max(1, maxDocs / INCREASE_DIVISOR);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+    }
+
+    /**
+     * Returns the maximum number of updates of a request to the collection.
+     */
+    public int maxDocs(String collection) {
+        if (!adaptive) {
+            return maxDocs;
+        }
+        return limit(collection).get();
+    }
+
+    /**
+     * Adapts the limit of the collection after a request completed. Called concurrently by the workers.
+     *
+     * @param collection   the target collection
+     * @param numUpdates   the number of updates of the request
+     * @param latencyNanos the time Solr took to process the request, excluding any backoff
+     * @param success      whether the request succeeded
+     */
+    public void onCompleted(String collection, int numUpdates, long latencyNanos, boolean success) {
+        if (!adaptive) {
+            return;
+        }
+        AtomicInteger limit = limit(collection);
+        if (!success || latencyNanos > targetLatencyNanos) {
+            int newLimit = limit.updateAndGet(l -> Math.max(minDocs, l / 2));
+            if (log.isDebugEnabled()) {
+                log.debug("Decreased batch size limit of collection={} to {} success={} latencyMs={}", collection, newLimit,
+                    success, TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+            }
+        } else if (numUpdates * 2 >= limit.get()) {
+            // only requests close to the limit tell that a larger limit would still be fast enough
+            limit.updateAndGet(l -> Math.min(maxDocs, l + increaseStep));
+        }
+    }
+
+    private AtomicInteger limit(String collection) {
+        AtomicInteger limit = limits.get(collection);
+        if (limit == null) {
+            AtomicInteger created = new AtomicInteger(maxDocs);
+            limit = limits.putIfAbsent(collection, created);
+            if (limit == null) {
+                limit = created;
+                // replace the gauge of a previous consumer instance sharing the registry
+                String name = "solr-batch-max-docs." + collection;
+                metrics.remove(name);
+                metrics.register(name, (Gauge<Integer>) created::get);
+            }
+        }
+        return limit;
+    }
+}
@@ -8,30 +8,41 @@ import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.errors.WakeupException;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStreamBase;
 import org.apache.solr.common.util.IOUtils;
-import org.apache.solr.common.util.NamedList;
 import org.apache.solr.crossdc.common.*;
 import org.apache.solr.crossdc.messageprocessor.SolrMessageProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.lang.invoke.MethodHandles;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 /**
  * This is a Java class called KafkaCrossDcConsumer, which is part of the Apache Solr framework.
  * It consumes messages from Kafka and mirrors them into a Solr instance. It uses a KafkaConsumer
  * object to subscribe to one or more topics and receive ConsumerRecords that contain MirroredSolrRequest
  * objects. The SolrMessageProcessor handles each MirroredSolrRequest and sends the resulting
- * UpdateRequest to the CloudSolrClient for indexing. A ThreadPoolExecutor is used to handle the update
- * requests asynchronously. The KafkaCrossDcConsumer also handles offset management, committing offsets
- * to Kafka and can seek to specific offsets for error recovery. The class provides methods to start and
- * top the consumer thread.
+ * UpdateRequest to the CloudSolrClient for indexing. Each assigned partition has its own ordered lane
+ * managed by the PartitionManager, so the update requests of different partitions are processed in parallel
+ * while the requests of one partition keep their order. The KafkaCrossDcConsumer also handles offset
+ * management, committing offsets to Kafka and can seek to specific offsets for error recovery. The class
+ * provides methods to start and top the consumer thread.
  */
 public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
   private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -48,13 +59,28 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
 
   private final CloudSolrClient solrClient;
 
-   private final ThreadPoolExecutor executor;
+  // Client of the asynchronous submission path, null when the batches are processed synchronously.
+  private final Http2SolrClient asyncSolrClient;
+  private final boolean isolateFailures;
+  private final int isolateMaxRequests;
+  // Whether the batches of records in the javabin update format are forwarded to Solr without decoding them.
+  private final boolean passThrough;
 
+  private final RetryTopics retryTopics;
+
+  private final ExecutorService executor;
 
-  private PartitionManager partitionManager;
 
-  private BlockingQueue<Runnable> queue = new BlockingQueue<>(10);
+  private PartitionManager partitionManager;
 
+  private final boolean mergePartitionBatches;
+  private final boolean compaction;
+  // Unique key field of each compacted or routed collection, read from its schema.
+  private final Map<String,String> uniqueKeys = new ConcurrentHashMap<>();
+  // When to read the unique key of a collection again after failing to read it.
+  private final Map<String,Long> uniqueKeyRetryNanos = new ConcurrentHashMap<>();
+  private final long solrBatchMaxBytes;
+  private final AdaptiveBatchSizer batchSizer;
 
 
   /**
@@ -64,6 +90,7 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
   public KafkaCrossDcConsumer(KafkaCrossDcConf conf, CountDownLatch startLatch) {
 
     this.topicNames = conf.get(KafkaCrossDcConf.TOPIC_NAME).split(",");
+    this.retryTopics = new RetryTopics(conf);
     this.startLatch = startLatch;
     final Properties kafkaConsumerProps = new Properties();
 
@@ -91,19 +118,25 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
     KafkaCrossDcConf.addSecurityProps(conf, kafkaConsumerProps);
 
     kafkaConsumerProps.putAll(conf.getAdditionalProperties());
-    int threads = conf.getInt(KafkaCrossDcConf.CONSUMER_PROCESSING_THREADS);
+    executor = createExecutor(conf);
 
-    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
-                t.setName("KafkaCrossDcConsumerWorker");
-                return t;
-            }
-    });
-    executor.prestartAllCoreThreads();
+    mergePartitionBatches = conf.getBool(KafkaCrossDcConf.MERGE_PARTITION_BATCHES);
+    solrBatchMaxBytes = conf.getInt(KafkaCrossDcConf.SOLR_BATCH_MAX_BYTES);
+    batchSizer = new AdaptiveBatchSizer(metrics, conf.getBool(KafkaCrossDcConf.SOLR_BATCH_ADAPTIVE),
+        conf.getInt(KafkaCrossDcConf.SOLR_BATCH_MIN_DOCS), conf.getInt(KafkaCrossDcConf.SOLR_BATCH_MAX_DOCS),
+        conf.getInt(KafkaCrossDcConf.SOLR_BATCH_TARGET_LATENCY_MS));
 
     solrClient = createSolrClient(conf);
+    compaction = conf.getBool(KafkaCrossDcConf.SOLR_BATCH_COMPACTION);
+    asyncSolrClient = conf.getBool(KafkaCrossDcConf.CONSUMER_ASYNC_SUBMISSION) ? createAsyncSolrClient(conf) : null;
+    isolateFailures = conf.getBool(KafkaCrossDcConf.SOLR_BATCH_ISOLATE_FAILURES);
+    isolateMaxRequests = conf.getInt(KafkaCrossDcConf.SOLR_BATCH_ISOLATE_MAX_REQUESTS);
+    boolean passThroughRequested = conf.getBool(KafkaCrossDcConf.SOLR_PASS_THROUGH);
+    passThrough = passThroughRequested && !isolateFailures && !compaction;
+    if (passThroughRequested && !passThrough) {
+      log.warn("{} is ignored along with {} or {}, which need the decoded documents", KafkaCrossDcConf.SOLR_PASS_THROUGH,
+          KafkaCrossDcConf.SOLR_BATCH_ISOLATE_FAILURES, KafkaCrossDcConf.SOLR_BATCH_COMPACTION);
+    }
 
     messageProcessor = createSolrMessageProcessor();
 
@@ -111,7 +144,9 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
 
     log.info("Creating Kafka consumer with configuration {}", kafkaConsumerProps);
     kafkaConsumer = createKafkaConsumer(kafkaConsumerProps);
-    partitionManager = new PartitionManager(kafkaConsumer);
+    partitionManager = new PartitionManager(kafkaConsumer, conf.getInt(KafkaCrossDcConf.OFFSET_COMMIT_INTERVAL_MS),
+        conf.getInt(KafkaCrossDcConf.OFFSET_COMMIT_MAX_WORK_UNITS), conf.getInt(KafkaCrossDcConf.PARTITION_PAUSE_IN_FLIGHT_BATCHES),
+        conf.getInt(KafkaCrossDcConf.PARTITION_RESUME_IN_FLIGHT_BATCHES), retryTopics.getTopics());
     // Create producer for resubmitting failed requests
     log.info("Creating Kafka resubmit producer");
     this.kafkaMirroringSink = createKafkaMirroringSink(conf);
@@ -119,8 +154,39 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
 
   }
 
+  /**
+   * Creates the executor running the partition lanes. With consumerVirtualThreads each batch runs on its own virtual
+   * thread, at most consumerMaxInFlightBatches at a time, otherwise or if the JDK does not support virtual threads
+   * the batches run on a pool of platform threads.
+   */
+  private static ExecutorService createExecutor(KafkaCrossDcConf conf) {
+    if (conf.getBool(KafkaCrossDcConf.CONSUMER_VIRTUAL_THREADS)) {
+      int maxInFlightBatches = conf.getInt(KafkaCrossDcConf.CONSUMER_MAX_IN_FLIGHT_BATCHES);
+      ExecutorService virtualThreadExecutor = VirtualThreadExecutor.create("KafkaCrossDcConsumerWorker-", maxInFlightBatches);
+      if (virtualThreadExecutor != null) {
+        log.info("Running the consumer batches on virtual threads, maxInFlightBatches={}", maxInFlightBatches);
+        return virtualThreadExecutor;
+      }
+      log.warn("Virtual threads are not supported by this JDK, falling back to a pool of platform threads");
+    }
+    int threads = conf.getInt(KafkaCrossDcConf.CONSUMER_PROCESSING_THREADS);
+
+    // The pool grows so that every partition lane can run in parallel, consumerProcessingThreads are kept alive.
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("KafkaCrossDcConsumerWorker");
+                return t;
+            }
+    });
+    pool.prestartAllCoreThreads();
+    return pool;
+  }
+
   protected SolrMessageProcessor createSolrMessageProcessor() {
-    return new SolrMessageProcessor(solrClient, resubmitRequest -> 0L);
+    return new SolrMessageProcessor(solrClient, asyncSolrClient, isolateFailures ? isolateMaxRequests : 0,
+        this::uniqueKeyField, resubmitRequest -> 0L);
   }
 
   public KafkaConsumer<String,MirroredSolrRequest> createKafkaConsumer(Properties properties) {
@@ -134,11 +200,13 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
    * 3. Send the request to the MirroredSolrRequestHandler that has the processing, retry, error handling logic.
    */
   @Override public void run() {
-    log.info("About to start Kafka consumer thread, topics={}", Arrays.asList(topicNames));
+    List<String> topics = new ArrayList<>(Arrays.asList(topicNames));
+    topics.addAll(retryTopics.getTopics());
+    log.info("About to start Kafka consumer thread, topics={}", topics);
 
     try {
 
-      kafkaConsumer.subscribe(Arrays.asList((topicNames)));
+      kafkaConsumer.subscribe(topics, partitionManager);
 
       log.info("Consumer started");
       startLatch.countDown();
@@ -147,6 +215,12 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
         //no-op within this loop: everything is done in pollAndProcessRequests method defined above.
       }
 
+      try {
+        partitionManager.drainAndCommit();
+      } catch (Exception e) {
+        log.warn("Failed to commit the final offsets", e);
+      }
+
       log.info("Closed kafka consumer. Exiting now.");
       try {
         kafkaConsumer.close();
@@ -161,6 +235,7 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
       }
     } finally {
       IOUtils.closeQuietly(solrClient);
+      IOUtils.closeQuietly(asyncSolrClient);
     }
 
   }
@@ -185,71 +260,26 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
         log.trace("poll return {} records", records.count());
       }
 
-      UpdateRequest solrReqBatch = null;
-
-      ConsumerRecord<String,MirroredSolrRequest> lastRecord = null;
+      List<List<PartitionBatch>> batchesToMerge = mergePartitionBatches ? new ArrayList<>() : null;
 
       for (TopicPartition partition : records.partitions()) {
         List<ConsumerRecord<String,MirroredSolrRequest>> partitionRecords = records.records(partition);
+        if (retryTopics.isRetryTopic(partition.topic())) {
+          partitionRecords = dueRecords(partition, partitionRecords);
+          if (partitionRecords.isEmpty()) {
+            continue;
+          }
+        }
 
-        PartitionManager.PartitionWork partitionWork = partitionManager.getPartitionWork(partition);
-        PartitionManager.WorkUnit workUnit = new PartitionManager.WorkUnit(partition);
-        workUnit.nextOffset = PartitionManager.getOffsetForPartition(partitionRecords);
-        partitionWork.partitionQueue.add(workUnit);
         try {
-          ModifiableSolrParams lastParams = null;
-          NamedList lastParamsAsNamedList = null;
-          solrReqBatch = new UpdateRequest();
-          for (ConsumerRecord<String,MirroredSolrRequest> requestRecord : partitionRecords) {
-            if (log.isTraceEnabled()) {
-              log.trace("Fetched record from topic={} partition={} key={} value={}", requestRecord.topic(), requestRecord.partition(), requestRecord.key(),
-                  requestRecord.value());
-            }
-
-            lastRecord = requestRecord;
-            MirroredSolrRequest req = requestRecord.value();
-            UpdateRequest solrReq = (UpdateRequest) req.getSolrRequest();
-            ModifiableSolrParams params = solrReq.getParams();
-            if (log.isTraceEnabled()) {
-              log.trace("params={}", params);
-            }
-
-            if (lastParams != null && !lastParams.toNamedList().equals(params.toNamedList())) {
-              if (log.isTraceEnabled()) {
-                log.trace("SolrParams have changed, starting new UpdateRequest, params={}", params);
-              }
-              lastParamsAsNamedList = null;
-              sendBatch(solrReqBatch, lastRecord, workUnit);
-              solrReqBatch = new UpdateRequest();
-              workUnit = new PartitionManager.WorkUnit(partition);
-              workUnit.nextOffset = PartitionManager.getOffsetForPartition(partitionRecords);
-              partitionWork.partitionQueue.add(workUnit);
-            }
-
-            lastParams = solrReq.getParams();
-            solrReqBatch.setParams(params);
-            if (lastParamsAsNamedList == null) {
-              lastParamsAsNamedList = lastParams.toNamedList();
-            }
-
-            List<SolrInputDocument> docs = solrReq.getDocuments();
-            if (docs != null) {
-              solrReqBatch.add(docs);
-            }
-            List<String> deletes = solrReq.getDeleteById();
-            if (deletes != null) {
-              solrReqBatch.deleteById(deletes);
-            }
-            List<String> deleteByQuery = solrReq.getDeleteQuery();
-            if (deleteByQuery != null) {
-              for (String delByQuery : deleteByQuery) {
-                solrReqBatch.deleteByQuery(delByQuery);
-              }
+          List<PartitionBatch> partitionBatches = groupPartitionRecords(partition, partitionRecords);
+          if (batchesToMerge != null) {
+            batchesToMerge.add(partitionBatches);
+          } else {
+            for (PartitionBatch batch : partitionBatches) {
+              sendBatch(batch.solrReqBatch, batch.lastRecord, partitionManager.newWorkUnit(partition, batch.lastRecord.offset() + 1));
             }
-
           }
-
-          sendBatch(solrReqBatch, lastRecord, workUnit);
           try {
             partitionManager.checkForOffsetUpdates(partition);
           } catch (Throwable e) {
@@ -277,6 +307,15 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
         }
       }
 
+      if (batchesToMerge != null && !batchesToMerge.isEmpty()) {
+        try {
+          sendMergedBatches(batchesToMerge);
+        } catch (Exception e) {
+          log.error("Exception occurred while merging partition batches, stopping the Consumer.", e);
+          return false;
+        }
+      }
+
       try {
         partitionManager.checkOffsetUpdates();
       } catch (Throwable e) {
@@ -299,41 +338,589 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
     return true;
   }
 
+  /**
+   * Returns the leading records of a retry topic partition that are due, those whose timestamp plus the minimum
+   * delay of the topic elapsed. The partition is deferred from the first record that is not due yet.
+   */
+  List<ConsumerRecord<String,MirroredSolrRequest>> dueRecords(TopicPartition partition, List<ConsumerRecord<String,MirroredSolrRequest>> partitionRecords) {
+    long delayMs = retryTopics.getDelayMs(partition.topic());
+    long nowMs = System.currentTimeMillis();
+    for (int i = 0; i < partitionRecords.size(); i++) {
+      ConsumerRecord<String,MirroredSolrRequest> requestRecord = partitionRecords.get(i);
+      long dueMs = requestRecord.timestamp() + delayMs;
+      if (dueMs > nowMs) {
+        partitionManager.defer(partition, requestRecord.offset(), dueMs - nowMs);
+        return partitionRecords.subList(0, i);
+      }
+    }
+    return partitionRecords;
+  }
+
+  /**
+   * Groups the consecutive records of a partition that have the same params into batches, in offset order. A batch
+   * is closed once adding the next record would exceed the max docs limit of its collection or solrBatchMaxBytes,
+   * a single record larger than the limits makes a batch on its own.
+   */
+  List<PartitionBatch> groupPartitionRecords(TopicPartition partition, List<ConsumerRecord<String,MirroredSolrRequest>> partitionRecords) {
+    List<PartitionBatch> batches = new ArrayList<>();
+    PartitionBatch batch = null;
+    for (ConsumerRecord<String,MirroredSolrRequest> requestRecord : partitionRecords) {
+      if (log.isTraceEnabled()) {
+        log.trace("Fetched record from topic={} partition={} key={} value={}", requestRecord.topic(), requestRecord.partition(), requestRecord.key(),
+            requestRecord.value());
+      }
+
+      // a lazily deserialized request is only decoded here if the batch is compacted, otherwise its documents are
+      // decoded on the worker thread sending the batch
+      MirroredSolrRequest req = requestRecord.value();
+      if (log.isTraceEnabled()) {
+        log.trace("params={}", req.getParams());
+      }
+
+      // the batch keeps the key of its first record, the following records are compared with it
+      String paramsKey = req.getParamsKey();
+      if (batch != null && !batch.paramsKey.equals(paramsKey)) {
+        if (log.isTraceEnabled()) {
+          log.trace("SolrParams have changed, starting new UpdateRequest, params={}", req.getParams());
+        }
+        batch = null;
+      }
+      if (batch != null && (batch.numUpdates + req.getNumUpdates() > batch.maxDocs
+          || batch.sizeBytes + Math.max(0, requestRecord.serializedValueSize()) > solrBatchMaxBytes)) {
+        if (log.isTraceEnabled()) {
+          log.trace("Batch limits reached, starting new UpdateRequest, numUpdates={} sizeBytes={}", batch.numUpdates, batch.sizeBytes);
+        }
+        batch = null;
+      }
+      if (batch != null && !batch.canAppendInOrder(req)) {
+        if (log.isTraceEnabled()) {
+          log.trace("Compacted batch would reorder updates, starting new UpdateRequest");
+        }
+        batch = null;
+      }
+      if (batch == null) {
+        String collection = PartitionBatch.collectionOf(null, req.getParams());
+        String idField = compaction ? uniqueKeyField(req.getParams() != null ? req.getParams().get("collection") : null) : null;
+        batch = new PartitionBatch(partition, paramsKey, collection, batchSizer.maxDocs(collection), idField);
+        batches.add(batch);
+      }
+      int compacted = batch.add(requestRecord);
+      if (compacted > 0) {
+        metrics.counter("compacted-updates").inc(compacted);
+      }
+    }
+    return batches;
+  }
+
+  /**
+   * Returns the unique key field of the collection, to compact its batches on and to route their updates to the shard
+   * leaders, or null to send them uncompacted and unrouted. The unique key is read from the schema of the collection
+   * once. Failing to read it, the batches of the collection are neither compacted nor routed, and the unique key is
+   * read again a minute later.
+   *
+   * @param collection the collection, or null for the default collection
+   */
+  String uniqueKeyField(String collection) {
+    String cacheKey = collection == null ? "" : collection;
+    String idField = uniqueKeys.get(cacheKey);
+    if (idField != null) {
+      return idField;
+    }
+    Long retryNanos = uniqueKeyRetryNanos.get(cacheKey);
+    if (retryNanos != null && System.nanoTime() - retryNanos < 0) {
+      return null;
+    }
+    try {
+      idField = readUniqueKey(collection);
+    } catch (Exception e) {
+      log.warn("Could not read the unique key of collection={}, its batches are neither compacted nor routed", collection, e);
+    }
+    if (idField == null) {
+      uniqueKeyRetryNanos.put(cacheKey, System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+      return null;
+    }
+    uniqueKeyRetryNanos.remove(cacheKey);
+    uniqueKeys.put(cacheKey, idField);
+    return idField;
+  }
+
+  protected String readUniqueKey(String collection) throws Exception {
+    return new SchemaRequest.UniqueKey().process(solrClient, collection).getUniqueKey();
+  }
+
+  /**
+   * Merges the batches of several partitions that have the same params, and so target the same collection, into
+   * larger update requests, within the max docs limit of the collection and solrBatchMaxBytes. The batches are merged in
+   * rounds, round r merging the r-th batch of each partition, so that a merged request contains at most one batch
+   * per partition and the batches of a partition are still submitted in offset order. Each source batch keeps its
+   * own work unit, completed when the merged request completes. Only the batches of the same topic are merged, the
+   * retry tier of a failed request being chosen from the topic of its records.
+   */
+  void sendMergedBatches(List<List<PartitionBatch>> batchesToMerge) {
+    Map<String,MergedBatch> mergedBatches = new LinkedHashMap<>();
+    boolean hasMoreRounds = true;
+    for (int round = 0; hasMoreRounds; round++) {
+      hasMoreRounds = false;
+      for (List<PartitionBatch> partitionBatches : batchesToMerge) {
+        if (round >= partitionBatches.size()) {
+          continue;
+        }
+        hasMoreRounds = true;
+        PartitionBatch batch = partitionBatches.get(round);
+        String mergeKey = batch.partition.topic() + '/' + batch.paramsKey;
+        MergedBatch merged = mergedBatches.get(mergeKey);
+        if (merged != null && !merged.canAdd(batch, batch.maxDocs, solrBatchMaxBytes)) {
+          flushMergedBatch(merged);
+          merged = null;
+        }
+        if (merged == null) {
+          merged = new MergedBatch();
+          mergedBatches.put(mergeKey, merged);
+        }
+        merged.batches.add(batch);
+        merged.numUpdates += batch.numUpdates;
+        merged.sizeBytes += batch.sizeBytes;
+      }
+      for (MergedBatch merged : mergedBatches.values()) {
+        flushMergedBatch(merged);
+      }
+      mergedBatches.clear();
+    }
+  }
+
+  private void flushMergedBatch(MergedBatch merged) {
+    List<PartitionBatch> batches = merged.batches;
+    PartitionBatch lastBatch = batches.get(batches.size() - 1);
+    if (batches.size() == 1) {
+      sendBatch(lastBatch.solrReqBatch, lastBatch.lastRecord, partitionManager.newWorkUnit(lastBatch.partition, lastBatch.lastRecord.offset() + 1));
+      return;
+    }
+    BatchUpdateRequest solrReqBatch = new BatchUpdateRequest();
+    List<PartitionManager.WorkUnit> workUnits = new ArrayList<>(batches.size());
+    for (PartitionBatch batch : batches) {
+      solrReqBatch.setParams(batch.solrReqBatch.getParams());
+      batch.copyTo(solrReqBatch);
+      workUnits.add(partitionManager.newWorkUnit(batch.partition, batch.lastRecord.offset() + 1));
+    }
+    if (log.isTraceEnabled()) {
+      log.trace("Merged {} partition batches, numUpdates={} sizeBytes={}", batches.size(), merged.numUpdates, merged.sizeBytes);
+    }
+    metrics.counter("merged-partition-batches").inc(batches.size());
+    submitBatch(solrReqBatch, lastBatch.lastRecord, workUnits);
+  }
+
   public void sendBatch(UpdateRequest solrReqBatch, ConsumerRecord<String,MirroredSolrRequest> lastRecord, PartitionManager.WorkUnit workUnit) {
+    submitBatch(solrReqBatch, lastRecord, Collections.singletonList(workUnit));
+  }
+
+  /**
+   * Submits an update request covering the work units of one or more partitions. The request runs once the
+   * previous batches of all these partitions completed, and its completion completes all the work units.
+   */
+  void submitBatch(UpdateRequest solrReqBatch, ConsumerRecord<String,MirroredSolrRequest> lastRecord, List<PartitionManager.WorkUnit> workUnits) {
     UpdateRequest finalSolrReqBatch = solrReqBatch;
-    Future<?> future = executor.submit(() -> {
-      try {
-        IQueueHandler.Result<MirroredSolrRequest> result = messageProcessor.handleItem(new MirroredSolrRequest(finalSolrReqBatch));
-
-        processResult(lastRecord, result);
-      } catch (MirroringException e) {
-        // We don't really know what to do here
-        log.error("Mirroring exception occurred while resubmitting to Kafka. We are going to stop the consumer thread now.", e);
-        throw new RuntimeException(e);
-      } finally {
-        executor.submit(() -> {
-          try {
-            partitionManager.checkForOffsetUpdates(workUnit.partition);
-          } catch (Throwable e) {
-            // already logging in checkForOffsetUpdates
+    // The completion of the returned future drives the lane and the offsets. The asynchronous path only starts the
+    // request on the executor, the synchronous path sends it on the executor. Both park a failed batch in the retry
+    // scheduler during its backoff, releasing the worker thread. A batch resubmitted to Kafka completes only once
+    // Kafka acknowledged it, so that its offsets are not committed before.
+    Supplier<CompletableFuture<Void>> batch = () -> {
+      long startNanos = System.nanoTime();
+      SolrRequest<?> request = finalSolrReqBatch;
+      if (finalSolrReqBatch instanceof BatchUpdateRequest) {
+        BatchUpdateRequest batchRequest = (BatchUpdateRequest) finalSolrReqBatch;
+        request = passThrough ? batchRequest.toPassThroughRequest() : null;
+        if (request != null) {
+          metrics.counter("pass-through-batches").inc();
+        } else {
+          batchRequest.decodeDeferred();
+          request = batchRequest;
+        }
+      }
+      MirroredSolrRequest mirroredSolrRequest = finalSolrReqBatch instanceof BatchUpdateRequest
+          ? ((BatchUpdateRequest) finalSolrReqBatch).toMirroredSolrRequest(request) : new MirroredSolrRequest(request);
+      CompletableFuture<IQueueHandler.Result<MirroredSolrRequest>> result = asyncSolrClient != null
+          ? messageProcessor.handleItemAsync(mirroredSolrRequest)
+          : messageProcessor.handleItemWithScheduledBackoff(mirroredSolrRequest);
+      return result.thenComposeAsync(r -> onBatchResult(finalSolrReqBatch, lastRecord, startNanos, r), executor);
+    };
+    partitionManager.submitAsync(batch, workUnits, executor);
+  }
+
+  private CompletableFuture<Void> onBatchResult(UpdateRequest solrReqBatch, ConsumerRecord<String,MirroredSolrRequest> lastRecord,
+      long startNanos, IQueueHandler.Result<MirroredSolrRequest> result) {
+    CompletableFuture<?> resubmitted;
+    try {
+      int numUpdates = solrReqBatch instanceof BatchUpdateRequest ? ((BatchUpdateRequest) solrReqBatch).numUpdates()
+          : UpdateRequestUtil.countUpdates(solrReqBatch);
+      // the latency of the Solr call, the whole handling of the batch includes the backoff of a failed one
+      long latencyNanos = result != null && result.latencyNanos() >= 0 ? result.latencyNanos() : System.nanoTime() - startNanos;
+      batchSizer.onCompleted(PartitionBatch.collectionOf(solrReqBatch), numUpdates,
+          latencyNanos, result != null && result.status() == IQueueHandler.ResultStatus.HANDLED);
+
+      if (result != null && result.newItem() != null && !(result.newItem().getSolrRequest() instanceof UpdateRequest)
+          && solrReqBatch instanceof BatchUpdateRequest) {
+        // a forwarded batch failed, the sink can only resubmit it decoded
+        ((BatchUpdateRequest) solrReqBatch).decodeDeferred();
+        MirroredSolrRequest failed = result.newItem();
+        result = new IQueueHandler.Result<>(result.status(), result.throwable(),
+            new MirroredSolrRequest(failed.getAttempt(), solrReqBatch, failed.getSubmitTimeNanos()));
+      }
+
+      resubmitted = processResult(lastRecord, result);
+    } catch (MirroringException e) {
+      // We don't really know what to do here
+      log.error("Mirroring exception occurred while resubmitting to Kafka. We are going to stop the consumer thread now.", e);
+      throw new RuntimeException(e);
+    }
+    // a failed delivery fails the lane like a failed hand off to the producer
+    return resubmitted.whenComplete((metadata, e) -> {
+      if (e != null) {
+        log.error("Kafka failed to acknowledge the resubmitted request. We are going to stop the consumer thread now.", e);
+      }
+    }).thenAccept(metadata -> {});
+  }
+
+  /**
+   * The consecutive records of a partition that have the same params, sent in a single update request unless it
+   * is merged with the batches of other partitions.
+   */
+  static class PartitionBatch {
+    final TopicPartition partition;
+    final String paramsKey;
+    final String collection;
+    // Max number of updates of the batch, taken from the batch sizer when the batch was created.
+    final int maxDocs;
+    final BatchUpdateRequest solrReqBatch = new BatchUpdateRequest();
+    ConsumerRecord<String,MirroredSolrRequest> lastRecord;
+    // Number of added documents, deletes by id and deletes by query.
+    int numUpdates;
+    // Serialized size of the records, as read from Kafka.
+    long sizeBytes;
+    // Unique key field when the batch is compacted, null otherwise.
+    private final String idField;
+    // The full document added last for each id since the last atomic update of that id, when compacted.
+    private final Map<String,SolrInputDocument> fullDocsById;
+    private boolean hasDeleteByQuery;
+
+    /**
+     * @param idField the unique key field to compact the batch on, or null to send every update
+     */
+    PartitionBatch(TopicPartition partition, String paramsKey, String collection, int maxDocs, String idField) {
+      this.partition = partition;
+      this.paramsKey = paramsKey;
+      this.collection = collection;
+      this.maxDocs = maxDocs;
+      this.idField = idField;
+      this.fullDocsById = idField != null ? new HashMap<>() : null;
+    }
+
+    /**
+     * Adds the updates of a record to the batch. A compacted batch keeps the last write for each id: a full
+     * document replaces the previous full document and delete by id of the same id, and a delete by id replaces the
+     * previous full document. Atomic updates, and documents with children, are always kept along with whatever
+     * precedes them.
+     *
+     * <p>
+     * The updates of a request that is not decoded yet are deferred when the batch is not compacted, see
+     * {@link BatchUpdateRequest}.
+     *
+     * @return the number of updates of the batch dropped by compaction
+     */
+    int add(ConsumerRecord<String,MirroredSolrRequest> requestRecord) {
+      MirroredSolrRequest req = requestRecord.value();
+      lastRecord = requestRecord;
+      sizeBytes += Math.max(0, requestRecord.serializedValueSize());
+      solrReqBatch.track(req);
+      solrReqBatch.setParams(toModifiable(req.getParams()));
+      if (idField == null) {
+        if (!req.isDecoded() || solrReqBatch.hasDeferred()) {
+          solrReqBatch.defer(req);
+          numUpdates += req.getNumUpdates();
+        } else {
+          numUpdates += UpdateRequestUtil.copyUpdates((UpdateRequest) req.getSolrRequest(), solrReqBatch);
+        }
+        return 0;
+      }
+      UpdateRequest solrReq = (UpdateRequest) req.getSolrRequest();
+      int compacted = 0;
+      Map<SolrInputDocument,Map<String,Object>> docs = solrReq.getDocumentsMap();
+      if (docs != null) {
+        for (SolrInputDocument doc : docs.keySet()) {
+          Object id = doc.getFieldValue(idField);
+          if (id != null) {
+            String key = id.toString();
+            if (isFullDocument(doc)) {
+              SolrInputDocument previous = fullDocsById.put(key, doc);
+              if (previous != null) {
+                solrReqBatch.getDocumentsMap().remove(previous);
+                compacted++;
+              }
+              Map<String,Map<String,Object>> deletes = solrReqBatch.getDeleteByIdMap();
+              if (deletes != null && deletes.remove(key) != null) {
+                compacted++;
+              }
+            } else {
+              // the previous updates of this id must be applied before the atomic update
+              fullDocsById.remove(key);
+            }
           }
-        });
+          solrReqBatch.add(doc);
+        }
       }
+      List<String> deletes = solrReq.getDeleteById();
+      if (deletes != null) {
+        for (String id : deletes) {
+          SolrInputDocument previous = fullDocsById.remove(id);
+          if (previous != null) {
+            solrReqBatch.getDocumentsMap().remove(previous);
+            compacted++;
+          }
+          solrReqBatch.deleteById(id);
+        }
+      }
+      List<String> deleteByQuery = solrReq.getDeleteQuery();
+      if (deleteByQuery != null && !deleteByQuery.isEmpty()) {
+        for (String delByQuery : deleteByQuery) {
+          solrReqBatch.deleteByQuery(delByQuery);
+        }
+        hasDeleteByQuery = true;
+      }
+      numUpdates = UpdateRequestUtil.countUpdates(solrReqBatch);
+      return compacted;
+    }
 
-    });
-    workUnit.workItems.add(future);
+    /**
+     * Returns whether the updates of the request can be added to a compacted batch without being reordered. Solr
+     * applies the documents of an update request before its deletes, so a batch cannot take documents or deletes by
+     * id after a delete by query, nor an atomic update of an id it deletes.
+     */
+    boolean canAppendInOrder(MirroredSolrRequest req) {
+      if (idField == null) {
+        return true;
+      }
+      UpdateRequest solrReq = (UpdateRequest) req.getSolrRequest();
+      Map<SolrInputDocument,Map<String,Object>> docs = solrReq.getDocumentsMap();
+      List<String> deletes = solrReq.getDeleteById();
+      if (hasDeleteByQuery && ((docs != null && !docs.isEmpty()) || (deletes != null && !deletes.isEmpty()))) {
+        return false;
+      }
+      Map<String,Map<String,Object>> batchDeletes = solrReqBatch.getDeleteByIdMap();
+      if (docs != null && batchDeletes != null && !batchDeletes.isEmpty()) {
+        for (SolrInputDocument doc : docs.keySet()) {
+          Object id = doc.getFieldValue(idField);
+          if (id != null && !isFullDocument(doc) && batchDeletes.containsKey(id.toString())) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns whether the document replaces the whole stored document: it is not an atomic update, whose field
+     * values are maps of operations, and has no child documents.
+     */
+    static boolean isFullDocument(SolrInputDocument doc) {
+      if (doc.hasChildDocuments()) {
+        return false;
+      }
+      for (SolrInputField field : doc) {
+        if (field.getValue() instanceof Map) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void copyTo(BatchUpdateRequest target) {
+      UpdateRequestUtil.copyUpdates(solrReqBatch, target);
+      target.deferAll(solrReqBatch);
+      target.track(solrReqBatch.attempt, solrReqBatch.submitTimeNanos);
+    }
+
+    /**
+     * Returns the collection targeted by the request, "default" for the default collection of the client.
+     */
+    static String collectionOf(UpdateRequest request) {
+      return collectionOf(request.getCollection(), request.getParams());
+    }
+
+    static String collectionOf(String collection, SolrParams params) {
+      if (collection == null && params != null) {
+        collection = params.get("collection");
+      }
+      return collection == null ? "default" : collection;
+    }
+
+    private static ModifiableSolrParams toModifiable(SolrParams params) {
+      if (params == null || params instanceof ModifiableSolrParams) {
+        return (ModifiableSolrParams) params;
+      }
+      return new ModifiableSolrParams(params);
+    }
   }
 
+  /**
+   * The update request of a batch. The requests added to the batch before their documents were decoded are kept
+   * as is, in order after the decoded updates, and decoded by the worker thread sending the batch, so that the poll
+   * thread only decodes the params and the number of updates of each record.
+   */
+  static class BatchUpdateRequest extends UpdateRequest {
+    private List<MirroredSolrRequest> deferred;
+    // Highest attempt of the batched requests, so that a failed batch is retried as its most retried request.
+    private int attempt = 1;
+    // Earliest known submit time of the batched requests, 0 if none is known, for the replication latency.
+    private long submitTimeNanos;
+
+    void track(MirroredSolrRequest req) {
+      track(req.getAttempt(), req.getSubmitTimeNanos());
+    }
+
+    void track(int attempt, long submitTimeNanos) {
+      this.attempt = Math.max(this.attempt, attempt);
+      if (submitTimeNanos > 0 && (this.submitTimeNanos == 0 || submitTimeNanos < this.submitTimeNanos)) {
+        this.submitTimeNanos = submitTimeNanos;
+      }
+    }
+
+    MirroredSolrRequest toMirroredSolrRequest(SolrRequest<?> request) {
+      return new MirroredSolrRequest(attempt, request, submitTimeNanos);
+    }
+
+    boolean hasDeferred() {
+      return deferred != null && !deferred.isEmpty();
+    }
+
+    void defer(MirroredSolrRequest req) {
+      if (deferred == null) {
+        deferred = new ArrayList<>();
+      }
+      deferred.add(req);
+    }
+
+    void deferAll(BatchUpdateRequest other) {
+      if (other.hasDeferred()) {
+        other.deferred.forEach(this::defer);
+      }
+    }
+
+    /**
+     * Returns the number of updates of this request, decoded or deferred.
+     */
+    int numUpdates() {
+      int numUpdates = UpdateRequestUtil.countUpdates(this);
+      if (deferred != null) {
+        for (MirroredSolrRequest req : deferred) {
+          numUpdates += req.getNumUpdates();
+        }
+      }
+      return numUpdates;
+    }
 
+    /**
+     * Returns a request forwarding the deferred requests to Solr's update handler as a single javabin content stream,
+     * their serialized forms concatenated, which the update handler reads one after the other. Returns null if some
+     * updates of this request are already decoded, or if a deferred request is not in the update handler format.
+     */
+    ContentStreamUpdateRequest toPassThroughRequest() {
+      if (deferred == null || UpdateRequestUtil.countUpdates(this) > 0) {
+        return null;
+      }
+      List<byte[]> bodies = new ArrayList<>(deferred.size());
+      for (MirroredSolrRequest req : deferred) {
+        byte[] body = req.getSerializedUpdate();
+        if (body == null) {
+          return null;
+        }
+        bodies.add(body);
+      }
+      ContentStreamUpdateRequest request = new ContentStreamUpdateRequest("/update");
+      if (getParams() != null) {
+        request.setParams(new ModifiableSolrParams(getParams()));
+      }
+      request.addContentStream(new JavabinContentStream(bodies));
+      return request;
+    }
 
-  void processResult(ConsumerRecord<String,MirroredSolrRequest> record, IQueueHandler.Result<MirroredSolrRequest> result) throws MirroringException {
+    /**
+     * Decodes the deferred requests and adds their updates to this request. Not called from the poll thread.
+     */
+    void decodeDeferred() {
+      if (deferred == null) {
+        return;
+      }
+      for (MirroredSolrRequest req : deferred) {
+        UpdateRequestUtil.copyUpdates((UpdateRequest) req.getSolrRequest(), this);
+      }
+      deferred = null;
+    }
+  }
+
+  /**
+   * Serialized update requests concatenated into a single javabin stream.
+   */
+  static class JavabinContentStream extends ContentStreamBase {
+    private final List<byte[]> bodies;
+
+    JavabinContentStream(List<byte[]> bodies) {
+      this.bodies = bodies;
+      long size = 0;
+      for (byte[] body : bodies) {
+        size += body.length;
+      }
+      this.size = size;
+      this.contentType = "application/javabin";
+    }
+
+    @Override
+    public InputStream getStream() {
+      List<InputStream> streams = new ArrayList<>(bodies.size());
+      for (byte[] body : bodies) {
+        streams.add(new ByteArrayInputStream(body));
+      }
+      return new SequenceInputStream(Collections.enumeration(streams));
+    }
+  }
+
+  /**
+   * Partition batches of the same topic with the same params merged into a single update request.
+   */
+  static class MergedBatch {
+    final List<PartitionBatch> batches = new ArrayList<>();
+    int numUpdates;
+    long sizeBytes;
+
+    boolean canAdd(PartitionBatch batch, int maxDocs, long maxBytes) {
+      return numUpdates + batch.numUpdates <= maxDocs && sizeBytes + batch.sizeBytes <= maxBytes;
+    }
+  }
+
+  /**
+   * Updates the metrics of the result and resubmits a failed request to Kafka.
+   *
+   * @return the future of the resubmitted request, completed when Kafka acknowledges it, or a completed future if
+   * the request was not resubmitted
+   */
+  CompletableFuture<?> processResult(ConsumerRecord<String,MirroredSolrRequest> record, IQueueHandler.Result<MirroredSolrRequest> result) throws MirroringException {
+    CompletableFuture<?> resubmitted = CompletableFuture.completedFuture(null);
     switch (result.status()) {
       case FAILED_RESUBMIT:
         if (log.isTraceEnabled()) {
           log.trace("result=failed-resubmit");
         }
         metrics.counter("failed-resubmit").inc();
-        kafkaMirroringSink.submit(record.value());
+        // the new item is the whole batch that failed, with its attempt count incremented
+        MirroredSolrRequest failedRequest = result.newItem() != null ? result.newItem() : record.value();
+        if (retryTopics.isEnabled()) {
+          String retryTopic = retryTopics.nextTopic(record.topic());
+          if (retryTopics.isDeadLetterTopic(retryTopic)) {
+            log.warn("Request failed on topic={}, sending it to the dead letter topic={}", record.topic(), retryTopic);
+            metrics.counter("dead-letter").inc();
+          }
+          resubmitted = kafkaMirroringSink.submitAsync(failedRequest, retryTopic);
+        } else {
+          resubmitted = kafkaMirroringSink.submitAsync(failedRequest);
+        }
         break;
       case HANDLED:
         // no-op
@@ -357,6 +944,7 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
         }
         // no-op
     }
+    return resubmitted;
   }
 
 
@@ -373,6 +961,9 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
         executor.awaitTermination(30, TimeUnit.SECONDS);
       }
       solrClient.close();
+      if (asyncSolrClient != null) {
+        asyncSolrClient.close();
+      }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       log.warn("Interrupted while waiting for executor to shutdown");
@@ -385,6 +976,10 @@ public class KafkaCrossDcConsumer extends Consumer.CrossDcConsumer {
     return new CloudSolrClient.Builder(Collections.singletonList(conf.get(KafkaCrossDcConf.ZK_CONNECT_STRING)), Optional.empty()).build();
   }
 
+  protected Http2SolrClient createAsyncSolrClient(KafkaCrossDcConf conf) {
+    return new Http2SolrClient.Builder().build();
+  }
+
   protected KafkaMirroringSink createKafkaMirroringSink(KafkaCrossDcConf conf) {
     return new KafkaMirroringSink(conf);
   }
@@ -1,9 +1,10 @@
 package org.apache.solr.crossdc.consumer;
 
-import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.solr.crossdc.common.KafkaCrossDcConf;
 import org.apache.solr.crossdc.common.MirroredSolrRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,119 +12,518 @@ import org.slf4j.LoggerFactory;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 
-public class PartitionManager {
+/**
+ * Tracks the work of each assigned partition. Every partition gets its own ordered lane: the batches of a
+ * partition run one after the other, while the lanes of different partitions run in parallel on the shared
+ * worker pool. Lanes are created when partitions are assigned and drained and removed when they are revoked.
+ * <p>
+ * Offset tracking is completion driven. Each {@link WorkUnit} gets a sequence number in its partition and a
+ * counter of pending tasks that the workers decrement. The worker completing the last task advances the
+ * partition watermark, the next offset after the contiguous run of completed work units, without taking
+ * any lock. The poll thread is the single committer: the consumer is not thread safe, so it publishes the
+ * watermarks of all the partitions with a single commitAsync call once per commit interval, or earlier when
+ * enough work units completed. A final synchronous commit is done on revoke and on shutdown.
+ * <p>
+ * Flow control never blocks the poll thread: when the in-flight work units of a partition reach the pause
+ * threshold the partition is paused with {@link KafkaConsumer#pause}, and it is resumed once its lane drained
+ * down to the resume threshold. The poll thread keeps polling meanwhile, so the consumer stays in the group
+ * even when the target Solr cluster is slow. Partitions are also paused while deferred until their next record is
+ * due, and the partitions of low priority topics, the retry topics, are paused while any other partition is paused
+ * for having too many in-flight work units.
+ */
+public class PartitionManager implements ConsumerRebalanceListener {
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // Upper bound on the time spent in onPartitionsRevoked waiting for in-flight batches to complete.
+    static final long REVOKE_DRAIN_TIMEOUT_MS = 30000;
+
     final ConcurrentHashMap<TopicPartition, PartitionWork> partitionWorkMap = new ConcurrentHashMap<>();
     private final KafkaConsumer<String, MirroredSolrRequest> consumer;
 
+    // Work units completed since the last commit, across all the partitions.
+    private final AtomicInteger completedWorkUnits = new AtomicInteger();
+    private final long commitIntervalNanos;
+    private final int commitMaxWorkUnits;
+    private long lastCommitNanos = System.nanoTime();
+    private final int pauseInFlightWorkUnits;
+    private final int resumeInFlightWorkUnits;
+    private final Set<String> lowPriorityTopics;
+
 
     static class PartitionWork {
-        final Queue<WorkUnit> partitionQueue = new LinkedList<>();
+        // Registered work units, in sequence order. Completed units are removed from the head.
+        final Queue<WorkUnit> partitionQueue = new ConcurrentLinkedQueue<>();
+
+        // Next offset after the contiguous run of completed work units, -1 until a work unit completed.
+        final AtomicLong completedOffset = new AtomicLong(-1);
+
+        // Last offset committed for this partition, only accessed by the poll thread.
+        long committedOffset = -1;
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Registered work units that did not complete yet.
+        final AtomicInteger inFlightWorkUnits = new AtomicInteger();
+
+        // Whether the partition is paused in the consumer, only accessed by the poll thread.
+        boolean paused;
+
+        // Whether the partition is paused while other partitions have too many in-flight work units.
+        final boolean lowPriority;
+
+        // Time at which a deferred partition is resumed, 0 if not deferred, only accessed by the poll thread.
+        long deferredUntilNanos;
+
+        private final AtomicInteger completedWorkUnits;
+
+        // Sequence number of the next registered work unit, only accessed by the poll thread.
+        private long nextSeq;
+
+        // Tail of the ordered lane, each batch is chained after the previously submitted one.
+        private volatile CompletableFuture<Void> laneTail = CompletableFuture.completedFuture(null);
+
+        PartitionWork() {
+            this(new AtomicInteger(), false);
+        }
+
+        PartitionWork(AtomicInteger completedWorkUnits, boolean lowPriority) {
+            this.completedWorkUnits = completedWorkUnits;
+            this.lowPriority = lowPriority;
+        }
+
+        /**
+         * Registers a work unit at the end of this partition. Only called from the poll thread, before any task
+         * of the work unit is started.
+         */
+        void register(WorkUnit workUnit) {
+            workUnit.partitionWork = this;
+            workUnit.seq = nextSeq++;
+            inFlightWorkUnits.incrementAndGet();
+            partitionQueue.add(workUnit);
+        }
+
+        /**
+         * Removes the completed work units from the head of the queue and advances the watermark. Concurrent
+         * callers race to remove the head, the winner publishes its offset.
+         */
+        void advance() {
+            WorkUnit head;
+            while ((head = partitionQueue.peek()) != null && head.done) {
+                if (partitionQueue.remove(head)) {
+                    inFlightWorkUnits.decrementAndGet();
+                    completedOffset.accumulateAndGet(head.nextOffset, Math::max);
+                    completedWorkUnits.incrementAndGet();
+                    if (log.isTraceEnabled()) {
+                        log.trace("Completed work unit topic={} partition={} seq={} nextOffset={}",
+                            head.partition.topic(), head.partition.partition(), head.seq, head.nextOffset);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Appends a batch to this partition's lane. Only called from the poll thread.
+         *
+         * @param batch    the batch to run once all previously submitted batches are done
+         * @param workUnit the work unit completed by the batch
+         * @param executor the worker pool running the lanes
+         * @return the future completing when the batch has run and its work unit has been updated
+         */
+        CompletableFuture<Void> submit(Runnable batch, WorkUnit workUnit, Executor executor) {
+            return submitAsync(runAsSupplier(batch), workUnit, executor);
+        }
+
+        /**
+         * Appends an asynchronous batch to this partition's lane. The batch is started on the executor once all
+         * previously submitted batches are done, and the next batch is only started once the future it returned
+         * completed. Only called from the poll thread.
+         *
+         * @param batch    starts the batch and returns the future of its completion
+         * @param workUnit the work unit completed by the batch
+         * @param executor the executor starting the batches
+         * @return the future completing when the batch has completed and its work unit has been updated
+         */
+        CompletableFuture<Void> submitAsync(Supplier<CompletableFuture<Void>> batch, WorkUnit workUnit, Executor executor) {
+            workUnit.addPending();
+            CompletableFuture<Void> future = laneTail.thenComposeAsync(v -> batch.get(), executor)
+                .whenComplete((v, t) -> workUnit.complete(t));
+            laneTail = future;
+            return future;
+        }
+
+        /**
+         * Waits for all the batches submitted to this lane to complete.
+         *
+         * @return false if the lane did not drain within the timeout
+         */
+        boolean awaitLane(long timeoutMs) {
+            try {
+                laneTail.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                // the failure is reported when checking the offset updates
+            } catch (TimeoutException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
     }
 
     static class WorkUnit {
         final TopicPartition partition;
-        Set<Future<?>> workItems = new HashSet<>();
         long nextOffset;
 
+        // Position of this work unit in its partition, assigned on registration.
+        long seq;
+
+        // Tasks of this work unit that did not complete yet.
+        final AtomicInteger pending = new AtomicInteger();
+        volatile boolean done;
+        private volatile boolean failed;
+        private PartitionWork partitionWork;
+
         public WorkUnit(TopicPartition partition) {
             this.partition = partition;
         }
+
+        /**
+         * Adds a task that must complete before the offset of this work unit can be committed.
+         */
+        void addPending() {
+            pending.incrementAndGet();
+        }
+
+        /**
+         * Completes one task of this work unit. The last task to complete advances the partition watermark. A
+         * failed task prevents the work unit, and so the following ones, from ever being committed.
+         *
+         * @param failure the task failure or null if it succeeded
+         */
+        void complete(Throwable failure) {
+            if (failure != null) {
+                failed = true;
+                partitionWork.failure.compareAndSet(null, failure);
+            }
+            if (pending.decrementAndGet() == 0 && !failed) {
+                done = true;
+                partitionWork.advance();
+            }
+        }
     }
 
 
     PartitionManager(KafkaConsumer<String, MirroredSolrRequest> consumer) {
+        this(consumer, Integer.parseInt(KafkaCrossDcConf.DEFAULT_OFFSET_COMMIT_INTERVAL_MS),
+            Integer.parseInt(KafkaCrossDcConf.DEFAULT_OFFSET_COMMIT_MAX_WORK_UNITS),
+            Integer.parseInt(KafkaCrossDcConf.DEFAULT_PARTITION_PAUSE_IN_FLIGHT_BATCHES),
+            Integer.parseInt(KafkaCrossDcConf.DEFAULT_PARTITION_RESUME_IN_FLIGHT_BATCHES));
+    }
+
+    /**
+     * @param consumer                the consumer to commit the offsets with
+     * @param commitIntervalMs        maximum time completed offsets wait before being committed
+     * @param commitMaxWorkUnits      number of completed work units that triggers a commit before the interval elapsed
+     * @param pauseInFlightWorkUnits  number of in-flight work units of a partition that pauses it
+     * @param resumeInFlightWorkUnits number of in-flight work units of a paused partition at or below which it is resumed
+     */
+    PartitionManager(KafkaConsumer<String, MirroredSolrRequest> consumer, long commitIntervalMs, int commitMaxWorkUnits,
+        int pauseInFlightWorkUnits, int resumeInFlightWorkUnits) {
+        this(consumer, commitIntervalMs, commitMaxWorkUnits, pauseInFlightWorkUnits, resumeInFlightWorkUnits, Collections.emptySet());
+    }
+
+    /**
+     * @param lowPriorityTopics the topics whose partitions are paused while other partitions have too many in-flight
+     *                          work units
+     */
+    PartitionManager(KafkaConsumer<String, MirroredSolrRequest> consumer, long commitIntervalMs, int commitMaxWorkUnits,
+        int pauseInFlightWorkUnits, int resumeInFlightWorkUnits, Collection<String> lowPriorityTopics) {
+        if (resumeInFlightWorkUnits >= pauseInFlightWorkUnits) {
+            throw new IllegalArgumentException("The resume threshold " + resumeInFlightWorkUnits
+                + " must be lower than the pause threshold " + pauseInFlightWorkUnits);
+        }
         this.consumer = consumer;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMs);
+        this.commitMaxWorkUnits = commitMaxWorkUnits;
+        this.pauseInFlightWorkUnits = pauseInFlightWorkUnits;
+        this.resumeInFlightWorkUnits = resumeInFlightWorkUnits;
+        this.lowPriorityTopics = new HashSet<>(lowPriorityTopics);
     }
 
     public PartitionWork getPartitionWork(TopicPartition partition) {
         return partitionWorkMap.compute(partition, (k, v) -> {
             if (v == null) {
-                return new PartitionWork();
+                return new PartitionWork(completedWorkUnits, lowPriorityTopics.contains(partition.topic()));
             }
             return v;
         });
     }
 
+    /**
+     * Creates a work unit covering the records of a partition up to, excluding, the given offset and registers
+     * it at the end of the partition.
+     */
+    WorkUnit newWorkUnit(TopicPartition partition, long nextOffset) {
+        WorkUnit workUnit = new WorkUnit(partition);
+        workUnit.nextOffset = nextOffset;
+        getPartitionWork(partition).register(workUnit);
+        return workUnit;
+    }
 
+    /**
+     * Submits a batch covering work units of one or more partitions. The batch runs once the previously submitted
+     * batches of all these partitions are done, and the following batches of these partitions run after it. Only
+     * called from the poll thread.
+     *
+     * @param batch     the batch to run
+     * @param workUnits the work units completed by the batch, at most one per partition
+     * @param executor  the worker pool running the lanes
+     * @return the future completing when the batch has run and its work units have been updated
+     */
+    CompletableFuture<Void> submit(Runnable batch, List<WorkUnit> workUnits, Executor executor) {
+        return submitAsync(runAsSupplier(batch), workUnits, executor);
+    }
+
+    /**
+     * Submits an asynchronous batch covering work units of one or more partitions, see {@link #submit} and
+     * {@link PartitionWork#submitAsync}. Only called from the poll thread.
+     */
+    CompletableFuture<Void> submitAsync(Supplier<CompletableFuture<Void>> batch, List<WorkUnit> workUnits, Executor executor) {
+        if (workUnits.size() == 1) {
+            WorkUnit workUnit = workUnits.get(0);
+            return getPartitionWork(workUnit.partition).submitAsync(batch, workUnit, executor);
+        }
+        PartitionWork[] lanes = new PartitionWork[workUnits.size()];
+        CompletableFuture<?>[] laneTails = new CompletableFuture<?>[workUnits.size()];
+        for (int i = 0; i < lanes.length; i++) {
+            WorkUnit workUnit = workUnits.get(i);
+            workUnit.addPending();
+            lanes[i] = getPartitionWork(workUnit.partition);
+            laneTails[i] = lanes[i].laneTail;
+        }
+        CompletableFuture<Void> future = CompletableFuture.allOf(laneTails).thenComposeAsync(v -> batch.get(), executor)
+            .whenComplete((v, t) -> {
+                for (WorkUnit workUnit : workUnits) {
+                    workUnit.complete(t);
+                }
+            });
+        for (PartitionWork lane : lanes) {
+            lane.laneTail = future;
+        }
+        return future;
+    }
+
+    private static Supplier<CompletableFuture<Void>> runAsSupplier(Runnable batch) {
+        return () -> {
+            batch.run();
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+        log.info("Partitions assigned {}", partitions);
+        for (TopicPartition partition : partitions) {
+            getPartitionWork(partition);
+        }
+    }
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        log.info("Partitions revoked {}", partitions);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REVOKE_DRAIN_TIMEOUT_MS);
+        for (TopicPartition partition : partitions) {
+            PartitionWork work = partitionWorkMap.get(partition);
+            if (work == null) {
+                continue;
+            }
+            long remainingMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            if (!work.awaitLane(remainingMs)) {
+                log.warn("In-flight batches for partition={} did not complete before the partition was revoked, uncommitted records will be consumed again", partition);
+            }
+        }
+        try {
+            commitOffsetsSync();
+        } catch (Exception e) {
+            log.warn("Unable to commit the final offsets for revoked partitions={}", partitions, e);
+        }
+        for (TopicPartition partition : partitions) {
+            partitionWorkMap.remove(partition);
+        }
+    }
+
+    /**
+     * Waits for the in-flight batches of all the partitions and synchronously commits their offsets. Called on
+     * the poll thread when the consumer shuts down.
+     */
+    void drainAndCommit() {
+        onPartitionsRevoked(new ArrayList<>(partitionWorkMap.keySet()));
+    }
+
+    /**
+     * Checks all the partitions for failed work, commits the completed offsets if it is time to and pauses or
+     * resumes the partitions depending on their in-flight work. Must be called on the poll thread.
+     */
     public void checkOffsetUpdates() throws Throwable {
         for (TopicPartition partition : partitionWorkMap.keySet()) {
             checkForOffsetUpdates(partition);
         }
+        maybeCommitOffsets();
+        updateFlowControl();
     }
 
-    void checkForOffsetUpdates(TopicPartition partition) throws Throwable {
-        synchronized (partition) {
-            PartitionWork work;
-            if ((work = partitionWorkMap.get(partition)) != null) {
-                WorkUnit workUnit = work.partitionQueue.peek();
-                if (workUnit != null) {
-                    boolean allFuturesDone = true;
-                    for (Future<?> future : workUnit.workItems) {
-                        if (!future.isDone()) {
-                            if (log.isTraceEnabled()) {
-                                log.trace("Future for update is not done topic={}", partition.topic());
-                            }
-                            allFuturesDone = false;
-                            break;
-                        }
-
-                        try {
-                            future.get();
-                        } catch (InterruptedException e) {
-                            log.error("Error updating offset for partition: {}", partition, e);
-                            throw e;
-                        } catch (ExecutionException e) {
-                            log.error("Error updating offset for partition: {}", partition, e);
-                            throw e.getCause();
-                        }
-
-                        if (log.isTraceEnabled()) {
-                            log.trace("Future for update is done topic={}", partition.topic());
-                        }
-                    }
+    /**
+     * Defers the processing of a partition: seeks it back to the given offset, the first record that is not due
+     * yet, and keeps it paused for the given delay. Must be called on the poll thread.
+     */
+    void defer(TopicPartition partition, long offset, long delayMs) {
+        PartitionWork work = getPartitionWork(partition);
+        consumer.seek(partition, offset);
+        work.deferredUntilNanos = System.nanoTime() + Math.max(1, TimeUnit.MILLISECONDS.toNanos(delayMs));
+        if (!work.paused) {
+            work.paused = true;
+            log.debug("Deferring partition {} for {}ms", partition, delayMs);
+            consumer.pause(Collections.singletonList(partition));
+        }
+    }
 
-                    if (allFuturesDone) {
-                        work.partitionQueue.poll();
-                        updateOffset(partition, workUnit.nextOffset);
-                    }
+    /**
+     * Pauses the partitions whose in-flight work units reached the pause threshold and resumes the paused
+     * partitions that drained down to the resume threshold. Deferred partitions stay paused until due, and the low
+     * priority partitions are paused while any other partition is. Must be called on the poll thread.
+     */
+    void updateFlowControl() {
+        List<TopicPartition> toPause = new ArrayList<>();
+        List<TopicPartition> toResume = new ArrayList<>();
+        long now = System.nanoTime();
+        boolean busy = false;
+        for (Map.Entry<TopicPartition, PartitionWork> entry : partitionWorkMap.entrySet()) {
+            PartitionWork work = entry.getValue();
+            if (!work.lowPriority) {
+                busy |= updatePaused(entry.getKey(), work, now, false, toPause, toResume);
+            }
+        }
+        if (!lowPriorityTopics.isEmpty()) {
+            for (Map.Entry<TopicPartition, PartitionWork> entry : partitionWorkMap.entrySet()) {
+                PartitionWork work = entry.getValue();
+                if (work.lowPriority) {
+                    updatePaused(entry.getKey(), work, now, busy, toPause, toResume);
                 }
             }
         }
+        if (!toPause.isEmpty()) {
+            log.debug("Pausing partitions {}", toPause);
+            consumer.pause(toPause);
+        }
+        if (!toResume.isEmpty()) {
+            log.debug("Resuming partitions {}", toResume);
+            consumer.resume(toResume);
+        }
     }
 
     /**
-     * Reset the local offset so that the consumer reads the records from Kafka again.
+     * Updates whether the partition is paused.
      *
-     * @param partition        The TopicPartition to reset the offset for
-     * @param partitionRecords PartitionRecords for the specified partition
+     * @return whether the partition is paused for having too many in-flight work units
      */
-    private void resetOffsetForPartition(TopicPartition
-                                                 partition, List<ConsumerRecord<String, MirroredSolrRequest>> partitionRecords) {
-        if (log.isTraceEnabled()) {
-            log.trace("Resetting offset to: {}", partitionRecords.get(0).offset());
+    private boolean updatePaused(TopicPartition partition, PartitionWork work, long now, boolean yield,
+                                 List<TopicPartition> toPause, List<TopicPartition> toResume) {
+        int inFlight = work.inFlightWorkUnits.get();
+        boolean backpressure = work.paused ? inFlight > resumeInFlightWorkUnits : inFlight >= pauseInFlightWorkUnits;
+        if (work.deferredUntilNanos != 0 && now - work.deferredUntilNanos >= 0) {
+            work.deferredUntilNanos = 0;
         }
-        long resetOffset = partitionRecords.get(0).offset();
-        consumer.seek(partition, resetOffset);
+        boolean pause = backpressure || yield || work.deferredUntilNanos != 0;
+        if (pause && !work.paused) {
+            work.paused = true;
+            toPause.add(partition);
+        } else if (!pause && work.paused) {
+            work.paused = false;
+            toResume.add(partition);
+        }
+        return backpressure;
     }
 
     /**
-     * Logs and updates the commit point for the partition that has been processed.
-     *
-     * @param partition  The TopicPartition to update the offset for
-     * @param nextOffset The next offset to commit for this partition.
+     * Throws the first failure of a work unit of the partition, the consumer cannot make progress past it.
+     */
+    void checkForOffsetUpdates(TopicPartition partition) throws Throwable {
+        PartitionWork work = partitionWorkMap.get(partition);
+        if (work != null) {
+            Throwable failure = work.failure.get();
+            if (failure != null) {
+                log.error("Error updating offset for partition: {}", partition, failure);
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Commits the completed offsets asynchronously if the commit interval elapsed or if enough work units
+     * completed since the last commit. Must be called on the poll thread.
      */
-    private void updateOffset(TopicPartition partition, long nextOffset) {
+    void maybeCommitOffsets() {
+        int completed = completedWorkUnits.get();
+        if (completed == 0) {
+            return;
+        }
+        if (completed < commitMaxWorkUnits && System.nanoTime() - lastCommitNanos < commitIntervalNanos) {
+            return;
+        }
+        Map<TopicPartition, OffsetAndMetadata> offsets = collectOffsetsToCommit();
+        if (offsets.isEmpty()) {
+            return;
+        }
         if (log.isTraceEnabled()) {
-            log.trace("Updated offset for topic={} partition={} to offset={}", partition.topic(), partition.partition(), nextOffset);
+            log.trace("Committing offsets asynchronously {}", offsets);
         }
+        consumer.commitAsync(offsets, (committed, exception) -> {
+            if (exception != null) {
+                log.warn("Failed to commit offsets {}", committed, exception);
+                // callbacks run on the poll thread, let the next commit cover these partitions again
+                committed.forEach((partition, offset) -> {
+                    PartitionWork work = partitionWorkMap.get(partition);
+                    if (work != null && work.committedOffset == offset.offset()) {
+                        work.committedOffset = -1;
+                    }
+                });
+            }
+        });
+    }
 
-        consumer.commitSync(Collections.singletonMap(partition, new OffsetAndMetadata(nextOffset)));
+    /**
+     * Synchronously commits the completed offsets. Must be called on the poll thread.
+     */
+    void commitOffsetsSync() {
+        Map<TopicPartition, OffsetAndMetadata> offsets = collectOffsetsToCommit();
+        if (offsets.isEmpty()) {
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Committing offsets synchronously {}", offsets);
+        }
+        consumer.commitSync(offsets);
     }
 
-    static long getOffsetForPartition(List<ConsumerRecord<String, MirroredSolrRequest>> partitionRecords) {
-        return partitionRecords.get(partitionRecords.size() - 1).offset() + 1;
+    private Map<TopicPartition, OffsetAndMetadata> collectOffsetsToCommit() {
+        completedWorkUnits.set(0);
+        lastCommitNanos = System.nanoTime();
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (Map.Entry<TopicPartition, PartitionWork> entry : partitionWorkMap.entrySet()) {
+            PartitionWork work = entry.getValue();
+            long completedOffset = work.completedOffset.get();
+            if (completedOffset > work.committedOffset) {
+                offsets.put(entry.getKey(), new OffsetAndMetadata(completedOffset));
+                work.committedOffset = completedOffset;
+            }
+        }
+        return offsets;
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.consumer;
+
+import org.apache.solr.crossdc.common.KafkaCrossDcConf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tiers of the retry pipeline. A request failing on a main topic is resubmitted to the first retry topic, a
+ * request failing on a retry topic to the next one, and a request failing on the last retry topic to the dead letter
+ * topic, or to the last retry topic again when there is no dead letter topic. Each retry topic has a minimum delay:
+ * its records are not processed before their timestamp plus the delay, so retries are spaced out and a poison
+ * request does not cycle at full speed. The dead letter topic is not consumed.
+ * <p>
+ * Without retry nor dead letter topics, failed requests are resubmitted to the first main topic as before.
+ */
+public class RetryTopics {
+
+    private final List<String> topics;
+    private final long[] delaysMs;
+    private final String deadLetterTopic;
+
+    public RetryTopics(KafkaCrossDcConf conf) {
+        this(split(conf.get(KafkaCrossDcConf.RETRY_TOPIC_NAMES)), split(conf.get(KafkaCrossDcConf.RETRY_TOPIC_DELAYS_MS)),
+            conf.get(KafkaCrossDcConf.DEAD_LETTER_TOPIC_NAME));
+    }
+
+    RetryTopics(List<String> topics, List<String> delaysMs, String deadLetterTopic) {
+        this.topics = Collections.unmodifiableList(topics);
+        this.delaysMs = new long[topics.size()];
+        for (int i = 0; i < topics.size(); i++) {
+            if (delaysMs.isEmpty()) {
+                throw new IllegalArgumentException("No delay configured for the retry topics " + topics);
+            }
+            long delayMs = Long.parseLong(delaysMs.get(Math.min(i, delaysMs.size() - 1)));
+            if (delayMs < 0) {
+                throw new IllegalArgumentException("Negative delay for retry topic " + topics.get(i) + ": " + delayMs);
+            }
+            this.delaysMs[i] = delayMs;
+        }
+        this.deadLetterTopic = deadLetterTopic == null || deadLetterTopic.trim().isEmpty() ? null : deadLetterTopic.trim();
+    }
+
+    private static List<String> split(String value) {
+        List<String> values = new ArrayList<>();
+        if (value != null) {
+            for (String v : value.split(",")) {
+                if (!v.trim().isEmpty()) {
+                    values.add(v.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns whether failed requests are resubmitted to retry or dead letter topics rather than to the main topic.
+     */
+    public boolean isEnabled() {
+        return !topics.isEmpty() || deadLetterTopic != null;
+    }
+
+    /**
+     * Returns the retry topics, consumed along with the main topics.
+     */
+    public List<String> getTopics() {
+        return topics;
+    }
+
+    /**
+     * Returns the minimum delay before processing the records of the topic, 0 for a main topic.
+     */
+    public long getDelayMs(String topic) {
+        int tier = topics.indexOf(topic);
+        return tier < 0 ? 0L : delaysMs[tier];
+    }
+
+    /**
+     * Returns whether the topic is a retry topic, consumed with a lower priority than the main topics.
+     */
+    public boolean isRetryTopic(String topic) {
+        return topics.contains(topic);
+    }
+
+    /**
+     * Returns the topic to resubmit a request that failed on the given topic to.
+     */
+    public String nextTopic(String topic) {
+        int tier = topics.indexOf(topic) + 1;
+        if (tier < topics.size()) {
+            return topics.get(tier);
+        }
+        return deadLetterTopic != null ? deadLetterTopic : topics.get(topics.size() - 1);
+    }
+
+    /**
+     * Returns whether the topic is the dead letter topic.
+     */
+    public boolean isDeadLetterTopic(String topic) {
+        return topic.equals(deadLetterTopic);
+    }
+}
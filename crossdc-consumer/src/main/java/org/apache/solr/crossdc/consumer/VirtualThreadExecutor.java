@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on its own virtual thread, with at most a given number of tasks running at the same time. A task
+ * waits for a permit on its virtual thread, which costs almost nothing, so the number of tasks in flight is no
+ * longer bounded by a pool of platform threads blocked on Solr requests and backoff sleeps.
+ * <p>
+ * Virtual threads are looked up by reflection since the project still builds for older JDKs, {@link #create}
+ * returns null when the running JDK does not support them.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    private VirtualThreadExecutor(ExecutorService delegate, int maxConcurrentTasks) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrentTasks);
+    }
+
+    /**
+     * Creates an executor running the tasks on virtual threads named after the given prefix.
+     *
+     * @return the executor or null if virtual threads are not supported by the JDK
+     */
+    public static VirtualThreadExecutor create(String threadNamePrefix, int maxConcurrentTasks) {
+        if (maxConcurrentTasks < 1) {
+            throw new IllegalArgumentException("maxConcurrentTasks must be positive: " + maxConcurrentTasks);
+        }
+        ThreadFactory threadFactory;
+        ExecutorService delegate;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 0L);
+            threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            delegate = (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.debug("Virtual threads are not available", e);
+            return null;
+        } catch (RuntimeException e) {
+            // e.g. UnsupportedOperationException when preview features are disabled
+            log.debug("Virtual threads cannot be created", e);
+            return null;
+        }
+        return new VirtualThreadExecutor(delegate, maxConcurrentTasks);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        delegate.execute(() -> {
+            // not interruptible, the command must run so that a lane waiting on it is completed
+            permits.acquireUninterruptibly();
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.messageprocessor;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.crossdc.common.SolrExceptionUtil;
+import org.apache.solr.crossdc.common.UpdateRequestUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Isolates the updates rejected by Solr in a failed batch. The batch is split in two halves sent one after the
+ * other, and each failed half is split again, until the failed updates are isolated. The good updates are applied
+ * on the way, so only the rejected updates are resubmitted instead of the whole batch.
+ * <p>
+ * Only failures caused by the content of the batch are bisected: a bad request, e.g. a schema violation, or a
+ * version conflict. Any other failure, e.g. an unavailable shard, would fail the halves as well. It stops the
+ * isolation: the part of the batch that failed with it and all the later parts are reported as one failure, without
+ * being sent, so that the later updates of a doc are never applied before the earlier ones that are resubmitted.
+ * <p>
+ * The number of requests sent to isolate the failures of a batch is bounded: a batch whose updates are all rejected,
+ * e.g. after a schema change, would otherwise cost about twice as many requests as it has updates, when the target
+ * cluster is already struggling. Once the budget is spent, the isolation stops in the same way.
+ */
+class FailureIsolator {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final MetricRegistry metrics;
+    private final int maxRequests;
+
+    /**
+     * @param maxRequests the max number of requests sent to isolate the failures of a batch
+     */
+    FailureIsolator(MetricRegistry metrics, int maxRequests) {
+        this.metrics = metrics;
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * The updates that failed with the same exception.
+     */
+    static class Failure {
+        final UpdateRequest request;
+        final Exception exception;
+
+        Failure(UpdateRequest request, Exception exception) {
+            this.request = request;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Returns whether the failure of a batch with this exception can be isolated to some of its updates.
+     */
+    static boolean isIsolable(UpdateRequest request, Exception e) {
+        return UpdateRequestUtil.countUpdates(request) >= 2 && isRejection(e);
+    }
+
+    /**
+     * Returns whether the exception is a rejection of the content of the request, rather than a failure of Solr.
+     */
+    private static boolean isRejection(Exception e) {
+        SolrException solrException = SolrExceptionUtil.asSolrException(e);
+        if (solrException == null) {
+            return false;
+        }
+        int code = solrException.code();
+        return code == SolrException.ErrorCode.BAD_REQUEST.code || code == SolrException.ErrorCode.CONFLICT.code;
+    }
+
+    /**
+     * Bisects the failed request until its failed updates are isolated.
+     *
+     * @param request the failed request
+     * @param failure the failure of the request
+     * @param sender  sends a part of the request, the returned future completes exceptionally if it fails
+     * @return the future of the failed parts of the request, in order, empty if all the parts succeeded when sent alone
+     */
+    CompletableFuture<List<Failure>> isolate(UpdateRequest request, Exception failure,
+                                             Function<UpdateRequest, CompletableFuture<?>> sender) {
+        return isolate(request, failure, new Isolation(sender, maxRequests));
+    }
+
+    private CompletableFuture<List<Failure>> isolate(UpdateRequest request, Exception failure, Isolation isolation) {
+        if (!isRejection(failure)) {
+            return CompletableFuture.completedFuture(isolation.stop(request, failure));
+        }
+        if (UpdateRequestUtil.countUpdates(request) < 2) {
+            metrics.counter("isolatedUpdates").inc();
+            return CompletableFuture.completedFuture(Collections.singletonList(new Failure(request, failure)));
+        }
+        if (isolation.budget <= 0) {
+            return CompletableFuture.completedFuture(exhausted(request, failure, isolation));
+        }
+        UpdateRequest[] halves = split(request);
+        if (log.isDebugEnabled()) {
+            log.debug("Bisecting failed batch of {} updates", UpdateRequestUtil.countUpdates(request));
+        }
+        return bisect(halves[0], failure, isolation)
+            .thenCompose(left -> bisect(halves[1], failure, isolation).thenApply(right -> {
+            if (left.isEmpty()) {
+                return right;
+            }
+            if (right.isEmpty()) {
+                return left;
+            }
+            List<Failure> failures = new ArrayList<>(left.size() + right.size());
+            failures.addAll(left);
+            failures.addAll(right);
+            return failures;
+        }));
+    }
+
+    /**
+     * Sends a half of a failed request, and bisects it further if it fails. Once the isolation stopped, the half is
+     * added to the failure that stopped it instead of being sent.
+     */
+    private CompletableFuture<List<Failure>> bisect(UpdateRequest half, Exception failure, Isolation isolation) {
+        if (isolation.stopped != null) {
+            UpdateRequestUtil.copyUpdates(half, isolation.stopped.request);
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        if (isolation.budget <= 0) {
+            return CompletableFuture.completedFuture(exhausted(half, failure, isolation));
+        }
+        isolation.budget--;
+        metrics.counter("isolationRequests").inc();
+        CompletableFuture<?> sent;
+        try {
+            sent = isolation.sender.apply(half);
+        } catch (Exception e) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        return sent.handle((v, t) -> {
+            if (t == null) {
+                return CompletableFuture.completedFuture(Collections.<Failure>emptyList());
+            }
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            return isolate(half, cause instanceof Exception ? (Exception) cause : new RuntimeException(cause), isolation);
+        }).thenCompose(Function.identity());
+    }
+
+    private List<Failure> exhausted(UpdateRequest request, Exception failure, Isolation isolation) {
+        metrics.counter("isolationBudgetExhausted").inc();
+        if (log.isDebugEnabled()) {
+            log.debug("No more isolation requests, reporting {} updates and the rest of the batch as failed",
+                UpdateRequestUtil.countUpdates(request));
+        }
+        return isolation.stop(request, failure);
+    }
+
+    /**
+     * The state of the isolation of a batch. The halves are sent one after the other, so it is never accessed
+     * concurrently.
+     */
+    private static final class Isolation {
+        final Function<UpdateRequest, CompletableFuture<?>> sender;
+        // the number of requests that can still be sent
+        int budget;
+        // the failure that stopped the isolation, the later halves are added to it
+        Failure stopped;
+
+        Isolation(Function<UpdateRequest, CompletableFuture<?>> sender, int budget) {
+            this.sender = sender;
+            this.budget = budget;
+        }
+
+        List<Failure> stop(UpdateRequest request, Exception failure) {
+            UpdateRequest failed = new UpdateRequest();
+            if (request.getParams() != null) {
+                failed.setParams(new ModifiableSolrParams(request.getParams()));
+            }
+            UpdateRequestUtil.copyUpdates(request, failed);
+            stopped = new Failure(failed, failure);
+            return Collections.singletonList(stopped);
+        }
+    }
+
+    /**
+     * Splits the updates of the request in two halves, in order, each half having a copy of the request params.
+     */
+    static UpdateRequest[] split(UpdateRequest request) {
+        UpdateRequest[] halves = {new UpdateRequest(), new UpdateRequest()};
+        for (UpdateRequest half : halves) {
+            if (request.getParams() != null) {
+                half.setParams(new ModifiableSolrParams(request.getParams()));
+            }
+        }
+        int firstHalf = UpdateRequestUtil.countUpdates(request) / 2;
+        int i = 0;
+        // getDocuments() copies the documents into a new list, read the map directly
+        Map<SolrInputDocument, Map<String, Object>> docs = request.getDocumentsMap();
+        if (docs != null) {
+            for (SolrInputDocument doc : docs.keySet()) {
+                halves[i++ < firstHalf ? 0 : 1].add(doc);
+            }
+        }
+        List<String> deletes = request.getDeleteById();
+        if (deletes != null) {
+            for (String id : deletes) {
+                halves[i++ < firstHalf ? 0 : 1].deleteById(id);
+            }
+        }
+        List<String> deleteByQuery = request.getDeleteQuery();
+        if (deleteByQuery != null) {
+            for (String query : deleteByQuery) {
+                halves[i++ < firstHalf ? 0 : 1].deleteByQuery(query);
+            }
+        }
+        return halves;
+    }
+}
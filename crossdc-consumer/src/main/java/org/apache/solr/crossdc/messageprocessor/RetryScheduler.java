@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.messageprocessor;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks failed requests until their backoff elapsed without holding a worker thread, so that a brownout of one
+ * target collection does not put every worker to sleep.
+ * <p>
+ * The parked retries are kept in a hashed timer wheel: a ring of buckets, each covering one tick, advanced by a
+ * single thread. A retry is put in the bucket of its due tick with the number of full rotations left before it is
+ * due, so parking and expiring a retry costs the same whatever the number of parked retries. Retries are due with
+ * the precision of a tick, and are completed on the completion executor, never on the wheel thread. The number of
+ * parked retries is exposed as the {@code parkedRetries} gauge of the default scheduler.
+ */
+public class RetryScheduler implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final long DEFAULT_TICK_MS = 10;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<Retry<?>>[] wheel;
+    private final Executor completionExecutor;
+    // Retries parked since the last tick, moved to their bucket by the wheel thread.
+    private final Queue<Retry<?>> newRetries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger parked = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private final Thread wheelThread;
+    private volatile boolean closed;
+
+    private static class DefaultHolder {
+        static final RetryScheduler INSTANCE = createDefault();
+    }
+
+    private static RetryScheduler createDefault() {
+        RetryScheduler scheduler = new RetryScheduler("RetryScheduler", DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, ForkJoinPool.commonPool());
+        MetricRegistry metrics = SharedMetricRegistries.getOrCreate("metrics");
+        metrics.remove("parkedRetries");
+        metrics.register("parkedRetries", (Gauge<Integer>) scheduler::parked);
+        return scheduler;
+    }
+
+    /**
+     * Returns the scheduler shared by the message processors, started on first use and never closed.
+     */
+    public static RetryScheduler getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @param threadName         the name of the wheel thread, a daemon thread
+     * @param tickMs             the precision of the due times
+     * @param wheelSize          the number of buckets, rounded up to a power of two
+     * @param completionExecutor runs the completion of the retries
+     */
+    @SuppressWarnings("unchecked")
+    public RetryScheduler(String threadName, long tickMs, int wheelSize, Executor completionExecutor) {
+        if (tickMs < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("Invalid timer wheel tickMs=" + tickMs + " wheelSize=" + wheelSize);
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.completionExecutor = completionExecutor;
+        this.wheelThread = new Thread(this::run, threadName);
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+    /**
+     * Returns a future completed with the value once the delay elapsed.
+     */
+    public <T> CompletableFuture<T> schedule(T value, long delayMs) {
+        if (delayMs <= 0) {
+            return CompletableFuture.completedFuture(value);
+        }
+        Retry<T> retry = new Retry<>(value, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs));
+        parked.incrementAndGet();
+        newRetries.add(retry);
+        if (closed) {
+            // the wheel thread may be gone, don't leave the retry parked forever
+            expireAll();
+        }
+        return retry.future;
+    }
+
+    /**
+     * Returns the number of retries waiting for their due time.
+     */
+    public int parked() {
+        return parked.get();
+    }
+
+    /**
+     * Stops the wheel thread and completes the parked retries right away.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(wheelThread);
+        try {
+            wheelThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        expireAll();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!closed) {
+            long tickDeadline = startNanos + (tick + 1) * tickNanos;
+            long waitNanos;
+            while (!closed && (waitNanos = tickDeadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+            if (closed) {
+                break;
+            }
+            try {
+                placeNewRetries(tick);
+                expire(wheel[(int) (tick & mask)]);
+            } catch (RuntimeException e) {
+                log.error("Unexpected error in the retry timer wheel", e);
+            }
+            tick++;
+        }
+    }
+
+    private void placeNewRetries(long currentTick) {
+        Retry<?> retry;
+        while ((retry = newRetries.poll()) != null) {
+            long dueTick = (retry.dueNanos - startNanos + tickNanos - 1) / tickNanos;
+            long ticks = Math.max(0, dueTick - currentTick);
+            retry.rounds = ticks / wheel.length;
+            wheel[(int) ((currentTick + ticks) & mask)].add(retry);
+        }
+    }
+
+    private void expire(List<Retry<?>> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Retry<?> retry = bucket.get(i);
+            if (retry.rounds <= 0) {
+                complete(retry);
+            } else {
+                retry.rounds--;
+                bucket.set(kept++, retry);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    private synchronized void expireAll() {
+        Retry<?> retry;
+        while ((retry = newRetries.poll()) != null) {
+            complete(retry);
+        }
+        if (!wheelThread.isAlive()) {
+            for (List<Retry<?>> bucket : wheel) {
+                bucket.forEach(this::complete);
+                bucket.clear();
+            }
+        }
+    }
+
+    private void complete(Retry<?> retry) {
+        parked.decrementAndGet();
+        completionExecutor.execute(retry::complete);
+    }
+
+    private static class Retry<T> {
+        final T value;
+        final long dueNanos;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // Full rotations of the wheel left before the retry is due, only used by the wheel thread.
+        long rounds;
+
+        Retry(T value, long dueNanos) {
+            this.value = value;
+            this.dueNanos = dueNanos;
+        }
+
+        void complete() {
+            future.complete(value);
+        }
+    }
+}
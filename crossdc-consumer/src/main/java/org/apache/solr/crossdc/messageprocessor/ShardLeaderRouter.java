@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.messageprocessor;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Resolves the shard leaders of the target collections from the cluster state of the {@link CloudSolrClient}, and
+ * splits update requests into one sub-request per shard with the collection's {@link DocRouter}, the same way Solr
+ * would route them internally.
+ */
+class ShardLeaderRouter {
+
+    private final CloudSolrClient client;
+    // the unique key field of each collection, null to use the id field of the client
+    private final Function<String, String> uniqueKeys;
+
+    /**
+     * @param uniqueKeys returns the unique key field of a collection, or null if it is unknown
+     */
+    ShardLeaderRouter(CloudSolrClient client, Function<String, String> uniqueKeys) {
+        this.client = client;
+        this.uniqueKeys = uniqueKeys;
+    }
+
+    /**
+     * Returns the live leader of a random shard of the collection.
+     *
+     * @throws SolrException if the collection does not exist or has no live leader
+     */
+    Replica randomLeader(String collection) {
+        DocCollection docCollection = getDocCollection(collection);
+        Set<String> liveNodes = client.getZkStateReader().getClusterState().getLiveNodes();
+        List<Replica> leaders = new ArrayList<>();
+        for (Slice slice : docCollection.getActiveSlices()) {
+            Replica leader = slice.getLeader();
+            if (leader != null && liveNodes.contains(leader.getNodeName())) {
+                leaders.add(leader);
+            }
+        }
+        if (leaders.isEmpty()) {
+            throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "No live shard leader for collection " + collection);
+        }
+        return leaders.get(ThreadLocalRandom.current().nextInt(leaders.size()));
+    }
+
+    /**
+     * Splits the update request into one sub-request per target shard, keyed by the shard leader. The documents and
+     * the deletes of a shard keep their order in its sub-request. Each sub-request has a copy of the request params.
+     *
+     * @return the sub-requests, or null if the request cannot be split: it has deletes by query, which target all
+     * the shards, the unique key of the collection is unknown, or documents have no unique key value
+     * @throws SolrException if the collection does not exist or a target shard has no live leader
+     */
+    Map<Replica, UpdateRequest> route(UpdateRequest request, String collection) {
+        if (request.getDeleteQuery() != null && !request.getDeleteQuery().isEmpty()) {
+            return null;
+        }
+        String idField = uniqueKeys != null ? uniqueKeys.apply(collection) : client.getIdField();
+        if (idField == null) {
+            return null;
+        }
+        DocCollection docCollection = getDocCollection(collection);
+        DocRouter router = docCollection.getRouter();
+        SolrParams params = request.getParams();
+        String route = params == null ? null : params.get(ShardParams._ROUTE_);
+        Set<String> liveNodes = client.getZkStateReader().getClusterState().getLiveNodes();
+        Map<Replica, UpdateRequest> shardRequests = new LinkedHashMap<>();
+
+        Map<SolrInputDocument, Map<String, Object>> docs = request.getDocumentsMap();
+        if (docs != null) {
+            for (SolrInputDocument doc : docs.keySet()) {
+                Object id = doc.getFieldValue(idField);
+                if (id == null) {
+                    return null;
+                }
+                Slice slice = router.getTargetSlice(id.toString(), doc, route, params, docCollection);
+                shardRequest(shardRequests, slice, params, liveNodes, collection).add(doc);
+            }
+        }
+        Map<String, Map<String, Object>> deleteIds = request.getDeleteByIdMap();
+        if (deleteIds != null) {
+            for (Map.Entry<String, Map<String, Object>> entry : deleteIds.entrySet()) {
+                Object idRoute = entry.getValue() == null ? null : entry.getValue().get(ShardParams._ROUTE_);
+                Slice slice = router.getTargetSlice(entry.getKey(), null, idRoute != null ? idRoute.toString() : route, params, docCollection);
+                shardRequest(shardRequests, slice, params, liveNodes, collection).deleteById(entry.getKey());
+            }
+        }
+        return shardRequests;
+    }
+
+    private UpdateRequest shardRequest(Map<Replica, UpdateRequest> shardRequests, Slice slice, SolrParams params,
+                                       Set<String> liveNodes, String collection) {
+        if (slice == null) {
+            throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "No target shard in collection " + collection);
+        }
+        Replica leader = slice.getLeader();
+        if (leader == null || !liveNodes.contains(leader.getNodeName())) {
+            throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE,
+                "No live leader for shard " + slice.getName() + " of collection " + collection);
+        }
+        return shardRequests.computeIfAbsent(leader, k -> {
+            UpdateRequest shardRequest = new UpdateRequest();
+            if (params != null) {
+                ModifiableSolrParams shardParams = new ModifiableSolrParams(params);
+                // the sub-request targets the leader core directly
+                shardParams.remove("collection");
+                shardRequest.setParams(shardParams);
+            }
+            return shardRequest;
+        });
+    }
+
+    private DocCollection getDocCollection(String collection) {
+        if (collection == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "No collection param specified on request and no default collection has been set");
+        }
+        ZkStateReader zkStateReader = client.getZkStateReader();
+        ClusterState clusterState = zkStateReader.getClusterState();
+        DocCollection docCollection = clusterState.getCollectionOrNull(zkStateReader.getAliases().resolveSimpleAlias(collection));
+        if (docCollection == null) {
+            throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "Collection not found: " + collection);
+        }
+        return docCollection;
+    }
+}
@@ -20,25 +20,39 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
+import org.apache.solr.client.solrj.request.GenericSolrRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.SolrResponseBase;
+import org.apache.solr.client.solrj.util.AsyncListener;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.cloud.Replica;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.crossdc.common.ResubmitBackoffPolicy;
 import org.apache.solr.crossdc.common.CrossDcConstants;
 import org.apache.solr.crossdc.common.IQueueHandler;
+import org.apache.solr.crossdc.common.KafkaCrossDcConf;
 import org.apache.solr.crossdc.common.MirroredSolrRequest;
 import org.apache.solr.crossdc.common.SolrExceptionUtil;
+import org.apache.solr.crossdc.common.UpdateRequestUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * Message processor implements all the logic to process a MirroredSolrRequest.
@@ -46,6 +60,14 @@ import java.util.concurrent.TimeUnit;
  *  1. Sending the update request to Solr
  *  2. Discarding or retrying failed requests
  *  3. Flagging requests for resubmission by the underlying consumer implementation.
+ * <p>
+ * Requests are either processed synchronously with {@link #handleItem}, or with {@link #handleItemAsync} when an
+ * {@link Http2SolrClient} is provided. The asynchronous path returns immediately, so a few threads can keep many
+ * requests in flight. Its backoffs, as those of {@link #handleItemWithScheduledBackoff}, park the request in the
+ * {@link RetryScheduler} instead of sleeping. Like {@link CloudSolrClient} on the synchronous path, it splits update
+ * requests into one sub-request per shard and sends them to the shard leaders in parallel, saving the forwarding hop
+ * between Solr nodes. The requests it cannot route are sent to a random shard leader. With failure isolation, a batch rejected by Solr is bisected so that only its rejected updates
+ * are resubmitted, see {@link FailureIsolator}.
  */
 public class SolrMessageProcessor extends MessageProcessor implements IQueueHandler<MirroredSolrRequest>  {
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -54,11 +76,50 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
 
     final CloudSolrClient client;
 
+    // Client of the asynchronous path, null when requests are only processed synchronously.
+    final Http2SolrClient asyncClient;
+
+    private final ShardLeaderRouter router;
+
+    private final RetryScheduler retryScheduler = RetryScheduler.getDefault();
+
+    // Bisects the batches rejected by Solr, null when failed batches are resubmitted as a whole.
+    private final FailureIsolator failureIsolator;
+
     private static final String VERSION_FIELD = "_version_";
 
     public SolrMessageProcessor(CloudSolrClient client, ResubmitBackoffPolicy resubmitBackoffPolicy) {
+        this(client, null, resubmitBackoffPolicy);
+    }
+
+    public SolrMessageProcessor(CloudSolrClient client, Http2SolrClient asyncClient, ResubmitBackoffPolicy resubmitBackoffPolicy) {
+        this(client, asyncClient, false, resubmitBackoffPolicy);
+    }
+
+    public SolrMessageProcessor(CloudSolrClient client, Http2SolrClient asyncClient, boolean isolateFailures,
+                                ResubmitBackoffPolicy resubmitBackoffPolicy) {
+        this(client, asyncClient,
+            isolateFailures ? Integer.parseInt(KafkaCrossDcConf.DEFAULT_SOLR_BATCH_ISOLATE_MAX_REQUESTS) : 0, resubmitBackoffPolicy);
+    }
+
+    public SolrMessageProcessor(CloudSolrClient client, Http2SolrClient asyncClient, int isolateMaxRequests,
+                                ResubmitBackoffPolicy resubmitBackoffPolicy) {
+        this(client, asyncClient, isolateMaxRequests, null, resubmitBackoffPolicy);
+    }
+
+    /**
+     * @param isolateMaxRequests the max number of requests sent to isolate the rejected updates of a batch, 0 to
+     *                           resubmit the failed batches as a whole
+     * @param uniqueKeys         returns the unique key field of a collection to route its updates on, or null if it is
+     *                           unknown; null to route on the id field of the client
+     */
+    public SolrMessageProcessor(CloudSolrClient client, Http2SolrClient asyncClient, int isolateMaxRequests,
+                                Function<String, String> uniqueKeys, ResubmitBackoffPolicy resubmitBackoffPolicy) {
         super(resubmitBackoffPolicy);
         this.client = client;
+        this.asyncClient = asyncClient;
+        this.router = new ShardLeaderRouter(client, uniqueKeys);
+        this.failureIsolator = isolateMaxRequests > 0 ? new FailureIsolator(metrics, isolateMaxRequests) : null;
     }
 
     @Override
@@ -70,6 +131,201 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
         return processMirroredRequest(mirroredSolrRequest);
     }
 
+    /**
+     * Processes the request without blocking the calling thread. The returned future completes with the result once
+     * Solr responded, after the backoff of a failed request if any. It never completes exceptionally, failures are
+     * reported by the result status as with {@link #handleItem}.
+     */
+    public CompletableFuture<Result<MirroredSolrRequest>> handleItemAsync(MirroredSolrRequest mirroredSolrRequest) {
+        if (asyncClient == null) {
+            throw new IllegalStateException("No asynchronous Solr client configured");
+        }
+        connectToSolrIfNeeded();
+
+        SolrRequest request = mirroredSolrRequest.getSolrRequest();
+        final SolrParams requestParams = request.getParams();
+        if (log.isDebugEnabled()) {
+            log.debug("handleSolrRequestAsync start params={}", requestParams);
+        }
+        logFirstAttemptLatency(mirroredSolrRequest);
+
+        final String collection = request.getCollection() != null ? request.getCollection()
+            : requestParams != null && requestParams.get("collection") != null ? requestParams.get("collection")
+            : client.getDefaultCollection();
+        CompletableFuture<Result<MirroredSolrRequest>> future;
+        long startNanos = System.nanoTime();
+        try {
+            prepareIfUpdateRequest(request);
+            logRequest(request);
+            startNanos = System.nanoTime();
+            future = sendRouted(request, collection);
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        final long sendNanos = startNanos;
+        return future.handle((result, t) -> {
+            // only the Solr call, not the isolation of failures nor the backoff
+            long latencyNanos = System.nanoTime() - sendNanos;
+            if (t == null) {
+                return CompletableFuture.completedFuture(result.withLatencyNanos(latencyNanos));
+            }
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            Exception e = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+            if (failureIsolator != null && request instanceof UpdateRequest && FailureIsolator.isIsolable((UpdateRequest) request, e)) {
+                return isolateFailures(mirroredSolrRequest, (UpdateRequest) request, e,
+                    half -> sendRouted(half, collection))
+                    .thenApply(r -> r.withLatencyNanos(latencyNanos));
+            }
+            return CompletableFuture.completedFuture(failureResult(mirroredSolrRequest, e).withLatencyNanos(latencyNanos));
+        }).thenCompose(Function.identity()).thenCompose(result -> {
+            if (log.isDebugEnabled()) {
+                log.debug("handleSolrRequestAsync end params={} result={}", requestParams, result);
+            }
+            return retryScheduler.schedule(result, backoffMs(result));
+        });
+    }
+
+    /**
+     * Processes the request on the calling thread like {@link #handleItem}, but returns without waiting for the
+     * backoff of a failed request: the returned future completes with the result once the backoff elapsed, the
+     * request being parked in the {@link RetryScheduler} meanwhile so the calling thread can process other requests.
+     */
+    public CompletableFuture<Result<MirroredSolrRequest>> handleItemWithScheduledBackoff(MirroredSolrRequest mirroredSolrRequest) {
+        connectToSolrIfNeeded();
+
+        Result<MirroredSolrRequest> result = sendSolrRequest(mirroredSolrRequest);
+        return retryScheduler.schedule(result, backoffMs(result));
+    }
+
+    /**
+     * Returns how long to wait before resubmitting a failed request: the backoff hinted by the Solr exception plus
+     * the backoff of the {@link org.apache.solr.crossdc.common.ResubmitBackoffPolicy}.
+     */
+    private long backoffMs(Result<MirroredSolrRequest> result) {
+        if (result.status() != ResultStatus.FAILED_RESUBMIT) {
+            return 0L;
+        }
+        Throwable throwable = result.throwable();
+        SolrException solrException = throwable instanceof Exception ? SolrExceptionUtil.asSolrException((Exception) throwable) : null;
+        return solrExceptionBackoffMs(solrException) + getResubmitBackoffPolicy().getBackoffTimeMs(result.newItem());
+    }
+
+    /**
+     * Sends the update request to the leaders of its shards, as {@link CloudSolrClient} does on the synchronous path,
+     * so that the Solr nodes do not forward the updates. The requests that cannot be routed, e.g. with deletes by
+     * query, are sent to a random shard leader.
+     */
+    private CompletableFuture<Result<MirroredSolrRequest>> sendRouted(SolrRequest request, String collection) {
+        Map<Replica, UpdateRequest> shardRequests = request instanceof UpdateRequest
+            ? router.route((UpdateRequest) request, collection) : null;
+        if (shardRequests != null && !shardRequests.isEmpty()) {
+            // a single shard too, its leader core applies the updates without forwarding them
+            return sendToShardLeaders(shardRequests);
+        }
+        return sendAsync(request, router.randomLeader(collection).getBaseUrl(), collection);
+    }
+
+    /**
+     * Sends the request to the given node, the collection being either a collection or a core of the node. The
+     * request itself is left untouched, the node is set on a copy.
+     */
+    private CompletableFuture<Result<MirroredSolrRequest>> sendAsync(SolrRequest request, String baseUrl, String collection) {
+        CompletableFuture<Result<MirroredSolrRequest>> future = new CompletableFuture<>();
+        SolrRequest<?> sent = withBasePath(request, baseUrl);
+        asyncClient.asyncRequest(sent, collection, new AsyncListener<NamedList<Object>>() {
+            @Override
+            public void onSuccess(NamedList<Object> response) {
+                try {
+                    future.complete(processResponse(response));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a copy of the request targeting the given node. The copy shares the documents and the params of the
+     * request, which may be sent again, e.g. to another node once resubmitted.
+     */
+    private static SolrRequest<?> withBasePath(SolrRequest<?> request, String baseUrl) {
+        SolrRequest<?> copy;
+        if (request instanceof UpdateRequest) {
+            UpdateRequest updateRequest = (UpdateRequest) request;
+            UpdateRequest updateCopy = new UpdateRequest(updateRequest.getPath());
+            updateCopy.setParams(updateRequest.getParams());
+            updateCopy.setCommitWithin(updateRequest.getCommitWithin());
+            UpdateRequestUtil.copyUpdates(updateRequest, updateCopy);
+            // the options of each document and delete, e.g. commitWithin or the route of a delete
+            if (updateRequest.getDocumentsMap() != null && !updateRequest.getDocumentsMap().isEmpty()) {
+                updateCopy.getDocumentsMap().putAll(updateRequest.getDocumentsMap());
+            }
+            if (updateRequest.getDeleteByIdMap() != null && !updateRequest.getDeleteByIdMap().isEmpty()) {
+                updateCopy.getDeleteByIdMap().putAll(updateRequest.getDeleteByIdMap());
+            }
+            copy = updateCopy;
+        } else if (request instanceof ContentStreamUpdateRequest) {
+            ContentStreamUpdateRequest streamCopy = new ContentStreamUpdateRequest(request.getPath());
+            streamCopy.setParams(((ContentStreamUpdateRequest) request).getParams());
+            try {
+                for (ContentStream stream : request.getContentStreams()) {
+                    streamCopy.addContentStream(stream);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            copy = streamCopy;
+        } else {
+            copy = new GenericSolrRequest(request.getMethod(), request.getPath(), request.getParams());
+        }
+        copy.setBasePath(baseUrl);
+        return copy;
+    }
+
+    /**
+     * Sends the sub-requests of each shard directly to the core of the shard leader, in parallel. The documents of a
+     * shard keep their order within its sub-request. The request is handled once all the sub-requests are, and fails
+     * as a whole if any of them fails, updates already applied by the other shards being idempotent when resubmitted.
+     */
+    private CompletableFuture<Result<MirroredSolrRequest>> sendToShardLeaders(Map<Replica, UpdateRequest> shardRequests) {
+        metrics.counter("shardRequests").inc(shardRequests.size());
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[shardRequests.size()];
+        int i = 0;
+        for (Map.Entry<Replica, UpdateRequest> entry : shardRequests.entrySet()) {
+            Replica leader = entry.getKey();
+            futures[i++] = sendAsync(entry.getValue(), leader.getBaseUrl(), leader.getCoreName());
+        }
+        return CompletableFuture.allOf(futures).thenApply(v -> new Result<>(ResultStatus.HANDLED));
+    }
+
+    private Result<MirroredSolrRequest> processResponse(NamedList<Object> response) {
+        int status = 0;
+        Object responseHeader = response.get("responseHeader");
+        if (responseHeader instanceof NamedList) {
+            Object statusValue = ((NamedList<?>) responseHeader).get("status");
+            if (statusValue instanceof Number) {
+                status = ((Number) statusValue).intValue();
+            }
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("result status={}", status);
+        }
+        if (status != 0) {
+            metrics.counter("processedErrors").inc();
+            throw new SolrException(SolrException.ErrorCode.getErrorCode(status), "response=" + response);
+        }
+        metrics.counter("processed").inc();
+        return new Result<>(ResultStatus.HANDLED);
+    }
+
     private Result<MirroredSolrRequest> processMirroredRequest(MirroredSolrRequest request) {
         final Result<MirroredSolrRequest> result = handleSolrRequest(request);
         // Back-off before returning
@@ -78,6 +334,14 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
     }
 
     private Result<MirroredSolrRequest> handleSolrRequest(MirroredSolrRequest mirroredSolrRequest) {
+        Result<MirroredSolrRequest> result = sendSolrRequest(mirroredSolrRequest);
+        if (result.status() == ResultStatus.FAILED_RESUBMIT && result.throwable() instanceof Exception) {
+            maybeBackoff(SolrExceptionUtil.asSolrException((Exception) result.throwable()));
+        }
+        return result;
+    }
+
+    private Result<MirroredSolrRequest> sendSolrRequest(MirroredSolrRequest mirroredSolrRequest) {
 
         SolrRequest request = mirroredSolrRequest.getSolrRequest();
         final SolrParams requestParams = request.getParams();
@@ -96,12 +360,21 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
         logFirstAttemptLatency(mirroredSolrRequest);
 
         Result<MirroredSolrRequest> result;
+        long startNanos = System.nanoTime();
         try {
             prepareIfUpdateRequest(request);
             logRequest(request);
-            result = processMirroredSolrRequest(request);
+            startNanos = System.nanoTime();
+            result = processMirroredSolrRequest(request).withLatencyNanos(System.nanoTime() - startNanos);
         } catch (Exception e) {
-            result = handleException(mirroredSolrRequest, e);
+            // only the Solr call, not the isolation of failures nor the backoff
+            long latencyNanos = System.nanoTime() - startNanos;
+            if (failureIsolator != null && request instanceof UpdateRequest && FailureIsolator.isIsolable((UpdateRequest) request, e)) {
+                result = isolateFailures(mirroredSolrRequest, (UpdateRequest) request, e, this::sendSync).join();
+            } else {
+                result = failureResult(mirroredSolrRequest, e);
+            }
+            result = result.withLatencyNanos(latencyNanos);
         }
         if (log.isDebugEnabled()) {
             log.debug("handleSolrRequest end params={} result={}", requestParams, result);
@@ -109,7 +382,57 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
         return result;
     }
 
-    private Result<MirroredSolrRequest> handleException(MirroredSolrRequest mirroredSolrRequest, Exception e) {
+    private CompletableFuture<?> sendSync(UpdateRequest request) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            processMirroredSolrRequest(request);
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Bisects a batch rejected by Solr to apply its good updates, and returns the result of the rejected ones: they
+     * are resubmitted unless they all failed with a version conflict.
+     */
+    private CompletableFuture<Result<MirroredSolrRequest>> isolateFailures(MirroredSolrRequest mirroredSolrRequest, UpdateRequest request,
+                                                                        Exception e, Function<UpdateRequest, CompletableFuture<?>> sender) {
+        metrics.counter("isolatedBatches").inc();
+        return failureIsolator.isolate(request, e, sender).thenApply(failures -> {
+            if (failures.isEmpty()) {
+                log.info("Batch of {} updates failed but succeeded when bisected", UpdateRequestUtil.countUpdates(request));
+                return new Result<>(ResultStatus.HANDLED);
+            }
+            UpdateRequest failedRequest = new UpdateRequest();
+            if (request.getParams() != null) {
+                failedRequest.setParams(new ModifiableSolrParams(request.getParams()));
+            }
+            Exception failure = null;
+            int dropped = 0;
+            for (FailureIsolator.Failure f : failures) {
+                SolrException solrException = SolrExceptionUtil.asSolrException(f.exception);
+                logIf4xxException(solrException);
+                if (solrException != null && solrException.code() == SolrException.ErrorCode.CONFLICT.code) {
+                    dropped += UpdateRequestUtil.countUpdates(f.request);
+                    continue;
+                }
+                failure = f.exception;
+                UpdateRequestUtil.copyUpdates(f.request, failedRequest);
+            }
+            log.warn("Isolated the failed updates of a batch of {} updates, resubmitting {} and dropping {} with a version conflict",
+                UpdateRequestUtil.countUpdates(request), UpdateRequestUtil.countUpdates(failedRequest), dropped);
+            if (failure == null) {
+                return new Result<>(ResultStatus.FAILED_NO_RETRY, failures.get(0).exception);
+            }
+            MirroredSolrRequest newItem = new MirroredSolrRequest(mirroredSolrRequest.getAttempt() + 1, failedRequest,
+                mirroredSolrRequest.getSubmitTimeNanos());
+            return new Result<>(ResultStatus.FAILED_RESUBMIT, failure, newItem);
+        });
+    }
+
+    private Result<MirroredSolrRequest> failureResult(MirroredSolrRequest mirroredSolrRequest, Exception e) {
         final SolrException solrException = SolrExceptionUtil.asSolrException(e);
         logIf4xxException(solrException);
         if (!isRetryable(e)) {
@@ -118,14 +441,20 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
         } else {
             logFailure(mirroredSolrRequest, e, solrException, true);
             mirroredSolrRequest.setAttempt(mirroredSolrRequest.getAttempt() + 1);
-            maybeBackoff(solrException);
             return new Result<>(ResultStatus.FAILED_RESUBMIT, e, mirroredSolrRequest);
         }
     }
 
     private void maybeBackoff(SolrException solrException) {
+        long sleepTimeMs = solrExceptionBackoffMs(solrException);
+        if (sleepTimeMs > 0) {
+            uncheckedSleep(sleepTimeMs);
+        }
+    }
+
+    private long solrExceptionBackoffMs(SolrException solrException) {
         if (solrException == null) {
-            return;
+            return 0;
         }
         long sleepTimeMs = 1000;
         String backoffTimeSuggested = solrException.getMetadata("backoffTime-ms");
@@ -134,7 +463,7 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
             sleepTimeMs = Math.max(1, Long.parseLong(backoffTimeSuggested));
         }
         log.info("Consumer backoff. sleepTimeMs={}", sleepTimeMs);
-        uncheckedSleep(sleepTimeMs);
+        return sleepTimeMs;
     }
 
     private boolean isRetryable(Exception e) {
@@ -201,25 +530,27 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
 
     private void logRequest(SolrRequest request) {
         if(request instanceof UpdateRequest) {
-            final StringBuilder rmsg = new StringBuilder(64);
-            String collection = request.getCollection();
-            rmsg.append("Submitting update request for collection=").append(collection != null ? collection : request.getParams().get("collection"));
-            if(((UpdateRequest) request).getDeleteById() != null) {
-                final int numDeleteByIds = ((UpdateRequest) request).getDeleteById().size();
+            final UpdateRequest updateRequest = (UpdateRequest) request;
+            final List<String> deleteById = updateRequest.getDeleteById();
+            final Map<SolrInputDocument, Map<String, Object>> documents = updateRequest.getDocumentsMap();
+            final List<String> deleteQuery = updateRequest.getDeleteQuery();
+            final int numDeleteByIds = deleteById == null ? 0 : deleteById.size();
+            final int numUpdates = documents == null ? 0 : documents.size();
+            final int numDeleteByQuery = deleteQuery == null ? 0 : deleteQuery.size();
+            if (numDeleteByIds > 0) {
                 metrics.counter("numDeleteByIds").inc(numDeleteByIds);
-                rmsg.append(" numDeleteByIds=").append(numDeleteByIds);
             }
-            if(((UpdateRequest) request).getDocuments() != null) {
-                final int numUpdates = ((UpdateRequest) request).getDocuments().size();
+            if (numUpdates > 0) {
                 metrics.counter("numUpdates").inc(numUpdates);
-                rmsg.append(" numUpdates=").append(numUpdates);
             }
-            if(((UpdateRequest) request).getDeleteQuery() != null) {
-                final int numDeleteByQuery = ((UpdateRequest) request).getDeleteQuery().size();
+            if (numDeleteByQuery > 0) {
                 metrics.counter("numDeleteByQuery").inc(numDeleteByQuery);
-                rmsg.append(" numDeleteByQuery=").append(numDeleteByQuery);
             }
-            log.info(rmsg.toString());
+            if (log.isDebugEnabled()) {
+                String collection = request.getCollection();
+                log.debug("Submitting update request for collection={} numDeleteByIds={} numUpdates={} numDeleteByQuery={}",
+                    collection != null ? collection : request.getParams().get("collection"), numDeleteByIds, numUpdates, numDeleteByQuery);
+            }
         }
     }
 
@@ -273,8 +604,9 @@ public class SolrMessageProcessor extends MessageProcessor implements IQueueHand
 
     private void logFirstAttemptLatency(MirroredSolrRequest mirroredSolrRequest) {
         // Only record the latency of the first attempt, essentially measuring the latency from submitting on the
-        // primary side until the request is eligible to be consumed on the buddy side (or vice versa).
-        if (mirroredSolrRequest.getAttempt() == 1) {
+        // primary side until the request is eligible to be consumed on the buddy side (or vice versa). Records
+        // written without a submit time, by older producers, are skipped.
+        if (mirroredSolrRequest.getAttempt() == 1 && mirroredSolrRequest.getSubmitTimeNanos() > 0) {
             final long latency = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(mirroredSolrRequest.getSubmitTimeNanos());
             log.debug("First attempt latency = {}", latency);
             metrics.timer("latency").update(latency, TimeUnit.MILLISECONDS);
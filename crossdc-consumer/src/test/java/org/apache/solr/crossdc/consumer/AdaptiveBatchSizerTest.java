@@ -0,0 +1,76 @@
+package org.apache.solr.crossdc.consumer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveBatchSizerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(5000);
+
+    /**
+     * Should always return the max docs when not adaptive
+     */
+    @Test
+    public void maxDocsWhenNotAdaptive() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(new MetricRegistry(), false, 10, 1000, 2000);
+
+        sizer.onCompleted("coll1", 1000, SLOW, false);
+
+        assertEquals(1000, sizer.maxDocs("coll1"));
+    }
+
+    /**
+     * Should halve the limit on errors and slow requests, down to the min docs
+     */
+    @Test
+    public void decreaseOnFailureAndSlowRequest() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(new MetricRegistry(), true, 100, 1000, 2000);
+        assertEquals(1000, sizer.maxDocs("coll1"));
+
+        sizer.onCompleted("coll1", 1000, FAST, false);
+        assertEquals(500, sizer.maxDocs("coll1"));
+
+        sizer.onCompleted("coll1", 500, SLOW, true);
+        assertEquals(250, sizer.maxDocs("coll1"));
+
+        sizer.onCompleted("coll1", 250, SLOW, true);
+        sizer.onCompleted("coll1", 125, SLOW, true);
+        assertEquals(100, sizer.maxDocs("coll1"));
+
+        // other collections are not affected
+        assertEquals(1000, sizer.maxDocs("coll2"));
+    }
+
+    /**
+     * Should grow the limit additively after fast requests that used most of it, up to the max docs
+     */
+    @Test
+    public void increaseOnFastFullRequests() {
+        MetricRegistry metrics = new MetricRegistry();
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(metrics, true, 10, 1000, 2000);
+        sizer.onCompleted("coll1", 1000, SLOW, true);
+        assertEquals(500, sizer.maxDocs("coll1"));
+
+        // a small request does not tell anything about larger ones
+        sizer.onCompleted("coll1", 10, FAST, true);
+        assertEquals(500, sizer.maxDocs("coll1"));
+
+        sizer.onCompleted("coll1", 500, FAST, true);
+        assertEquals(520, sizer.maxDocs("coll1"));
+
+        for (int i = 0; i < 100; i++) {
+            sizer.onCompleted("coll1", sizer.maxDocs("coll1"), FAST, true);
+        }
+        assertEquals(1000, sizer.maxDocs("coll1"));
+
+        Gauge<?> gauge = metrics.getGauges().get("solr-batch-max-docs.coll1");
+        assertNotNull(gauge);
+        assertEquals(1000, gauge.getValue());
+    }
+}
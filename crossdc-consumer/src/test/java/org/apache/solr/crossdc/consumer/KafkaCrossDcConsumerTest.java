@@ -1,24 +1,44 @@
 package org.apache.solr.crossdc.consumer;
 
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.AbstractRecords;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.crossdc.common.CapturedSolrInputDocument;
 import org.apache.solr.crossdc.common.IQueueHandler;
 import org.apache.solr.crossdc.common.KafkaCrossDcConf;
 import org.apache.solr.crossdc.common.KafkaMirroringSink;
 import org.apache.solr.crossdc.common.MirroredSolrRequest;
+import org.apache.solr.crossdc.common.MirroredSolrRequestHeaders;
+import org.apache.solr.crossdc.common.MirroredSolrRequestSerializer;
+import org.apache.solr.crossdc.common.ShardPartitioner;
 import org.apache.solr.crossdc.messageprocessor.SolrMessageProcessor;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -132,7 +152,7 @@ public class KafkaCrossDcConsumerTest {
         doAnswer(invocation -> {
             subscribeLatch.countDown();
             return null;
-        }).when(kafkaConsumerMock).subscribe(anyList());
+        }).when(kafkaConsumerMock).subscribe(anyList(), any(ConsumerRebalanceListener.class));
 
         when(kafkaConsumerMock.poll(any())).thenReturn(new ConsumerRecords<>(Collections.emptyMap()));
 
@@ -149,7 +169,7 @@ public class KafkaCrossDcConsumerTest {
         kafkaCrossDcConsumer.shutdown();
 
         // Verify that the consumer was subscribed with the correct topic names
-        verify(kafkaConsumerMock).subscribe(anyList());
+        verify(kafkaConsumerMock).subscribe(anyList(), any(ConsumerRebalanceListener.class));
 
         // Verify that the appropriate methods were called on the mocks
         verify(kafkaConsumerMock).wakeup();
@@ -173,18 +193,64 @@ public class KafkaCrossDcConsumerTest {
 
         // Mock the KafkaMirroringSink
         KafkaMirroringSink mockKafkaMirroringSink = mock(KafkaMirroringSink.class);
-        doNothing().when(mockKafkaMirroringSink).submit(any(MirroredSolrRequest.class));
+        when(mockKafkaMirroringSink.submitAsync(any(MirroredSolrRequest.class))).thenReturn(CompletableFuture.completedFuture(null));
         consumer.kafkaMirroringSink = mockKafkaMirroringSink;
 
         // Call the method to test
         ConsumerRecord<String, MirroredSolrRequest> record = createSampleConsumerRecord();
         consumer.processResult(record, failedResubmitResult);
 
-        // Verify that the KafkaMirroringSink.submit() method was called
-        verify(consumer.kafkaMirroringSink, times(1)).submit(record.value());
+        // Verify that the KafkaMirroringSink.submitAsync() method was called
+        verify(consumer.kafkaMirroringSink, times(1)).submitAsync(record.value());
+    }
+
+    /** Should complete the handling of a failed request only once Kafka acknowledged its resubmission */
+    @Test
+    public void testHandleFailedResubmitWaitsForAcknowledgement() throws Exception {
+        KafkaCrossDcConsumer consumer = new KafkaCrossDcConsumer(testCrossDCConf(), new CountDownLatch(0));
+        KafkaMirroringSink mockKafkaMirroringSink = mock(KafkaMirroringSink.class);
+        CompletableFuture<RecordMetadata> acked = new CompletableFuture<>();
+        when(mockKafkaMirroringSink.submitAsync(any(MirroredSolrRequest.class))).thenReturn(acked);
+        consumer.kafkaMirroringSink = mockKafkaMirroringSink;
+        IQueueHandler.Result<MirroredSolrRequest> failedResubmitResult = new IQueueHandler.Result<>(IQueueHandler.ResultStatus.FAILED_RESUBMIT, null);
+
+        CompletableFuture<?> resubmitted = consumer.processResult(createSampleConsumerRecord(), failedResubmitResult);
+        assertFalse(resubmitted.isDone());
+
+        // a failed delivery fails the handling, and with it the lane of the batch
+        acked.completeExceptionally(new RuntimeException("delivery failed"));
+        assertTrue(resubmitted.isCompletedExceptionally());
+
+        // other results have nothing to wait for
+        IQueueHandler.Result<MirroredSolrRequest> handledResult = new IQueueHandler.Result<>(IQueueHandler.ResultStatus.HANDLED, null);
+        assertTrue(consumer.processResult(createSampleConsumerRecord(), handledResult).isDone());
     }
 
 
+    @Test
+    public void testHandleFailedResubmitToRetryTopics() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put(KafkaCrossDcConf.TOPIC_NAME, "sample-topic");
+        config.put(KafkaCrossDcConf.BOOTSTRAP_SERVERS, "localhost:9092");
+        config.put(KafkaCrossDcConf.RETRY_TOPIC_NAMES, "retry-topic");
+        config.put(KafkaCrossDcConf.DEAD_LETTER_TOPIC_NAME, "dlq-topic");
+        KafkaCrossDcConsumer consumer = new KafkaCrossDcConsumer(new KafkaCrossDcConf(config), new CountDownLatch(0));
+        KafkaMirroringSink mockKafkaMirroringSink = mock(KafkaMirroringSink.class);
+        when(mockKafkaMirroringSink.submitAsync(any(MirroredSolrRequest.class), anyString())).thenReturn(CompletableFuture.completedFuture(null));
+        consumer.kafkaMirroringSink = mockKafkaMirroringSink;
+        IQueueHandler.Result<MirroredSolrRequest> failedResubmitResult = new IQueueHandler.Result<>(IQueueHandler.ResultStatus.FAILED_RESUBMIT, null);
+
+        // a request failing on the main topic moves to the retry topic, and from there to the dead letter topic
+        ConsumerRecord<String, MirroredSolrRequest> record = createSampleConsumerRecord();
+        consumer.processResult(record, failedResubmitResult);
+        verify(mockKafkaMirroringSink, times(1)).submitAsync(record.value(), "retry-topic");
+
+        ConsumerRecord<String, MirroredSolrRequest> retryRecord = new ConsumerRecord<>("retry-topic", 0, 0, "key", createSampleMirroredSolrRequest());
+        consumer.processResult(retryRecord, failedResubmitResult);
+        verify(mockKafkaMirroringSink, times(1)).submitAsync(retryRecord.value(), "dlq-topic");
+        verify(mockKafkaMirroringSink, never()).submitAsync(any(MirroredSolrRequest.class));
+    }
+
     @Test
     public void testCreateKafkaCrossDcConsumer() {
         KafkaCrossDcConsumer consumer = new KafkaCrossDcConsumer(conf, new CountDownLatch(1));
@@ -273,6 +339,558 @@ public class KafkaCrossDcConsumerTest {
         }), eq(record), any());
     }
 
+    @Test
+    public void testBatchRequestsWithEqualParams() {
+        KafkaConsumer<String, MirroredSolrRequest> mockConsumer = mock(KafkaConsumer.class);
+        KafkaCrossDcConsumer spyConsumer = spy(new KafkaCrossDcConsumer(conf, new CountDownLatch(1)) {
+            @Override
+            public KafkaConsumer<String, MirroredSolrRequest> createKafkaConsumer(Properties properties) {
+                return mockConsumer;
+            }
+
+            @Override
+            public SolrMessageProcessor createSolrMessageProcessor() {
+                return messageProcessorMock;
+            }
+
+            @Override
+            protected KafkaMirroringSink createKafkaMirroringSink(KafkaCrossDcConf conf) {
+                return kafkaMirroringSinkMock;
+            }
+        });
+
+        // the same params added in a different order can be batched together
+        UpdateRequest request1 = new UpdateRequest();
+        request1.add("id", "1");
+        request1.setParams(new ModifiableSolrParams().add("commitWithin", "1000").add("collection", "coll1"));
+        UpdateRequest request2 = new UpdateRequest();
+        request2.add("id", "2");
+        request2.setParams(new ModifiableSolrParams().add("collection", "coll1").add("commitWithin", "1000"));
+        UpdateRequest request3 = new UpdateRequest();
+        request3.add("id", "3");
+        request3.setParams(new ModifiableSolrParams().add("collection", "coll2").add("commitWithin", "1000"));
+        assertEquals(new MirroredSolrRequest(request1).getParamsKey(), new MirroredSolrRequest(request2).getParamsKey());
+
+        ConsumerRecord<String, MirroredSolrRequest> record1 = new ConsumerRecord<>("test-topic", 0, 0, "key", new MirroredSolrRequest(request1));
+        ConsumerRecord<String, MirroredSolrRequest> record2 = new ConsumerRecord<>("test-topic", 0, 1, "key", new MirroredSolrRequest(request2));
+        ConsumerRecord<String, MirroredSolrRequest> record3 = new ConsumerRecord<>("test-topic", 0, 2, "key", new MirroredSolrRequest(request3));
+        ConsumerRecords<String, MirroredSolrRequest> records = new ConsumerRecords<>(
+                Collections.singletonMap(new TopicPartition("test-topic", 0), List.of(record1, record2, record3)));
+
+        when(mockConsumer.poll(any())).thenReturn(records).thenThrow(new WakeupException());
+
+        spyConsumer.run();
+
+        verify(spyConsumer, times(1)).sendBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 2), eq(record2), any());
+        verify(spyConsumer, times(1)).sendBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 1), eq(record3), any());
+        verify(spyConsumer, times(2)).sendBatch(any(), any(), any());
+    }
+
+    @Test
+    public void testMergePartitionBatches() {
+        KafkaConsumer<String, MirroredSolrRequest> mockConsumer = mock(KafkaConsumer.class);
+        Map<String, Object> config = new HashMap<>();
+        config.put(KafkaCrossDcConf.TOPIC_NAME, "topic1");
+        config.put(KafkaCrossDcConf.BOOTSTRAP_SERVERS, "localhost:9092");
+        config.put(KafkaCrossDcConf.MERGE_PARTITION_BATCHES, "true");
+        KafkaCrossDcConf mergeConf = new KafkaCrossDcConf(config);
+        KafkaCrossDcConsumer spyConsumer = spy(new KafkaCrossDcConsumer(mergeConf, new CountDownLatch(1)) {
+            @Override
+            public KafkaConsumer<String, MirroredSolrRequest> createKafkaConsumer(Properties properties) {
+                return mockConsumer;
+            }
+
+            @Override
+            public SolrMessageProcessor createSolrMessageProcessor() {
+                return messageProcessorMock;
+            }
+
+            @Override
+            protected KafkaMirroringSink createKafkaMirroringSink(KafkaCrossDcConf conf) {
+                return kafkaMirroringSinkMock;
+            }
+        });
+
+        Map<TopicPartition, List<ConsumerRecord<String, MirroredSolrRequest>>> recordsMap = new LinkedHashMap<>();
+        for (int partition = 0; partition < 3; partition++) {
+            UpdateRequest request = new UpdateRequest();
+            request.add("id", Integer.toString(partition));
+            // the last partition targets another collection
+            request.setParams(new ModifiableSolrParams().add("collection", partition < 2 ? "coll1" : "coll2"));
+            recordsMap.put(new TopicPartition("test-topic", partition),
+                    List.of(new ConsumerRecord<>("test-topic", partition, 7, "key", new MirroredSolrRequest(request))));
+        }
+
+        when(mockConsumer.poll(any())).thenReturn(new ConsumerRecords<>(recordsMap)).thenThrow(new WakeupException());
+
+        spyConsumer.run();
+
+        verify(spyConsumer, times(1)).submitBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 2),
+                any(), argThat(workUnits -> workUnits.size() == 2
+                        && workUnits.get(0).partition.partition() == 0 && workUnits.get(1).partition.partition() == 1));
+        verify(spyConsumer, times(1)).sendBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 1),
+                any(), argThat(workUnit -> workUnit.partition.partition() == 2 && workUnit.nextOffset == 8));
+    }
+
+    /**
+     * Should not merge the batches of a retry topic with those of the main topic, the retry tier of a failed request
+     * being chosen from the topic of its records
+     */
+    @Test
+    public void testMergePartitionBatchesPerTopic() {
+        KafkaConsumer<String, MirroredSolrRequest> mockConsumer = mock(KafkaConsumer.class);
+        Map<String, Object> config = new HashMap<>();
+        config.put(KafkaCrossDcConf.TOPIC_NAME, "test-topic");
+        config.put(KafkaCrossDcConf.BOOTSTRAP_SERVERS, "localhost:9092");
+        config.put(KafkaCrossDcConf.MERGE_PARTITION_BATCHES, "true");
+        config.put(KafkaCrossDcConf.RETRY_TOPIC_NAMES, "retry-topic");
+        config.put(KafkaCrossDcConf.RETRY_TOPIC_DELAYS_MS, "0");
+        KafkaCrossDcConsumer spyConsumer = spy(new KafkaCrossDcConsumer(new KafkaCrossDcConf(config), new CountDownLatch(1)) {
+            @Override
+            public KafkaConsumer<String, MirroredSolrRequest> createKafkaConsumer(Properties properties) {
+                return mockConsumer;
+            }
+
+            @Override
+            public SolrMessageProcessor createSolrMessageProcessor() {
+                return messageProcessorMock;
+            }
+
+            @Override
+            protected KafkaMirroringSink createKafkaMirroringSink(KafkaCrossDcConf conf) {
+                return kafkaMirroringSinkMock;
+            }
+        });
+
+        Map<TopicPartition, List<ConsumerRecord<String, MirroredSolrRequest>>> recordsMap = new LinkedHashMap<>();
+        for (String topic : List.of("test-topic", "retry-topic")) {
+            for (int partition = 0; partition < 2; partition++) {
+                UpdateRequest request = new UpdateRequest();
+                request.add("id", topic + partition);
+                request.setParams(new ModifiableSolrParams().add("collection", "coll1"));
+                recordsMap.put(new TopicPartition(topic, partition),
+                        List.of(new ConsumerRecord<>(topic, partition, 7, "key", new MirroredSolrRequest(request))));
+            }
+        }
+
+        when(mockConsumer.poll(any())).thenReturn(new ConsumerRecords<>(recordsMap)).thenThrow(new WakeupException());
+
+        spyConsumer.run();
+
+        for (String topic : List.of("test-topic", "retry-topic")) {
+            verify(spyConsumer, times(1)).submitBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 2),
+                    argThat(lastRecord -> lastRecord.topic().equals(topic)),
+                    argThat(workUnits -> workUnits.size() == 2
+                            && workUnits.stream().allMatch(workUnit -> workUnit.partition.topic().equals(topic))));
+        }
+    }
+
+    @Test
+    public void testSplitBatchAtMaxDocs() {
+        KafkaConsumer<String, MirroredSolrRequest> mockConsumer = mock(KafkaConsumer.class);
+        Map<String, Object> config = new HashMap<>();
+        config.put(KafkaCrossDcConf.TOPIC_NAME, "topic1");
+        config.put(KafkaCrossDcConf.BOOTSTRAP_SERVERS, "localhost:9092");
+        config.put(KafkaCrossDcConf.SOLR_BATCH_MAX_DOCS, "2");
+        KafkaCrossDcConsumer spyConsumer = spy(new KafkaCrossDcConsumer(new KafkaCrossDcConf(config), new CountDownLatch(1)) {
+            @Override
+            public KafkaConsumer<String, MirroredSolrRequest> createKafkaConsumer(Properties properties) {
+                return mockConsumer;
+            }
+
+            @Override
+            public SolrMessageProcessor createSolrMessageProcessor() {
+                return messageProcessorMock;
+            }
+
+            @Override
+            protected KafkaMirroringSink createKafkaMirroringSink(KafkaCrossDcConf conf) {
+                return kafkaMirroringSinkMock;
+            }
+        });
+
+        List<ConsumerRecord<String, MirroredSolrRequest>> recordList = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            UpdateRequest request = new UpdateRequest();
+            request.add("id", Integer.toString(i));
+            recordList.add(new ConsumerRecord<>("test-topic", 0, i, "key", new MirroredSolrRequest(request)));
+        }
+        ConsumerRecords<String, MirroredSolrRequest> records = new ConsumerRecords<>(
+                Collections.singletonMap(new TopicPartition("test-topic", 0), recordList));
+
+        when(mockConsumer.poll(any())).thenReturn(records).thenThrow(new WakeupException());
+
+        spyConsumer.run();
+
+        verify(spyConsumer, times(1)).sendBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 2), eq(recordList.get(1)), any());
+        verify(spyConsumer, times(1)).sendBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 2), eq(recordList.get(3)), any());
+        verify(spyConsumer, times(1)).sendBatch(argThat(updateRequest -> updateRequest.getDocuments().size() == 1), eq(recordList.get(4)), any());
+        verify(spyConsumer, times(3)).sendBatch(any(), any(), any());
+    }
+
+    @Test
+    public void testCompactBatch() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(KafkaCrossDcConf.TOPIC_NAME, "topic1");
+        config.put(KafkaCrossDcConf.BOOTSTRAP_SERVERS, "localhost:9092");
+        config.put(KafkaCrossDcConf.SOLR_BATCH_COMPACTION, "true");
+        KafkaCrossDcConsumer consumer = new KafkaCrossDcConsumer(new KafkaCrossDcConf(config), new CountDownLatch(1)) {
+            @Override
+            protected String readUniqueKey(String collection) {
+                return "id";
+            }
+        };
+
+        List<UpdateRequest> requests = new ArrayList<>();
+        UpdateRequest request = new UpdateRequest();
+        request.add("id", "1", "version", "1");
+        requests.add(request);
+        request = new UpdateRequest();
+        request.add("id", "2");
+        requests.add(request);
+        request = new UpdateRequest();
+        request.deleteById("1");
+        requests.add(request);
+        request = new UpdateRequest();
+        request.add("id", "1", "version", "2");
+        requests.add(request);
+        // atomic updates are kept after the previous updates of the same id
+        SolrInputDocument atomicUpdate = new SolrInputDocument("id", "2");
+        atomicUpdate.addField("count", Map.of("inc", 1));
+        request = new UpdateRequest();
+        request.add(atomicUpdate);
+        requests.add(request);
+        request = new UpdateRequest();
+        request.deleteByQuery("type:old");
+        requests.add(request);
+        // a document after a delete by query starts a new batch
+        request = new UpdateRequest();
+        request.add("id", "3");
+        requests.add(request);
+        List<ConsumerRecord<String, MirroredSolrRequest>> recordList = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            recordList.add(new ConsumerRecord<>("test-topic", 0, i, "key", new MirroredSolrRequest(requests.get(i))));
+        }
+
+        List<KafkaCrossDcConsumer.PartitionBatch> batches = consumer.groupPartitionRecords(new TopicPartition("test-topic", 0), recordList);
+
+        assertEquals(2, batches.size());
+        UpdateRequest compacted = batches.get(0).solrReqBatch;
+        List<SolrInputDocument> docs = compacted.getDocuments();
+        assertEquals(3, docs.size());
+        assertEquals("2", docs.get(0).getFieldValue("id"));
+        assertEquals("2", docs.get(1).getFieldValue("version"));
+        assertSame(atomicUpdate, docs.get(2));
+        assertTrue(compacted.getDeleteByIdMap() == null || compacted.getDeleteByIdMap().isEmpty());
+        assertEquals(List.of("type:old"), compacted.getDeleteQuery());
+        assertEquals(4, batches.get(0).numUpdates);
+        assertEquals(recordList.get(5), batches.get(0).lastRecord);
+        assertEquals("3", batches.get(1).solrReqBatch.getDocuments().get(0).getFieldValue("id"));
+    }
+
+    /**
+     * Should compact the batches of each collection on its unique key, and not compact those of a collection whose
+     * unique key can't be read
+     */
+    @Test
+    public void testCompactBatchOnUniqueKey() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(KafkaCrossDcConf.TOPIC_NAME, "topic1");
+        config.put(KafkaCrossDcConf.BOOTSTRAP_SERVERS, "localhost:9092");
+        config.put(KafkaCrossDcConf.SOLR_BATCH_COMPACTION, "true");
+        List<String> readCollections = new ArrayList<>();
+        KafkaCrossDcConsumer consumer = new KafkaCrossDcConsumer(new KafkaCrossDcConf(config), new CountDownLatch(1)) {
+            @Override
+            protected String readUniqueKey(String collection) throws Exception {
+                readCollections.add(collection);
+                if ("coll2".equals(collection)) {
+                    throw new SolrServerException("unavailable");
+                }
+                return "key";
+            }
+        };
+
+        for (String collection : List.of("coll1", "coll2")) {
+            List<ConsumerRecord<String, MirroredSolrRequest>> recordList = new ArrayList<>();
+            // same id, distinct keys
+            for (int i = 0; i < 2; i++) {
+                UpdateRequest request = new UpdateRequest();
+                request.add("id", "1", "key", Integer.toString(i));
+                request.setParams(new ModifiableSolrParams().add("collection", collection));
+                recordList.add(new ConsumerRecord<>("test-topic", 0, i, "key", new MirroredSolrRequest(request)));
+            }
+            // same key, the first add is compacted away
+            UpdateRequest request = new UpdateRequest();
+            request.add("id", "2", "key", "1");
+            request.setParams(new ModifiableSolrParams().add("collection", collection));
+            recordList.add(new ConsumerRecord<>("test-topic", 0, 2, "key", new MirroredSolrRequest(request)));
+
+            List<KafkaCrossDcConsumer.PartitionBatch> batches = consumer.groupPartitionRecords(new TopicPartition("test-topic", 0), recordList);
+
+            assertEquals(1, batches.size());
+            List<SolrInputDocument> docs = batches.get(0).solrReqBatch.getDocuments();
+            if (collection.equals("coll1")) {
+                assertEquals(2, docs.size());
+                assertEquals("0", docs.get(0).getFieldValue("key"));
+                assertEquals("2", docs.get(1).getFieldValue("id"));
+            } else {
+                assertEquals(3, docs.size());
+            }
+        }
+
+        // the unique key is read once, a failure is retried later
+        consumer.uniqueKeyField("coll1");
+        consumer.uniqueKeyField("coll2");
+        assertEquals(List.of("coll1", "coll2"), readCollections);
+    }
+
+    /** Should defer the decoding of lazily deserialized requests until the batch is sent */
+    @Test
+    public void testDeferDecodingOfLazyRequests() {
+        MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+        List<ConsumerRecord<String, MirroredSolrRequest>> recordList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            UpdateRequest request = new UpdateRequest();
+            request.add("id", Integer.toString(i));
+            request.deleteById("old-" + i);
+            request.setParams(new ModifiableSolrParams().add("collection", "coll1"));
+            byte[] data = serializer.serialize("test-topic", new MirroredSolrRequest(request));
+            MirroredSolrRequest lazy = serializer.deserialize("test-topic", data);
+            assertFalse(lazy.isDecoded());
+            assertEquals(2, lazy.getNumUpdates());
+            recordList.add(new ConsumerRecord<>("test-topic", 0, i, "key", lazy));
+        }
+
+        List<KafkaCrossDcConsumer.PartitionBatch> batches = kafkaCrossDcConsumer.groupPartitionRecords(new TopicPartition("test-topic", 0), recordList);
+
+        assertEquals(1, batches.size());
+        KafkaCrossDcConsumer.PartitionBatch batch = batches.get(0);
+        assertEquals("coll1", batch.collection);
+        assertEquals(6, batch.numUpdates);
+        assertNull(batch.solrReqBatch.getDocumentsMap());
+        for (ConsumerRecord<String, MirroredSolrRequest> record : recordList) {
+            assertFalse(record.value().isDecoded());
+        }
+
+        batch.solrReqBatch.decodeDeferred();
+
+        List<SolrInputDocument> docs = batch.solrReqBatch.getDocuments();
+        assertEquals(3, docs.size());
+        assertEquals("2", docs.get(2).getFieldValue("id"));
+        assertEquals(List.of("old-0", "old-1", "old-2"), batch.solrReqBatch.getDeleteById());
+        assertEquals("coll1", batch.solrReqBatch.getParams().get("collection"));
+    }
+
+    /** Should serialize only the written bytes when the output buffer is reused */
+    @Test
+    public void testSerializeExactBytes() {
+        MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+        UpdateRequest small = new UpdateRequest();
+        small.add("id", "1");
+        byte[] first = serializer.serialize("test-topic", new MirroredSolrRequest(small));
+
+        UpdateRequest large = new UpdateRequest();
+        for (int i = 0; i < 1000; i++) {
+            large.add("id", Integer.toString(i), "text_t", "some text to fill the buffer " + i);
+        }
+        serializer.serialize("test-topic", new MirroredSolrRequest(large));
+
+        assertArrayEquals(first, serializer.serialize("test-topic", new MirroredSolrRequest(small)));
+        UpdateRequest decoded = (UpdateRequest) serializer.deserialize("test-topic", first).getSolrRequest();
+        assertEquals("1", decoded.getDocuments().get(0).getFieldValue("id"));
+    }
+
+    /** Should expose the fields of a captured document as captured, and reject changes to it */
+    @Test
+    public void testCapturedDocumentAccessors() throws Exception {
+        SolrInputDocument doc = new SolrInputDocument("id", "1", "text_t", "captured");
+        doc.addField("_version_", 5L);
+        doc.addChildDocument(new SolrInputDocument("id", "1-1"));
+        CapturedSolrInputDocument captured = CapturedSolrInputDocument.capture(doc, "_version_");
+        doc.setField("text_t", "modified");
+
+        assertEquals("1", captured.getFieldValue("id"));
+        assertEquals("captured", captured.getFieldValue("text_t"));
+        assertNull(captured.getFieldValue("_version_"));
+        assertEquals(2, captured.size());
+        assertEquals(List.of("id", "text_t"), new ArrayList<>(captured.getFieldNames()));
+        assertEquals("1-1", captured.getChildDocuments().get(0).getFieldValue("id"));
+        assertEquals("captured", captured.deepCopy().getFieldValue("text_t"));
+
+        assertThrows(UnsupportedOperationException.class, () -> captured.setField("text_t", "changed"));
+        assertThrows(UnsupportedOperationException.class, () -> captured.removeField("id"));
+        assertThrows(UnsupportedOperationException.class, () -> captured.iterator().remove());
+    }
+
+    /** Should serialize captured documents like regular ones, in both record formats */
+    @Test
+    public void testSerializeCapturedDocuments() throws Exception {
+        SolrInputDocument doc = new SolrInputDocument("id", "1", "text_t", "captured");
+        doc.addField("_version_", 5L);
+        doc.addChildDocument(new SolrInputDocument("id", "1-1", "text_t", "child"));
+        for (boolean updateFormat : new boolean[] {false, true}) {
+            MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+            serializer.configure(Collections.singletonMap(KafkaCrossDcConf.JAVABIN_UPDATE_FORMAT, Boolean.toString(updateFormat)), false);
+            UpdateRequest request = new UpdateRequest();
+            request.add(CapturedSolrInputDocument.capture(doc, "_version_"));
+            request.add(new SolrInputDocument("id", "2", "text_t", "regular"));
+            request.add(CapturedSolrInputDocument.capture(new SolrInputDocument("id", "3", "text_t", "captured"), null));
+            request.setParams(new ModifiableSolrParams().add("collection", "coll1"));
+
+            byte[] data = serializer.serialize("test-topic", new MirroredSolrRequest(request));
+            UpdateRequest decoded = (UpdateRequest) serializer.deserialize("test-topic", data).getSolrRequest();
+
+            List<SolrInputDocument> docs = decoded.getDocuments();
+            assertEquals(3, docs.size());
+            assertEquals("1", docs.get(0).getFieldValue("id"));
+            assertEquals("captured", docs.get(0).getFieldValue("text_t"));
+            assertNull(docs.get(0).getField("_version_"));
+            assertEquals("1-1", docs.get(0).getChildDocuments().get(0).getFieldValue("id"));
+            assertEquals("regular", docs.get(1).getFieldValue("text_t"));
+            assertEquals("3", docs.get(2).getFieldValue("id"));
+            assertEquals("coll1", decoded.getParams().get("collection"));
+        }
+    }
+
+    /**
+     * Should map evenly split shards to distinct partitions, keep the partition of a shard stable and apply the mapping
+     */
+    @Test
+    public void testShardPartitions() {
+        DocRouter router = new CompositeIdRouter();
+        ShardPartitioner partitioner = new ShardPartitioner("shard", "coll2/shard1:7");
+        assertTrue(partitioner.isEnabled());
+        for (int numShards : new int[] {1, 3, 8}) {
+            List<DocRouter.Range> ranges = router.partitionRange(numShards, router.fullRange());
+            Set<Integer> partitions = new HashSet<>();
+            for (int i = 0; i < numShards; i++) {
+                Integer partition = partitioner.partition("coll1", "shard" + (i + 1), ranges.get(i), 8);
+                assertTrue("partition=" + partition, partition >= 0 && partition < 8);
+                assertEquals(partition, partitioner.partition("coll1", "shard" + (i + 1), ranges.get(i), 8));
+                partitions.add(partition);
+            }
+            assertEquals(numShards, partitions.size());
+        }
+
+        DocRouter.Range range = router.fullRange();
+        assertEquals(Integer.valueOf(7), partitioner.partition("coll2", "shard1", range, 8));
+        // a mapping to a missing partition falls back to the range
+        assertEquals(Integer.valueOf(1), partitioner.partition("coll2", "shard1", range, 2));
+        assertNull(partitioner.partition("coll1", "shard1", null, 8));
+        assertEquals("coll1/shard1", ShardPartitioner.key("coll1", "shard1"));
+
+        assertFalse(new ShardPartitioner("none", null).isEnabled());
+        assertThrows(IllegalArgumentException.class, () -> new ShardPartitioner("document", null));
+        assertThrows(IllegalArgumentException.class, () -> new ShardPartitioner("shard", "coll1/shard1"));
+    }
+
+    /** Should copy all-captured documents to the record directly, within the record overhead bound */
+    @Test
+    public void testSerializeCapturedRecordSize() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams().add("collection", "coll1").add("commitWithin", "1000");
+        String key = ShardPartitioner.key("coll1", "shard1");
+        int overhead = MirroredSolrRequestSerializer.recordOverheadBytes(params, key);
+        assertEquals(MirroredSolrRequestSerializer.recordOverheadBytes(params) + key.length(), overhead);
+        for (boolean updateFormat : new boolean[] {false, true}) {
+            MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+            serializer.configure(Collections.singletonMap(KafkaCrossDcConf.JAVABIN_UPDATE_FORMAT, Boolean.toString(updateFormat)), false);
+            UpdateRequest request = new UpdateRequest();
+            int updateBytes = 0;
+            for (int i = 0; i < 10; i++) {
+                CapturedSolrInputDocument doc = CapturedSolrInputDocument.capture(new SolrInputDocument("id", "doc-" + i, "text_t", "text " + i), null);
+                request.add(doc);
+                updateBytes += doc.getSizeInBytes();
+            }
+            request.deleteById("deleted");
+            updateBytes += MirroredSolrRequestSerializer.deleteSizeInBytes("deleted");
+            request.setParams(params);
+
+            RecordHeaders headers = new RecordHeaders();
+            byte[] data = serializer.serialize("test-topic", headers, new MirroredSolrRequest(request));
+            int recordSize = AbstractRecords.estimateSizeInBytesUpperBound(RecordBatch.CURRENT_MAGIC_VALUE, CompressionType.NONE,
+                key.getBytes(StandardCharsets.UTF_8), data, headers.toArray());
+            assertTrue(recordSize + " > " + (overhead + updateBytes), recordSize <= overhead + updateBytes);
+
+            UpdateRequest decoded = (UpdateRequest) serializer.deserialize("test-topic", headers, data).getSolrRequest();
+            assertEquals(10, decoded.getDocuments().size());
+            assertEquals("doc-9", decoded.getDocuments().get(9).getFieldValue("id"));
+            assertEquals(Collections.singletonList("deleted"), decoded.getDeleteById());
+            assertEquals("1000", decoded.getParams().get("commitWithin"));
+        }
+    }
+
+    /** Should write the attempt, submit time and content summary in the record headers and read them back */
+    @Test
+    public void testRecordHeaders() {
+        MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+        UpdateRequest request = new UpdateRequest();
+        request.add("id", "1");
+        request.deleteById("2");
+        request.setParams(new ModifiableSolrParams().add("collection", "coll1"));
+        RecordHeaders headers = new RecordHeaders();
+        byte[] data = serializer.serialize("test-topic", headers, new MirroredSolrRequest(3, request, 12345L));
+
+        assertEquals(MirroredSolrRequestHeaders.CURRENT_VERSION, MirroredSolrRequestHeaders.getVersion(headers));
+        assertEquals("coll1", MirroredSolrRequestHeaders.getCollection(headers));
+        assertEquals(2, MirroredSolrRequestHeaders.getNumUpdates(headers));
+        assertEquals(MirroredSolrRequestHeaders.OP_MIXED, MirroredSolrRequestHeaders.get(headers, MirroredSolrRequestHeaders.OPERATION));
+        assertEquals(12345L, MirroredSolrRequestHeaders.getSubmitTimeNanos(headers));
+
+        MirroredSolrRequest deserialized = serializer.deserialize("test-topic", headers, data);
+        assertEquals(3, deserialized.getAttempt());
+        assertEquals(12345L, deserialized.getSubmitTimeNanos());
+
+        // records of older producers have no headers
+        MirroredSolrRequest legacy = serializer.deserialize("test-topic", new RecordHeaders(), data);
+        assertEquals(1, legacy.getAttempt());
+        assertEquals(0L, legacy.getSubmitTimeNanos());
+
+        RecordHeaders newer = new RecordHeaders();
+        newer.add(MirroredSolrRequestHeaders.VERSION, Integer.toString(MirroredSolrRequestHeaders.CURRENT_VERSION + 1).getBytes(StandardCharsets.UTF_8));
+        assertThrows(SerializationException.class, () -> serializer.deserialize("test-topic", newer, data));
+    }
+
+    /** Should forward the records in the javabin update format as a single content stream */
+    @Test
+    public void testPassThroughBatch() throws Exception {
+        MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+        serializer.configure(Collections.singletonMap(KafkaCrossDcConf.JAVABIN_UPDATE_FORMAT, "true"), false);
+        List<ConsumerRecord<String, MirroredSolrRequest>> recordList = new ArrayList<>();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 2; i++) {
+            UpdateRequest request = new UpdateRequest();
+            request.add("id", Integer.toString(i));
+            request.setParams(new ModifiableSolrParams().add("collection", "coll1"));
+            byte[] data = serializer.serialize("test-topic", new MirroredSolrRequest(request));
+            expected.write(data);
+            MirroredSolrRequest lazy = serializer.deserialize("test-topic", data);
+            assertEquals(1, lazy.getNumUpdates());
+            assertEquals("coll1", lazy.getParams().get("collection"));
+            assertArrayEquals(data, lazy.getSerializedUpdate());
+            recordList.add(new ConsumerRecord<>("test-topic", 0, i, "key", lazy));
+        }
+
+        List<KafkaCrossDcConsumer.PartitionBatch> batches = kafkaCrossDcConsumer.groupPartitionRecords(new TopicPartition("test-topic", 0), recordList);
+
+        assertEquals(1, batches.size());
+        KafkaCrossDcConsumer.BatchUpdateRequest batch = batches.get(0).solrReqBatch;
+        ContentStreamUpdateRequest passThrough = batch.toPassThroughRequest();
+        assertNotNull(passThrough);
+        assertEquals("coll1", passThrough.getParams().get("collection"));
+        ContentStream stream = passThrough.getContentStreams().iterator().next();
+        assertEquals("application/javabin", stream.getContentType());
+        try (InputStream in = stream.getStream()) {
+            assertArrayEquals(expected.toByteArray(), in.readAllBytes());
+        }
+        assertEquals(2, batch.numUpdates());
+
+        // the same records decode as usual
+        batch.decodeDeferred();
+        assertEquals(2, batch.getDocuments().size());
+        assertEquals("1", batch.getDocuments().get(1).getFieldValue("id"));
+        assertNull(batch.toPassThroughRequest());
+    }
+
     @Test
     public void testHandleWakeupException() {
         KafkaConsumer<String, MirroredSolrRequest> mockConsumer = mock(KafkaConsumer.class);
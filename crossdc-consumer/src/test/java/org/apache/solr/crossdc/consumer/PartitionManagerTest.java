@@ -6,7 +6,12 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.solr.crossdc.common.MirroredSolrRequest;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -52,51 +57,52 @@ public class PartitionManagerTest {
     }
 
     /**
-     * Should not update the offset when the future for update is not done
+     * Should not advance the offset while a task of the work unit is pending
      */
     @Test
-    public void checkForOffsetUpdatesWhenFutureNotDone() throws Throwable {
+    public void checkForOffsetUpdatesWhenWorkUnitPending() throws Throwable {
         KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
         PartitionManager partitionManager = new PartitionManager(consumer);
         TopicPartition partition = new TopicPartition("test-topic", 0);
         PartitionManager.PartitionWork partitionWork = partitionManager.getPartitionWork(partition);
-        PartitionManager.WorkUnit workUnit = new PartitionManager.WorkUnit(partition);
-        Future<?> future = mock(Future.class);
-        when(future.isDone()).thenReturn(false);
-        workUnit.workItems.add(future);
-        partitionWork.partitionQueue.add(workUnit);
+        PartitionManager.WorkUnit workUnit = partitionManager.newWorkUnit(partition, 10);
+        workUnit.addPending();
+        workUnit.addPending();
+        workUnit.complete(null);
 
         partitionManager.checkForOffsetUpdates(partition);
+        partitionManager.commitOffsetsSync();
 
         assertEquals(1, partitionWork.partitionQueue.size());
         assertTrue(partitionWork.partitionQueue.contains(workUnit));
+        assertEquals(-1, partitionWork.completedOffset.get());
+        verify(consumer, never()).commitSync(anyMap());
     }
 
     /**
-     * Should update the offset when the future for update is done
+     * Should update the offset when all the tasks of the work unit are done
      */
     @Test
-    public void checkForOffsetUpdatesWhenFutureDone() throws Throwable {
+    public void checkForOffsetUpdatesWhenWorkUnitDone() throws Throwable {
         KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
         PartitionManager partitionManager = new PartitionManager(consumer);
         TopicPartition partition = new TopicPartition("test-topic", 0);
 
         PartitionManager.PartitionWork partitionWork = partitionManager.getPartitionWork(partition);
-        PartitionManager.WorkUnit workUnit = new PartitionManager.WorkUnit(partition);
-        partitionWork.partitionQueue.add(workUnit);
+        PartitionManager.WorkUnit workUnit = partitionManager.newWorkUnit(partition, 10);
+        workUnit.addPending();
 
-        // Use a real Future instead of a mocked one
+        // Complete the work unit from a worker thread
         ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<?> future = executor.submit(() -> {
-            // Simulate the task being completed
-        });
+        executor.submit(() -> workUnit.complete(null)).get(10, TimeUnit.SECONDS);
 
-        workUnit.workItems.add(future);
+        partitionManager.checkForOffsetUpdates(partition);
 
-        // Wait for the Future to completeE
-        future.get(10, TimeUnit.SECONDS);
+        // The offset is only committed later, on the poll thread
+        verify(consumer, never()).commitSync(anyMap());
+        assertEquals(10, partitionWork.completedOffset.get());
 
-        partitionManager.checkForOffsetUpdates(partition);
+        partitionManager.commitOffsetsSync();
 
         // Verify that the consumer.commitSync() method was called with the correct parameters
         verify(consumer, times(1))
@@ -107,10 +113,69 @@ public class PartitionManagerTest {
         // Verify that the partitionQueue is empty after processing
         assertTrue(partitionWork.partitionQueue.isEmpty());
 
+        // Nothing new to commit
+        partitionManager.commitOffsetsSync();
+        verify(consumer, times(1)).commitSync(anyMap());
+
         // Shutdown the executor
         executor.shutdown();
     }
 
+    /**
+     * Should only advance the watermark over the contiguous run of completed work units
+     */
+    @Test
+    public void advanceWhenWorkUnitsCompleteOutOfOrder() {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer);
+        TopicPartition partition = new TopicPartition("test-topic", 0);
+        PartitionManager.PartitionWork partitionWork = partitionManager.getPartitionWork(partition);
+
+        PartitionManager.WorkUnit workUnit1 = partitionManager.newWorkUnit(partition, 10);
+        PartitionManager.WorkUnit workUnit2 = partitionManager.newWorkUnit(partition, 20);
+        PartitionManager.WorkUnit workUnit3 = partitionManager.newWorkUnit(partition, 30);
+        workUnit1.addPending();
+        workUnit2.addPending();
+        workUnit3.addPending();
+        assertEquals(0, workUnit1.seq);
+        assertEquals(1, workUnit2.seq);
+        assertEquals(2, workUnit3.seq);
+
+        workUnit2.complete(null);
+        assertEquals(-1, partitionWork.completedOffset.get());
+
+        workUnit1.complete(null);
+        assertEquals(20, partitionWork.completedOffset.get());
+        assertEquals(1, partitionWork.partitionQueue.size());
+
+        workUnit3.complete(null);
+        assertEquals(30, partitionWork.completedOffset.get());
+        assertTrue(partitionWork.partitionQueue.isEmpty());
+    }
+
+    /**
+     * Should report the failure of a work unit and never commit past it
+     */
+    @Test
+    public void checkForOffsetUpdatesWhenWorkUnitFailed() {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer);
+        TopicPartition partition = new TopicPartition("test-topic", 0);
+        PartitionManager.PartitionWork partitionWork = partitionManager.getPartitionWork(partition);
+        PartitionManager.WorkUnit workUnit1 = partitionManager.newWorkUnit(partition, 10);
+        PartitionManager.WorkUnit workUnit2 = partitionManager.newWorkUnit(partition, 20);
+        workUnit1.addPending();
+        workUnit2.addPending();
+
+        RuntimeException failure = new RuntimeException("failed");
+        workUnit1.complete(failure);
+        workUnit2.complete(null);
+
+        Throwable thrown = assertThrows(Throwable.class, () -> partitionManager.checkForOffsetUpdates(partition));
+        assertSame(failure, thrown);
+        assertEquals(-1, partitionWork.completedOffset.get());
+    }
+
     /**
      * Should check for offset updates for all partitions in the partitionWorkMap
      */
@@ -118,51 +183,282 @@ public class PartitionManagerTest {
     public void checkOffsetUpdatesForAllPartitions() throws Throwable { // Create a mock KafkaConsumer
         KafkaConsumer<String, MirroredSolrRequest> mockConsumer = mock(KafkaConsumer.class);
 
-        // Create a PartitionManager instance with the mock KafkaConsumer
-        PartitionManager partitionManager = new PartitionManager(mockConsumer);
+        // Create a PartitionManager instance with the mock KafkaConsumer, committing after two work units
+        PartitionManager partitionManager = new PartitionManager(mockConsumer, 60000, 2, 10, 5);
 
         // Create a few TopicPartitions
         TopicPartition partition1 = new TopicPartition("topic1", 0);
         TopicPartition partition2 = new TopicPartition("topic2", 0);
 
-        // Add some PartitionWork to the partitionWorkMap
-        PartitionManager.PartitionWork work1 = partitionManager.getPartitionWork(partition1);
-        PartitionManager.PartitionWork work2 = partitionManager.getPartitionWork(partition2);
+        // Create WorkUnits and register them on their partitions
+        PartitionManager.WorkUnit workUnit1 = partitionManager.newWorkUnit(partition1, 10);
+        PartitionManager.WorkUnit workUnit2 = partitionManager.newWorkUnit(partition2, 20);
+        workUnit1.addPending();
+        workUnit2.addPending();
 
-        // Create WorkUnits and add them to the PartitionWork
-        PartitionManager.WorkUnit workUnit1 = new PartitionManager.WorkUnit(partition1);
-        PartitionManager.WorkUnit workUnit2 = new PartitionManager.WorkUnit(partition2);
+        // Complete the work units
+        workUnit1.complete(null);
+        workUnit2.complete(null);
 
-        work1.partitionQueue.add(workUnit1);
-        work2.partitionQueue.add(workUnit2);
+        // Call the checkOffsetUpdates method
+        partitionManager.checkOffsetUpdates();
 
-        // Create mock Futures and add them to the WorkUnits
-        Future<?> mockFuture1 = mock(Future.class);
-        Future<?> mockFuture2 = mock(Future.class);
+        // Verify that the offsets of both partitions were committed with a single asynchronous commit
+        verify(mockConsumer, times(1))
+                .commitAsync(
+                        eq(Map.of(
+                                partition1, new OffsetAndMetadata(workUnit1.nextOffset),
+                                partition2, new OffsetAndMetadata(workUnit2.nextOffset))),
+                        any());
+        verify(mockConsumer, never()).commitSync(anyMap());
+    }
 
-        workUnit1.workItems.add(mockFuture1);
-        workUnit2.workItems.add(mockFuture2);
+    /**
+     * Should not commit before the commit interval elapsed or enough work units completed
+     */
+    @Test
+    public void checkOffsetUpdatesCoalescesCommits() throws Throwable {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer, 60000, 3, 10, 5);
+        TopicPartition partition = new TopicPartition("test-topic", 0);
 
-        // Set the mock Futures to be done
-        when(mockFuture1.isDone()).thenReturn(true);
-        when(mockFuture2.isDone()).thenReturn(true);
+        for (int i = 1; i <= 3; i++) {
+            PartitionManager.WorkUnit workUnit = partitionManager.newWorkUnit(partition, i);
+            workUnit.addPending();
+            workUnit.complete(null);
+            partitionManager.checkOffsetUpdates();
+            if (i < 3) {
+                verify(consumer, never()).commitAsync(anyMap(), any());
+            }
+        }
+
+        verify(consumer, times(1))
+                .commitAsync(eq(Collections.singletonMap(partition, new OffsetAndMetadata(3))), any());
+    }
+
+    /**
+     * Should pause a partition when its in-flight work units reach the pause threshold and resume it once they
+     * drained down to the resume threshold
+     */
+    @Test
+    public void checkOffsetUpdatesPausesAndResumesPartition() throws Throwable {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer, 60000, 100, 3, 1);
+        TopicPartition partition = new TopicPartition("test-topic", 0);
+        List<PartitionManager.WorkUnit> workUnits = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            PartitionManager.WorkUnit workUnit = partitionManager.newWorkUnit(partition, i);
+            workUnit.addPending();
+            workUnits.add(workUnit);
+        }
 
-        // Call the checkOffsetUpdates method
         partitionManager.checkOffsetUpdates();
+        verify(consumer, times(1)).pause(List.of(partition));
+        assertTrue(partitionManager.getPartitionWork(partition).paused);
 
-        // Verify that the futures were checked for completion
-        verify(mockFuture1, times(1)).isDone();
-        verify(mockFuture2, times(1)).isDone();
+        // Still above the resume threshold
+        workUnits.get(0).complete(null);
+        partitionManager.checkOffsetUpdates();
+        verify(consumer, never()).resume(anyCollection());
 
+        workUnits.get(1).complete(null);
+        partitionManager.checkOffsetUpdates();
+        verify(consumer, times(1)).resume(List.of(partition));
+        assertFalse(partitionManager.getPartitionWork(partition).paused);
+        verify(consumer, times(1)).pause(anyCollection());
+    }
 
-        // Verify that the updateOffset method was called for each partition
-        verify(mockConsumer, times(1))
-                .commitSync(
-                        Collections.singletonMap(
-                                partition1, new OffsetAndMetadata(workUnit1.nextOffset)));
-        verify(mockConsumer, times(1))
-                .commitSync(
-                        Collections.singletonMap(
-                                partition2, new OffsetAndMetadata(workUnit2.nextOffset)));
+    /**
+     * Should keep a deferred partition paused at its first record that is not due, and resume it once due
+     */
+    @Test
+    public void deferPausesPartitionUntilDue() throws Throwable {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer, 60000, 100, 3, 1, List.of("retry-topic"));
+        TopicPartition partition = new TopicPartition("retry-topic", 0);
+
+        partitionManager.defer(partition, 42, 100);
+        verify(consumer).seek(partition, 42);
+        verify(consumer, times(1)).pause(List.of(partition));
+
+        partitionManager.checkOffsetUpdates();
+        verify(consumer, never()).resume(anyCollection());
+
+        Thread.sleep(150);
+        partitionManager.checkOffsetUpdates();
+        verify(consumer, times(1)).resume(List.of(partition));
+        assertFalse(partitionManager.getPartitionWork(partition).paused);
+    }
+
+    /**
+     * Should pause the partitions of low priority topics while another partition is paused for having too many
+     * in-flight work units
+     */
+    @Test
+    public void lowPriorityPartitionsYieldToBusyPartitions() throws Throwable {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer, 60000, 100, 3, 1, List.of("retry-topic"));
+        TopicPartition partition = new TopicPartition("test-topic", 0);
+        TopicPartition retryPartition = new TopicPartition("retry-topic", 0);
+        partitionManager.getPartitionWork(retryPartition);
+        List<PartitionManager.WorkUnit> workUnits = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            PartitionManager.WorkUnit workUnit = partitionManager.newWorkUnit(partition, i);
+            workUnit.addPending();
+            workUnits.add(workUnit);
+        }
+
+        partitionManager.checkOffsetUpdates();
+        verify(consumer, times(1)).pause(List.of(partition, retryPartition));
+        assertTrue(partitionManager.getPartitionWork(retryPartition).paused);
+
+        for (PartitionManager.WorkUnit workUnit : workUnits) {
+            workUnit.complete(null);
+        }
+        partitionManager.checkOffsetUpdates();
+        verify(consumer, times(1)).resume(List.of(partition, retryPartition));
+        assertFalse(partitionManager.getPartitionWork(retryPartition).paused);
+    }
+
+    /**
+     * Should run the batches of a partition in submission order, even on a multi-threaded pool
+     */
+    @Test
+    public void laneRunsBatchesInOrder() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TopicPartition partition = new TopicPartition("test-topic", 0);
+        PartitionManager.PartitionWork partitionWork = new PartitionManager.PartitionWork();
+        PartitionManager.WorkUnit workUnit1 = new PartitionManager.WorkUnit(partition);
+        PartitionManager.WorkUnit workUnit2 = new PartitionManager.WorkUnit(partition);
+        workUnit1.nextOffset = 1;
+        workUnit2.nextOffset = 2;
+        partitionWork.register(workUnit1);
+        partitionWork.register(workUnit2);
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+
+        partitionWork.submit(() -> {
+            firstBatchStarted.countDown();
+            try {
+                releaseFirstBatch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.add(1);
+        }, workUnit1, executor);
+        Future<?> last = partitionWork.submit(() -> processed.add(2), workUnit2, executor);
+
+        assertTrue(firstBatchStarted.await(10, TimeUnit.SECONDS));
+        assertFalse(last.isDone());
+        releaseFirstBatch.countDown();
+        last.get(10, TimeUnit.SECONDS);
+
+        assertEquals(List.of(1, 2), processed);
+        assertEquals(2, partitionWork.completedOffset.get());
+        executor.shutdown();
+    }
+
+    /**
+     * Should start the next asynchronous batch of a partition only once the future of the previous one completed
+     */
+    @Test
+    public void laneChainsAsyncBatches() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TopicPartition partition = new TopicPartition("test-topic", 0);
+        PartitionManager.PartitionWork partitionWork = new PartitionManager.PartitionWork();
+        PartitionManager.WorkUnit workUnit1 = new PartitionManager.WorkUnit(partition);
+        PartitionManager.WorkUnit workUnit2 = new PartitionManager.WorkUnit(partition);
+        workUnit1.nextOffset = 1;
+        workUnit2.nextOffset = 2;
+        partitionWork.register(workUnit1);
+        partitionWork.register(workUnit2);
+        CompletableFuture<Void> firstResponse = new CompletableFuture<>();
+        CountDownLatch secondBatchStarted = new CountDownLatch(1);
+
+        partitionWork.submitAsync(() -> firstResponse, workUnit1, executor);
+        Future<?> last = partitionWork.submitAsync(() -> {
+            secondBatchStarted.countDown();
+            return CompletableFuture.completedFuture(null);
+        }, workUnit2, executor);
+
+        assertFalse(secondBatchStarted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(-1, partitionWork.completedOffset.get());
+
+        // the response arrives on another thread, e.g. the http client's
+        executor.submit(() -> firstResponse.complete(null));
+        last.get(10, TimeUnit.SECONDS);
+
+        assertEquals(0, secondBatchStarted.getCount());
+        assertEquals(2, partitionWork.completedOffset.get());
+        executor.shutdown();
+    }
+
+    /**
+     * Should run a batch merged from several partitions after the previous batches of all of them, and complete
+     * the work units of all of them
+     */
+    @Test
+    public void mergedBatchRunsAfterAllSourceLanes() throws Exception {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TopicPartition partition1 = new TopicPartition("test-topic", 0);
+        TopicPartition partition2 = new TopicPartition("test-topic", 1);
+        CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+
+        PartitionManager.WorkUnit blockingWorkUnit = partitionManager.newWorkUnit(partition2, 5);
+        partitionManager.submit(() -> {
+            try {
+                releaseFirstBatch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, List.of(blockingWorkUnit), executor);
+
+        PartitionManager.WorkUnit workUnit1 = partitionManager.newWorkUnit(partition1, 10);
+        PartitionManager.WorkUnit workUnit2 = partitionManager.newWorkUnit(partition2, 20);
+        Future<?> merged = partitionManager.submit(() -> {}, List.of(workUnit1, workUnit2), executor);
+
+        Thread.sleep(100);
+        assertFalse(merged.isDone());
+        assertEquals(-1, partitionManager.getPartitionWork(partition1).completedOffset.get());
+
+        releaseFirstBatch.countDown();
+        merged.get(10, TimeUnit.SECONDS);
+
+        assertEquals(10, partitionManager.getPartitionWork(partition1).completedOffset.get());
+        assertEquals(20, partitionManager.getPartitionWork(partition2).completedOffset.get());
+        executor.shutdown();
+    }
+
+    /**
+     * Should wait for the lane to drain, commit its offset and drop the partition work on revoke
+     */
+    @Test
+    public void onPartitionsRevokedDrainsLaneAndCommits() throws Exception {
+        KafkaConsumer<String, MirroredSolrRequest> consumer = mock(KafkaConsumer.class);
+        PartitionManager partitionManager = new PartitionManager(consumer);
+        TopicPartition partition = new TopicPartition("test-topic", 0);
+        partitionManager.onPartitionsAssigned(Collections.singletonList(partition));
+        assertTrue(partitionManager.partitionWorkMap.containsKey(partition));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PartitionManager.PartitionWork partitionWork = partitionManager.getPartitionWork(partition);
+        PartitionManager.WorkUnit workUnit = partitionManager.newWorkUnit(partition, 42);
+        partitionWork.submit(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, workUnit, executor);
+
+        partitionManager.onPartitionsRevoked(Collections.singletonList(partition));
+
+        verify(consumer, times(1))
+                .commitSync(Collections.singletonMap(partition, new OffsetAndMetadata(42)));
+        assertFalse(partitionManager.partitionWorkMap.containsKey(partition));
+        executor.shutdown();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.crossdc.consumer;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RetryTopicsTest {
+
+    /**
+     * Should move a failed request through the retry topics and then to the dead letter topic
+     */
+    @Test
+    public void nextTopicFollowsTiers() {
+        RetryTopics retryTopics = new RetryTopics(List.of("retry-1", "retry-2"), List.of("1000", "60000"), "dlq");
+
+        assertTrue(retryTopics.isEnabled());
+        assertEquals("retry-1", retryTopics.nextTopic("main"));
+        assertEquals("retry-2", retryTopics.nextTopic("retry-1"));
+        assertEquals("dlq", retryTopics.nextTopic("retry-2"));
+        assertTrue(retryTopics.isDeadLetterTopic("dlq"));
+        assertFalse(retryTopics.isRetryTopic("main"));
+        assertEquals(0, retryTopics.getDelayMs("main"));
+        assertEquals(60000, retryTopics.getDelayMs("retry-2"));
+    }
+
+    /**
+     * Should keep a request on the last retry topic without dead letter topic, and reuse the last delay
+     */
+    @Test
+    public void lastRetryTopicWithoutDeadLetterTopic() {
+        RetryTopics retryTopics = new RetryTopics(List.of("retry-1", "retry-2"), List.of("5000"), null);
+
+        assertEquals("retry-2", retryTopics.nextTopic("retry-2"));
+        assertEquals(5000, retryTopics.getDelayMs("retry-1"));
+        assertEquals(5000, retryTopics.getDelayMs("retry-2"));
+    }
+
+    /**
+     * Should be disabled without retry and dead letter topics
+     */
+    @Test
+    public void disabledWithoutTopics() {
+        RetryTopics retryTopics = new RetryTopics(Collections.emptyList(), List.of("5000"), " ");
+
+        assertFalse(retryTopics.isEnabled());
+    }
+}
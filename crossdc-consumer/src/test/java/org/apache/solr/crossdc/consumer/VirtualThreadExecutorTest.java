@@ -0,0 +1,65 @@
+package org.apache.solr.crossdc.consumer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadExecutorTest {
+
+    /**
+     * Should return null when the JDK does not support virtual threads, an executor otherwise
+     */
+    @Test
+    public void createDependsOnRuntime() {
+        boolean supported;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            supported = true;
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        VirtualThreadExecutor executor = VirtualThreadExecutor.create("test-", 4);
+        if (supported) {
+            assertNotNull(executor);
+            executor.shutdown();
+        } else {
+            assertNull(executor);
+        }
+    }
+
+    /**
+     * Should never run more tasks at the same time than the max concurrent tasks
+     */
+    @Test
+    public void boundsConcurrentTasks() throws Exception {
+        VirtualThreadExecutor executor = VirtualThreadExecutor.create("test-", 4);
+        assumeTrue("Virtual threads are not supported by this JDK", executor != null);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            }, executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+
+        assertTrue(maxRunning.get() <= 4);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
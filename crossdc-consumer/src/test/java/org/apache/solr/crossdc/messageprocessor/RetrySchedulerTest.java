@@ -0,0 +1,75 @@
+package org.apache.solr.crossdc.messageprocessor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RetrySchedulerTest {
+    private RetryScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        // a small wheel so that the delays below span several rotations
+        scheduler = new RetryScheduler("RetrySchedulerTest", 1, 16, ForkJoinPool.commonPool());
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    /**
+     * Should complete immediately without a delay
+     */
+    @Test
+    public void completesWithoutDelay() {
+        CompletableFuture<String> future = scheduler.schedule("retry", 0);
+
+        assertTrue(future.isDone());
+        assertEquals(0, scheduler.parked());
+    }
+
+    /**
+     * Should complete each retry once its delay elapsed, including delays longer than a rotation of the wheel
+     */
+    @Test
+    public void completesAfterDelay() throws Exception {
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (long delayMs : new long[] {50, 5, 100, 20}) {
+            futures.add(scheduler.schedule(delayMs, delayMs).thenApply(delay -> {
+                long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                assertTrue("completed after " + elapsedMs + "ms instead of " + delay, elapsedMs >= delay);
+                return delay;
+            }));
+        }
+        assertEquals(4, scheduler.parked());
+
+        for (CompletableFuture<Long> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(0, scheduler.parked());
+    }
+
+    /**
+     * Should complete the parked retries when closed
+     */
+    @Test
+    public void closeCompletesParkedRetries() throws Exception {
+        CompletableFuture<String> future = scheduler.schedule("retry", TimeUnit.HOURS.toMillis(1));
+        assertFalse(future.isDone());
+
+        scheduler.close();
+
+        assertEquals("retry", future.get(10, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.parked());
+    }
+}
@@ -3,9 +3,19 @@ package org.apache.solr.crossdc.messageprocessor;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.SolrResponseBase;
+import org.apache.solr.client.solrj.util.AsyncListener;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.cloud.Aliases;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.crossdc.common.IQueueHandler;
 import org.apache.solr.crossdc.common.MirroredSolrRequest;
@@ -14,6 +24,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -68,6 +83,131 @@ public class SolrMessageProcessorTest {
         assertEquals(mirroredSolrRequest, result.newItem());
     }
 
+    /**
+     * Should return without waiting for the backoff of a failed request, and complete once the backoff elapsed
+     */
+    @Test
+    public void handleItemWithScheduledBackoff() throws Exception {
+        MirroredSolrRequest mirroredSolrRequest = mock(MirroredSolrRequest.class);
+        SolrRequest solrRequest = mock(SolrRequest.class);
+        when(mirroredSolrRequest.getSolrRequest()).thenReturn(solrRequest);
+        when(solrRequest.process(client))
+                .thenThrow(new SolrException(ErrorCode.SERVER_ERROR, "Server error"));
+
+        long startNanos = System.nanoTime();
+        CompletableFuture<IQueueHandler.Result<MirroredSolrRequest>> future =
+                solrMessageProcessor.handleItemWithScheduledBackoff(mirroredSolrRequest);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 1000);
+        IQueueHandler.Result<MirroredSolrRequest> result = future.get(10, TimeUnit.SECONDS);
+        // the default backoff of a Solr exception is one second
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) >= 990);
+        assertEquals(IQueueHandler.ResultStatus.FAILED_RESUBMIT, result.status());
+        assertEquals(mirroredSolrRequest, result.newItem());
+        // the latency of the Solr call excludes the backoff
+        assertTrue(result.latencyNanos() >= 0);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(result.latencyNanos()) < 990);
+    }
+
+    /**
+     * Should bisect a batch rejected by Solr, apply its good documents and only resubmit the rejected one
+     */
+    @Test
+    public void handleItemIsolatesRejectedDocuments() throws Exception {
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, null, true, resubmitBackoffPolicy);
+        List<List<Object>> sentIds = new ArrayList<>();
+        when(client.request(any(SolrRequest.class), any())).thenAnswer(invocation -> {
+            UpdateRequest sent = invocation.getArgument(0);
+            List<Object> ids = new ArrayList<>();
+            sent.getDocuments().forEach(doc -> ids.add(doc.getFieldValue("id")));
+            sentIds.add(ids);
+            if (ids.contains("3")) {
+                throw new SolrException(ErrorCode.BAD_REQUEST, "unknown field");
+            }
+            NamedList<Object> responseHeader = new NamedList<>();
+            responseHeader.add("status", 0);
+            NamedList<Object> response = new NamedList<>();
+            response.add("responseHeader", responseHeader);
+            return response;
+        });
+        UpdateRequest updateRequest = new UpdateRequest();
+        for (int i = 1; i <= 4; i++) {
+            updateRequest.add("id", Integer.toString(i));
+        }
+
+        IQueueHandler.Result<MirroredSolrRequest> result = processor.handleItem(new MirroredSolrRequest(updateRequest));
+
+        assertEquals(IQueueHandler.ResultStatus.FAILED_RESUBMIT, result.status());
+        UpdateRequest resubmitted = (UpdateRequest) result.newItem().getSolrRequest();
+        assertEquals(1, resubmitted.getDocuments().size());
+        assertEquals("3", resubmitted.getDocuments().get(0).getFieldValue("id"));
+        assertEquals(List.of(List.of("1", "2", "3", "4"), List.of("1", "2"), List.of("3", "4"), List.of("3"), List.of("4")), sentIds);
+    }
+
+    /**
+     * Should stop bisecting when a half fails for another reason than a rejection, and resubmit it with the rest of
+     * the batch without sending the later half, so that the updates are applied in order
+     */
+    @Test
+    public void handleItemStopsIsolationOnServerError() throws Exception {
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, null, true, resubmitBackoffPolicy);
+        List<List<Object>> sentIds = new ArrayList<>();
+        when(client.request(any(SolrRequest.class), any())).thenAnswer(invocation -> {
+            UpdateRequest sent = invocation.getArgument(0);
+            List<Object> ids = new ArrayList<>();
+            sent.getDocuments().forEach(doc -> ids.add(doc.getFieldValue("id")));
+            sentIds.add(ids);
+            if (ids.size() == 4) {
+                throw new SolrException(ErrorCode.BAD_REQUEST, "unknown field");
+            }
+            throw new SolrException(ErrorCode.SERVICE_UNAVAILABLE, "no leader");
+        });
+        UpdateRequest updateRequest = new UpdateRequest();
+        for (int i = 1; i <= 4; i++) {
+            updateRequest.add("id", Integer.toString(i));
+        }
+
+        IQueueHandler.Result<MirroredSolrRequest> result = processor.handleItem(new MirroredSolrRequest(updateRequest));
+
+        assertEquals(IQueueHandler.ResultStatus.FAILED_RESUBMIT, result.status());
+        assertEquals(ErrorCode.SERVICE_UNAVAILABLE.code, ((SolrException) result.throwable()).code());
+        UpdateRequest resubmitted = (UpdateRequest) result.newItem().getSolrRequest();
+        List<Object> resubmittedIds = new ArrayList<>();
+        resubmitted.getDocuments().forEach(doc -> resubmittedIds.add(doc.getFieldValue("id")));
+        assertEquals(List.of("1", "2", "3", "4"), resubmittedIds);
+        // the right half is never sent
+        assertEquals(List.of(List.of("1", "2", "3", "4"), List.of("1", "2")), sentIds);
+    }
+
+    /**
+     * Should stop bisecting a batch whose documents are all rejected once the isolation requests are spent, and
+     * resubmit the rest of the batch
+     */
+    @Test
+    public void handleItemBoundsIsolationRequests() throws Exception {
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, null, 2, resubmitBackoffPolicy);
+        List<Integer> sentSizes = new ArrayList<>();
+        when(client.request(any(SolrRequest.class), any())).thenAnswer(invocation -> {
+            UpdateRequest sent = invocation.getArgument(0);
+            sentSizes.add(sent.getDocuments().size());
+            throw new SolrException(ErrorCode.BAD_REQUEST, "unknown field");
+        });
+        UpdateRequest updateRequest = new UpdateRequest();
+        for (int i = 1; i <= 8; i++) {
+            updateRequest.add("id", Integer.toString(i));
+        }
+
+        IQueueHandler.Result<MirroredSolrRequest> result = processor.handleItem(new MirroredSolrRequest(updateRequest));
+
+        assertEquals(IQueueHandler.ResultStatus.FAILED_RESUBMIT, result.status());
+        UpdateRequest resubmitted = (UpdateRequest) result.newItem().getSolrRequest();
+        assertEquals(8, resubmitted.getDocuments().size());
+        assertEquals("1", resubmitted.getDocuments().get(0).getFieldValue("id"));
+        assertEquals("8", resubmitted.getDocuments().get(7).getFieldValue("id"));
+        // the batch, then the two isolation requests
+        assertEquals(List.of(8, 4, 2), sentSizes);
+    }
+
     /**
      * Should handle MirroredSolrRequest and return a successful result
      */
@@ -106,4 +246,229 @@ public class SolrMessageProcessorTest {
         verify(client, times(1)).connect();
         verify(solrRequest, times(1)).process(client);
     }
-}
\ No newline at end of file
+
+    private Http2SolrClient mockAsyncClusterState() {
+        ZkStateReader zkStateReader = mock(ZkStateReader.class);
+        ClusterState clusterState = mock(ClusterState.class);
+        Aliases aliases = mock(Aliases.class);
+        DocCollection docCollection = mock(DocCollection.class);
+        Slice slice = mock(Slice.class);
+        Replica leader = mock(Replica.class);
+        when(client.getZkStateReader()).thenReturn(zkStateReader);
+        when(zkStateReader.getClusterState()).thenReturn(clusterState);
+        when(zkStateReader.getAliases()).thenReturn(aliases);
+        when(aliases.resolveSimpleAlias("coll1")).thenReturn("coll1");
+        when(clusterState.getCollectionOrNull("coll1")).thenReturn(docCollection);
+        when(clusterState.getLiveNodes()).thenReturn(Set.of("node1:8983_solr"));
+        when(docCollection.getActiveSlices()).thenReturn(List.of(slice));
+        when(slice.getLeader()).thenReturn(leader);
+        when(leader.getNodeName()).thenReturn("node1:8983_solr");
+        when(leader.getBaseUrl()).thenReturn("http://node1:8983/solr");
+        return mock(Http2SolrClient.class);
+    }
+
+    /**
+     * Should send the request asynchronously to the shard leader and complete with a successful result
+     */
+    @Test
+    public void handleItemAsyncWithSuccessfulResult() throws Exception {
+        Http2SolrClient asyncClient = mockAsyncClusterState();
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, asyncClient, resubmitBackoffPolicy);
+        UpdateRequest updateRequest = new UpdateRequest();
+        updateRequest.add("id", "1");
+        updateRequest.setParam("collection", "coll1");
+        List<SolrRequest<?>> sent = new ArrayList<>();
+        doAnswer(invocation -> {
+            sent.add(invocation.getArgument(0));
+            AsyncListener<NamedList<Object>> listener = invocation.getArgument(2);
+            NamedList<Object> responseHeader = new NamedList<>();
+            responseHeader.add("status", 0);
+            NamedList<Object> response = new NamedList<>();
+            response.add("responseHeader", responseHeader);
+            listener.onSuccess(response);
+            return null;
+        }).when(asyncClient).asyncRequest(any(), eq("coll1"), any());
+
+        IQueueHandler.Result<MirroredSolrRequest> result =
+                processor.handleItemAsync(new MirroredSolrRequest(updateRequest)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(IQueueHandler.ResultStatus.HANDLED, result.status());
+        assertEquals(1, sent.size());
+        assertEquals("http://node1:8983/solr", sent.get(0).getBasePath());
+        assertEquals(1, ((UpdateRequest) sent.get(0)).getDocuments().size());
+        // the node is set on a copy, the request may be resubmitted
+        assertNull(updateRequest.getBasePath());
+        verify(client, never()).request(any(SolrRequest.class));
+    }
+
+    /**
+     * Should complete with a failed result, and not exceptionally, when the asynchronous request fails
+     */
+    @Test
+    public void handleItemAsyncWithFailedResultNoRetry() throws Exception {
+        Http2SolrClient asyncClient = mockAsyncClusterState();
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, asyncClient, resubmitBackoffPolicy);
+        UpdateRequest updateRequest = new UpdateRequest();
+        updateRequest.add("id", "1");
+        updateRequest.setParam("collection", "coll1");
+        doAnswer(invocation -> {
+            AsyncListener<NamedList<Object>> listener = invocation.getArgument(2);
+            listener.onFailure(new SolrException(ErrorCode.CONFLICT, "version conflict"));
+            return null;
+        }).when(asyncClient).asyncRequest(any(), eq("coll1"), any());
+
+        IQueueHandler.Result<MirroredSolrRequest> result =
+                processor.handleItemAsync(new MirroredSolrRequest(updateRequest)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(IQueueHandler.ResultStatus.FAILED_NO_RETRY, result.status());
+    }
+
+    /**
+     * Mocks a collection coll1 of two shards, docs 1 and 3 routing to shard1 and doc 2 to shard2.
+     */
+    private void mockShardedClusterState() {
+        ZkStateReader zkStateReader = mock(ZkStateReader.class);
+        ClusterState clusterState = mock(ClusterState.class);
+        Aliases aliases = mock(Aliases.class);
+        DocCollection docCollection = mock(DocCollection.class);
+        DocRouter router = mock(DocRouter.class);
+        Slice slice1 = mock(Slice.class);
+        Slice slice2 = mock(Slice.class);
+        Replica leader1 = mock(Replica.class);
+        Replica leader2 = mock(Replica.class);
+        when(client.getZkStateReader()).thenReturn(zkStateReader);
+        when(client.getIdField()).thenReturn("id");
+        when(zkStateReader.getClusterState()).thenReturn(clusterState);
+        when(zkStateReader.getAliases()).thenReturn(aliases);
+        when(aliases.resolveSimpleAlias("coll1")).thenReturn("coll1");
+        when(clusterState.getCollectionOrNull("coll1")).thenReturn(docCollection);
+        when(clusterState.getLiveNodes()).thenReturn(Set.of("node1:8983_solr", "node2:8983_solr"));
+        when(docCollection.getRouter()).thenReturn(router);
+        when(router.getTargetSlice(eq("1"), any(), any(), any(), eq(docCollection))).thenReturn(slice1);
+        when(router.getTargetSlice(eq("2"), any(), any(), any(), eq(docCollection))).thenReturn(slice2);
+        when(router.getTargetSlice(eq("3"), any(), any(), any(), eq(docCollection))).thenReturn(slice1);
+        when(slice1.getLeader()).thenReturn(leader1);
+        when(slice2.getLeader()).thenReturn(leader2);
+        when(leader1.getNodeName()).thenReturn("node1:8983_solr");
+        when(leader1.getBaseUrl()).thenReturn("http://node1:8983/solr");
+        when(leader1.getCoreName()).thenReturn("coll1_shard1_replica_n1");
+        when(leader2.getNodeName()).thenReturn("node2:8983_solr");
+        when(leader2.getBaseUrl()).thenReturn("http://node2:8983/solr");
+        when(leader2.getCoreName()).thenReturn("coll1_shard2_replica_n2");
+    }
+
+    /**
+     * Mocks an asynchronous client recording the requests sent, each of them succeeding.
+     */
+    private Http2SolrClient mockAsyncClient(List<UpdateRequest> sent) {
+        Http2SolrClient asyncClient = mock(Http2SolrClient.class);
+        doAnswer(invocation -> {
+            sent.add(invocation.getArgument(0));
+            AsyncListener<NamedList<Object>> listener = invocation.getArgument(2);
+            NamedList<Object> responseHeader = new NamedList<>();
+            responseHeader.add("status", 0);
+            NamedList<Object> response = new NamedList<>();
+            response.add("responseHeader", responseHeader);
+            listener.onSuccess(response);
+            return null;
+        }).when(asyncClient).asyncRequest(any(), any(), any());
+        return asyncClient;
+    }
+
+    /**
+     * Should split the update request per shard, send the sub-requests to the shard leader cores and complete once
+     * all of them succeeded, as the synchronous path does
+     */
+    @Test
+    public void handleItemAsyncWithShardRouting() throws Exception {
+        mockShardedClusterState();
+
+        List<UpdateRequest> sent = new ArrayList<>();
+        Http2SolrClient asyncClient = mockAsyncClient(sent);
+
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, asyncClient, resubmitBackoffPolicy);
+        UpdateRequest updateRequest = new UpdateRequest();
+        updateRequest.add("id", "1");
+        updateRequest.add("id", "2");
+        updateRequest.deleteById("3");
+        updateRequest.setParam("collection", "coll1");
+
+        IQueueHandler.Result<MirroredSolrRequest> result =
+                processor.handleItemAsync(new MirroredSolrRequest(updateRequest)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(IQueueHandler.ResultStatus.HANDLED, result.status());
+        verify(asyncClient).asyncRequest(any(), eq("coll1_shard1_replica_n1"), any());
+        verify(asyncClient).asyncRequest(any(), eq("coll1_shard2_replica_n2"), any());
+        assertEquals(2, sent.size());
+        UpdateRequest shard1Request = sent.get(0);
+        assertEquals("http://node1:8983/solr", shard1Request.getBasePath());
+        assertEquals(1, shard1Request.getDocuments().size());
+        assertEquals(List.of("3"), shard1Request.getDeleteById());
+        assertNull(shard1Request.getParams().get("collection"));
+        assertEquals("http://node2:8983/solr", sent.get(1).getBasePath());
+        assertEquals("2", sent.get(1).getDocuments().get(0).getFieldValue("id"));
+    }
+
+    /**
+     * Should send an update request whose updates all route to one shard to the core of its leader
+     */
+    @Test
+    public void handleItemAsyncWithShardRoutingToOneShard() throws Exception {
+        mockShardedClusterState();
+        List<UpdateRequest> sent = new ArrayList<>();
+        Http2SolrClient asyncClient = mockAsyncClient(sent);
+
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, asyncClient, resubmitBackoffPolicy);
+        UpdateRequest updateRequest = new UpdateRequest();
+        updateRequest.add("id", "1");
+        updateRequest.deleteById("3");
+        updateRequest.setParam("collection", "coll1");
+
+        IQueueHandler.Result<MirroredSolrRequest> result =
+                processor.handleItemAsync(new MirroredSolrRequest(updateRequest)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(IQueueHandler.ResultStatus.HANDLED, result.status());
+        verify(asyncClient).asyncRequest(any(), eq("coll1_shard1_replica_n1"), any());
+        assertEquals(1, sent.size());
+        assertEquals("http://node1:8983/solr", sent.get(0).getBasePath());
+        assertEquals(1, sent.get(0).getDocuments().size());
+        assertEquals(List.of("3"), sent.get(0).getDeleteById());
+    }
+
+    /**
+     * Should route the documents on the unique key of the collection rather than on the id field of the client
+     */
+    @Test
+    public void handleItemAsyncWithShardRoutingOnUniqueKey() throws Exception {
+        mockShardedClusterState();
+        List<UpdateRequest> sent = new ArrayList<>();
+        Http2SolrClient asyncClient = mockAsyncClient(sent);
+
+        List<String> resolved = new ArrayList<>();
+        SolrMessageProcessor processor = new SolrMessageProcessor(client, asyncClient, 0, collection -> {
+            resolved.add(collection);
+            return "key";
+        }, resubmitBackoffPolicy);
+        UpdateRequest updateRequest = new UpdateRequest();
+        // the unrelated id field would route the doc to shard1
+        updateRequest.add("key", "2", "id", "1");
+        updateRequest.setParam("collection", "coll1");
+
+        IQueueHandler.Result<MirroredSolrRequest> result =
+                processor.handleItemAsync(new MirroredSolrRequest(updateRequest)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(IQueueHandler.ResultStatus.HANDLED, result.status());
+        assertEquals(List.of("coll1"), resolved);
+        verify(asyncClient).asyncRequest(any(), eq("coll1_shard2_replica_n2"), any());
+        assertEquals(1, sent.size());
+        assertEquals("http://node2:8983/solr", sent.get(0).getBasePath());
+    }
+
+    /**
+     * Should not accept asynchronous requests without an asynchronous client
+     */
+    @Test(expected = IllegalStateException.class)
+    public void handleItemAsyncWithoutAsyncClient() {
+        solrMessageProcessor.handleItemAsync(new MirroredSolrRequest(new UpdateRequest()));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.update.processor;
+
+import org.apache.solr.cloud.CloudDescriptor;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.CoreDescriptor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per document cost of deciding whether to mirror a document on a shard leader: looking the collection
+ * and the shard leader up in the cluster state and routing the id, as the processor used to do for every document,
+ * against the cached leadership, for a request sent to the core directly ({@code NONE} phase, the id is only routed
+ * with several shards) and for a request forwarded to the leader ({@code TOLEADER} phase).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LeaderResolutionBenchmark {
+
+    private static final String COLLECTION = "collection1";
+    private static final int NUM_IDS = 1024;
+
+    @Param({"1", "8"})
+    public int numShards;
+
+    private final SolrParams params = new ModifiableSolrParams();
+    private final String[] ids = new String[NUM_IDS];
+    private ClusterState clusterState;
+    private LeaderCache leaderCache;
+    private int next;
+
+    @Setup
+    public void setup() {
+        DocRouter router = new CompositeIdRouter();
+        List<DocRouter.Range> ranges = router.partitionRange(numShards, router.fullRange());
+        Map<String, Slice> slices = new HashMap<>();
+        for (int i = 0; i < numShards; i++) {
+            String shard = "shard" + (i + 1);
+            Map<String, Object> replicaProps = new HashMap<>();
+            replicaProps.put("core", COLLECTION + "_" + shard + "_replica_n1");
+            replicaProps.put("node_name", "node1");
+            replicaProps.put("state", "active");
+            replicaProps.put("leader", "true");
+            String replicaName = "core_node" + (i + 1);
+            Replica replica = new Replica(replicaName, replicaProps, COLLECTION, shard);
+            Map<String, Object> sliceProps = new HashMap<>();
+            sliceProps.put(Slice.RANGE, ranges.get(i));
+            slices.put(shard, new Slice(shard, Collections.singletonMap(replicaName, replica), sliceProps, COLLECTION));
+        }
+        DocCollection collection = new DocCollection(COLLECTION, slices, new HashMap<>(), router);
+        Set<String> liveNodes = Collections.singleton("node1");
+        clusterState = new ClusterState(liveNodes, Collections.singletonMap(COLLECTION, collection));
+
+        Properties props = new Properties();
+        props.setProperty(CoreDescriptor.CORE_COLLECTION, COLLECTION);
+        props.setProperty(CoreDescriptor.CORE_SHARD, "shard1");
+        props.setProperty(CoreDescriptor.CORE_NODE_NAME, "core_node1");
+        leaderCache = new LeaderCache(new CloudDescriptor(null, COLLECTION + "_shard1_replica_n1", props));
+        leaderCache.onStateChanged(liveNodes, collection);
+
+        for (int i = 0; i < NUM_IDS; i++) {
+            ids[i] = "doc-" + i;
+        }
+    }
+
+    private String nextId() {
+        return ids[next++ & (NUM_IDS - 1)];
+    }
+
+    @Benchmark
+    public boolean lookup() {
+        DocCollection collection = clusterState.getCollection(COLLECTION);
+        Slice slice = collection.getRouter().getTargetSlice(nextId(), null, null, params, collection);
+        // what ZkStateReader.getLeaderRetry reads from the cluster state
+        Replica leader = clusterState.getCollection(COLLECTION).getSlice(slice.getName()).getLeader();
+        return leader != null && clusterState.liveNodesContain(leader.getNodeName()) && leader.getName().equals("core_node1");
+    }
+
+    @Benchmark
+    public Boolean cached() {
+        return leaderCache.isLeader(nextId(), null, params, null);
+    }
+
+    @Benchmark
+    public Boolean cachedToLeader() {
+        nextId();
+        return leaderCache.isShardLeader();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.update.processor;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.crossdc.common.CapturedSolrInputDocument;
+import org.apache.solr.crossdc.common.MirroredSolrRequest;
+import org.apache.solr.crossdc.common.MirroredSolrRequestSerializer;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.update.AddUpdateCommand;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the indexing throughput of client requests of large documents with mirroring off and on, the mirroring
+ * processor writing the Kafka records but not sending them, and the leader downstream only setting the version of
+ * each document. {@code deepCopyCapture} and {@code serializedCapture} compare the per document capture, as the
+ * processor used to do it with a deep copy and a size estimate, and as it does it now. Run with
+ * {@code -Pjmh.args="MirroringUpdateProcessorBenchmark -prof gc"} to see the bytes allocated per request
+ * ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MirroringUpdateProcessorBenchmark {
+
+    private static final int DOCS_PER_REQUEST = 100;
+    private static final int VALUES_PER_FIELD = 50;
+
+    @Param({"10", "100"})
+    public int multiValuedFields;
+
+    private final MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+    private final ModifiableSolrParams mirrorParams = new ModifiableSolrParams().add("collection", "collection1");
+    private final SolrInputDocument[] docs = new SolrInputDocument[DOCS_PER_REQUEST];
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < DOCS_PER_REQUEST; i++) {
+            SolrInputDocument doc = new SolrInputDocument("id", "doc-" + i, "title_s", "a large mirrored document " + i);
+            for (int f = 0; f < multiValuedFields; f++) {
+                for (int v = 0; v < VALUES_PER_FIELD; v++) {
+                    doc.addField("field" + f + "_ss", "value " + v + " of field " + f);
+                }
+            }
+            docs[i] = doc;
+        }
+    }
+
+    @Benchmark
+    public void mirroringOff(Blackhole blackhole) throws IOException {
+        index(leader(blackhole));
+    }
+
+    @Benchmark
+    public void mirroringOn(Blackhole blackhole) throws IOException {
+        RequestMirroringHandler handler = request -> blackhole.consume(serializer.serialize("topic", new MirroredSolrRequest(request)));
+        index(new MirroringUpdateProcessor(leader(blackhole), true, false, 1 << 20, mirrorParams,
+            DistributedUpdateProcessor.DistribPhase.NONE, handler) {
+            @Override
+            boolean isLeader(SolrQueryRequest req, String id, String route, SolrInputDocument doc) {
+                return true;
+            }
+        });
+    }
+
+    @Benchmark
+    public void deepCopyCapture(Blackhole blackhole) {
+        for (SolrInputDocument doc : docs) {
+            SolrInputDocument copy = doc.deepCopy();
+            copy.removeField(CommonParams.VERSION_FIELD);
+            blackhole.consume(copy);
+            blackhole.consume(estimate(copy));
+        }
+    }
+
+    @Benchmark
+    public void serializedCapture(Blackhole blackhole) throws IOException {
+        for (SolrInputDocument doc : docs) {
+            blackhole.consume(CapturedSolrInputDocument.capture(doc, CommonParams.VERSION_FIELD));
+        }
+    }
+
+    private void index(UpdateRequestProcessor processor) throws IOException {
+        for (SolrInputDocument doc : docs) {
+            AddUpdateCommand cmd = new AddUpdateCommand(null) {
+                @Override
+                public String getIndexedIdStr() {
+                    return (String) solrDoc.getFieldValue("id");
+                }
+            };
+            cmd.solrDoc = doc;
+            processor.processAdd(cmd);
+        }
+        processor.finish();
+    }
+
+    /**
+     * Stands for the leader downstream of the mirroring processor, which sets the version of the document.
+     */
+    private static UpdateRequestProcessor leader(Blackhole blackhole) {
+        return new UpdateRequestProcessor(null) {
+            private long version;
+
+            @Override
+            public void processAdd(AddUpdateCommand cmd) {
+                cmd.solrDoc.setField(CommonParams.VERSION_FIELD, ++version);
+                blackhole.consume(cmd.solrDoc);
+            }
+        };
+    }
+
+    // the size estimate the processor used to compute over the copy, for its string values
+    private static long estimate(SolrInputDocument doc) {
+        long size = 0;
+        for (String name : doc.getFieldNames()) {
+            size += name.length() * Character.BYTES;
+            for (Object value : doc.getFieldValues(name)) {
+                size += value instanceof String ? ((String) value).length() * Character.BYTES : 0;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.update.processor;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.crossdc.common.CapturedSolrInputDocument;
+import org.apache.solr.crossdc.common.MirroredSolrRequest;
+import org.apache.solr.crossdc.common.MirroredSolrRequestSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of turning the docs of a client request into a Kafka record, as the mirroring processor used to
+ * do it, copying each doc, estimating its size by walking the copy and encoding it again in the serializer, and as
+ * it does it now, encoding each doc once, using the encoded length as its size, and copying the encoded bytes to the
+ * record. The {@code estimatedBytes} and {@code recordBytes} counters compare the estimate with the actual size of
+ * the record. Run with {@code -Pjmh.args="SerializeOnceBenchmark -prof gc"} to see the bytes allocated per request
+ * ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializeOnceBenchmark {
+
+    private static final int DOCS_PER_REQUEST = 20;
+
+    @Param({"1", "20"})
+    public int multiValuedFields;
+
+    private final MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+    private final ModifiableSolrParams mirrorParams = new ModifiableSolrParams().add("collection", "collection1");
+    private final SolrInputDocument[] docs = new SolrInputDocument[DOCS_PER_REQUEST];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RecordSize {
+        public long estimatedBytes;
+        public long recordBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            estimatedBytes = 0;
+            recordBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < DOCS_PER_REQUEST; i++) {
+            SolrInputDocument doc = new SolrInputDocument("id", "doc-" + i, "title_s", "a mirrored document " + i);
+            doc.addField("count_i", i);
+            doc.addField(CommonParams.VERSION_FIELD, 1234567890L + i);
+            for (int f = 0; f < multiValuedFields; f++) {
+                for (int v = 0; v < 20; v++) {
+                    doc.addField("field" + f + "_ss", "value " + v + " of field " + f);
+                }
+            }
+            docs[i] = doc;
+        }
+    }
+
+    @Benchmark
+    public byte[] estimate(RecordSize size) {
+        UpdateRequest request = new UpdateRequest();
+        request.setParams(new ModifiableSolrParams(mirrorParams));
+        for (SolrInputDocument doc : docs) {
+            SolrInputDocument copy = doc.deepCopy();
+            copy.removeField(CommonParams.VERSION_FIELD);
+            size.estimatedBytes += LegacyObjectSizeEstimator.estimate(copy);
+            request.add(copy);
+        }
+        byte[] data = serializer.serialize("topic", new MirroredSolrRequest(request));
+        size.recordBytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public byte[] encodeOnce(RecordSize size) throws IOException {
+        UpdateRequest request = new UpdateRequest();
+        request.setParams(new ModifiableSolrParams(mirrorParams));
+        long bytes = MirroredSolrRequestSerializer.recordOverheadBytes(mirrorParams);
+        for (SolrInputDocument doc : docs) {
+            CapturedSolrInputDocument captured = CapturedSolrInputDocument.capture(doc, CommonParams.VERSION_FIELD);
+            bytes += captured.getSizeInBytes();
+            request.add(captured);
+        }
+        size.estimatedBytes += bytes;
+        byte[] data = serializer.serialize("topic", new MirroredSolrRequest(request));
+        size.recordBytes += data.length;
+        return data;
+    }
+
+    /**
+     * The size estimate the mirroring processor used to compute for each doc.
+     */
+    static class LegacyObjectSizeEstimator {
+        private static final Map<Class<?>, Integer> primitiveSizes = new IdentityHashMap<>();
+
+        static {
+            primitiveSizes.put(boolean.class, 1);
+            primitiveSizes.put(Boolean.class, 1);
+            primitiveSizes.put(byte.class, 1);
+            primitiveSizes.put(Byte.class, 1);
+            primitiveSizes.put(char.class, Character.BYTES);
+            primitiveSizes.put(Character.class, Character.BYTES);
+            primitiveSizes.put(short.class, Short.BYTES);
+            primitiveSizes.put(Short.class, Short.BYTES);
+            primitiveSizes.put(int.class, Integer.BYTES);
+            primitiveSizes.put(Integer.class, Integer.BYTES);
+            primitiveSizes.put(float.class, Float.BYTES);
+            primitiveSizes.put(Float.class, Float.BYTES);
+            primitiveSizes.put(double.class, Double.BYTES);
+            primitiveSizes.put(Double.class, Double.BYTES);
+            primitiveSizes.put(long.class, Long.BYTES);
+            primitiveSizes.put(Long.class, Long.BYTES);
+        }
+
+        static long estimate(SolrInputDocument doc) {
+            if (doc == null) return 0L;
+            long size = 0;
+            for (SolrInputField inputField : doc.values()) {
+                size += primitiveEstimate(inputField.getName(), 0L);
+                size += estimate(inputField.getValue());
+            }
+            if (doc.hasChildDocuments()) {
+                for (SolrInputDocument childDoc : doc.getChildDocuments()) {
+                    size += estimate(childDoc);
+                }
+            }
+            return size;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static long estimate(Object obj) {
+            if (obj instanceof SolrInputDocument) {
+                return estimate((SolrInputDocument) obj);
+            }
+            if (obj instanceof Map) {
+                return estimate((Map) obj);
+            }
+            if (obj instanceof Collection) {
+                return estimate((Collection) obj);
+            }
+            return primitiveEstimate(obj, 0L);
+        }
+
+        private static long primitiveEstimate(Object obj, long def) {
+            Class<?> clazz = obj.getClass();
+            if (clazz.isPrimitive()) {
+                return primitiveSizes.get(clazz);
+            }
+            if (obj instanceof String) {
+                return ((String) obj).length() * Character.BYTES;
+            }
+            return def;
+        }
+
+        private static long estimate(Map<Object, Object> map) {
+            long size = 0;
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                size += primitiveEstimate(entry.getKey(), 0L);
+                size += estimate(entry.getValue());
+            }
+            return size;
+        }
+
+        private static long estimate(@SuppressWarnings({"rawtypes"}) Collection collection) {
+            long size = 0;
+            for (Object obj : collection) {
+                size += estimate(obj);
+            }
+            return size;
+        }
+    }
+}
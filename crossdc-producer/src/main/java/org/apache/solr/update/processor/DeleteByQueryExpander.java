@@ -0,0 +1,401 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.update.processor;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.io.SolrClientCache;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.stream.SolrStream;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrNamedThreadFactory;
+import org.apache.solr.schema.SchemaField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Expands a delete-by-query into deletes by id, so that the deletes can be mirrored: the ids matching the query are
+ * streamed from the leader of each shard in parallel, with the {@code /export} handler when the unique key field has
+ * docValues and with cursorMark pages otherwise, and deleted by batches through this node. The leaders mirror the
+ * deletes by id as they process them.
+ * <p>
+ * Reading and deleting are pipelined per shard: a batch is deleted while the next one is read, and at most two
+ * batches of each shard are held in memory, whatever the number of matching docs.
+ * <p>
+ * The expansions in progress are reported by the {@code UPDATE.crossdc.dbq.running} gauge of the core metrics. They
+ * fail when the core closes, which waits for their threads a bounded time only.
+ */
+class DeleteByQueryExpander implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // the idle threads of the pools stop, a node has an expander per core
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    // how long closing the expander waits for the threads of the expansions it stopped
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final ZkStateReader zkStateReader;
+    private final SolrClient client;
+    private final SolrClientCache clientCache;
+    // the shards are read on one pool and the batches deleted on the other, each reader has at most one delete in
+    // flight so that the readers never wait for a delete queued behind other readers
+    private final ExecutorService readExecutor;
+    private final ExecutorService deleteExecutor;
+    private final int batchSize;
+
+    private final AtomicLong lastExpansionId = new AtomicLong();
+    private final Map<Long, Expansion> running = new ConcurrentHashMap<>();
+
+    // null without metrics
+    private final Counter deletedIds;
+    private final Timer expandLatency;
+
+    /**
+     * @param zkStateReader  to find the shards of the collection and their leaders
+     * @param baseUrl        the url of this node, where the deletes by id are sent
+     * @param httpClient     the http client of the requests to this node and to the shard leaders
+     * @param threads        the max number of shards read and of batches deleted at the same time
+     * @param batchSize      the number of ids of each delete request
+     * @param metrics        the registry of the expansion metrics, or null
+     */
+    DeleteByQueryExpander(ZkStateReader zkStateReader, String baseUrl, HttpClient httpClient, int threads, int batchSize,
+                          MetricRegistry metrics) {
+        this(zkStateReader, new HttpSolrClient.Builder(baseUrl).withHttpClient(httpClient).build(),
+            new SolrClientCache(httpClient), threads, batchSize, metrics);
+    }
+
+    /**
+     * @param client       the client of this node, to read the ids with cursorMark pages and to delete them
+     * @param clientCache  the clients of the {@code /export} streams, closed with the expander
+     */
+    DeleteByQueryExpander(ZkStateReader zkStateReader, SolrClient client, SolrClientCache clientCache, int threads,
+                          int batchSize, MetricRegistry metrics) {
+        this.zkStateReader = zkStateReader;
+        this.client = client;
+        this.clientCache = clientCache;
+        this.readExecutor = newPool(threads, "crossdcDbqRead");
+        this.deleteExecutor = newPool(threads, "crossdcDbqDelete");
+        this.batchSize = batchSize;
+        if (metrics != null) {
+            deletedIds = metrics.counter(MetricRegistry.name("UPDATE", "crossdc", "dbq", "deletedIds"));
+            expandLatency = metrics.timer(MetricRegistry.name("UPDATE", "crossdc", "dbq", "expand"));
+            // replaces the gauge of the expander of the core before a reload
+            String runningName = MetricRegistry.name("UPDATE", "crossdc", "dbq", "running");
+            metrics.remove(runningName);
+            metrics.register(runningName, (Gauge<Map<String, Object>>) this::getProgress);
+        } else {
+            deletedIds = null;
+            expandLatency = null;
+        }
+    }
+
+    private static ExecutorService newPool(int threads, String name) {
+        ThreadPoolExecutor pool = new ExecutorUtil.MDCAwareThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new SolrNamedThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Returns the progress of the expansions in progress, by expansion id.
+     */
+    Map<String, Object> getProgress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        for (Expansion expansion : running.values()) {
+            progress.put(Long.toString(expansion.id), expansion.getProgress());
+        }
+        return progress;
+    }
+
+    /**
+     * Starts deleting the docs of the collection matching the query, by id.
+     *
+     * @return the expansion, done once all the matching docs are deleted or once the deletes failed
+     */
+    Expansion expand(String collection, String query, SchemaField uniqueField) {
+        Collection<Slice> slices = zkStateReader.getClusterState().getCollection(collection).getActiveSlices();
+        Expansion expansion = new Expansion(lastExpansionId.incrementAndGet(), collection, query, slices.size());
+        running.put(expansion.id, expansion);
+        boolean export = uniqueField.hasDocValues();
+        log.info("Expanding delete-by-query {} of {} into deletes by id, expansion={} shards={} export={}", query,
+            collection, expansion.id, slices.size(), export);
+
+        CompletableFuture<?>[] shards = new CompletableFuture<?>[slices.size()];
+        int i = 0;
+        for (Slice slice : slices) {
+            String shard = slice.getName();
+            shards[i++] = CompletableFuture.runAsync(() -> {
+                try {
+                    expandShard(expansion, shard, uniqueField.getName(), export);
+                } catch (Exception e) {
+                    expansion.failed = true;
+                    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                }
+                int shardsDone = expansion.shardsDone.incrementAndGet();
+                log.info("Expanded delete-by-query {} on {}, expansion={} shards={}/{} deletedIds={}", query, shard,
+                    expansion.id, shardsDone, expansion.shards, expansion.deletedIds.get());
+            }, readExecutor);
+        }
+        CompletableFuture.allOf(shards).whenComplete((result, e) -> {
+            running.remove(expansion.id);
+            long elapsedNanos = System.nanoTime() - expansion.startNanos;
+            if (expandLatency != null) {
+                expandLatency.update(elapsedNanos, TimeUnit.NANOSECONDS);
+            }
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                log.error("Failed expanding delete-by-query {} of {}, expansion={} deletedIds={}", query, collection,
+                    expansion.id, expansion.deletedIds.get(), cause);
+                expansion.done.completeExceptionally(cause);
+            } else {
+                log.info("Expanded delete-by-query {} of {}, expansion={} deletedIds={} elapsedMs={}", query, collection,
+                    expansion.id, expansion.deletedIds.get(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+                expansion.done.complete(null);
+            }
+        });
+        return expansion;
+    }
+
+    private void expandShard(Expansion expansion, String shard, String uniqueField, boolean export)
+        throws IOException, SolrServerException, InterruptedException {
+        ShardDeleter deleter = new ShardDeleter(expansion);
+        if (export) {
+            Replica leader = zkStateReader.getLeaderRetry(expansion.collection, shard);
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.set(CommonParams.QT, "/export");
+            params.set(CommonParams.Q, expansion.query);
+            params.set(CommonParams.FL, uniqueField);
+            params.set(CommonParams.SORT, uniqueField + " asc");
+            params.set(CommonParams.DISTRIB, false);
+            TupleStream stream = exportStream(leader.getCoreUrl(), params);
+            try {
+                stream.open();
+                for (Tuple tuple = stream.read(); !tuple.EOF; tuple = stream.read()) {
+                    deleter.add(tuple.getString(uniqueField));
+                }
+            } finally {
+                stream.close();
+            }
+        } else {
+            SolrQuery q = new SolrQuery(expansion.query).setRows(batchSize)
+                .setSort(SolrQuery.SortClause.asc(uniqueField)).setFields(uniqueField);
+            q.set(ShardParams.SHARDS, shard);
+            String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+            while (true) {
+                q.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+                QueryResponse rsp = client.query(expansion.collection, q);
+                for (SolrDocument doc : rsp.getResults()) {
+                    deleter.add(doc.getFirstValue(uniqueField).toString());
+                }
+                String nextCursorMark = rsp.getNextCursorMark();
+                if (cursorMark.equals(nextCursorMark)) {
+                    break;
+                }
+                cursorMark = nextCursorMark;
+            }
+        }
+        deleter.finish();
+    }
+
+    /**
+     * Returns the stream of the ids exported by the core.
+     */
+    TupleStream exportStream(String coreUrl, ModifiableSolrParams params) {
+        SolrStream stream = new SolrStream(coreUrl, params);
+        StreamContext context = new StreamContext();
+        context.setSolrClientCache(clientCache);
+        stream.setStreamContext(context);
+        return stream;
+    }
+
+    private void delete(Expansion expansion, List<String> ids) {
+        try {
+            client.deleteById(expansion.collection, ids);
+        } catch (SolrServerException | IOException e) {
+            throw new CompletionException(e);
+        }
+        expansion.deletedIds.addAndGet(ids.size());
+        if (deletedIds != null) {
+            deletedIds.inc(ids.size());
+        }
+    }
+
+    /**
+     * Fails the expansions in progress, interrupting their threads, and waits for the threads a bounded time: an
+     * expansion over millions of docs must not hold the close or the reload of the core.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Expansion expansion : running.values()) {
+            expansion.failed = true;
+            expansion.done.completeExceptionally(new IOException("Delete-by-query expansion " + expansion.id
+                + " stopped, the core is closing"));
+        }
+        readExecutor.shutdownNow();
+        deleteExecutor.shutdownNow();
+        try {
+            long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+            for (ExecutorService executor : new ExecutorService[] {readExecutor, deleteExecutor}) {
+                if (!executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    log.warn("Delete-by-query expansion threads still running after {}s, closing anyway", CLOSE_TIMEOUT_SECONDS);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // fails the reads and deletes still running
+            clientCache.close();
+            client.close();
+        }
+    }
+
+    /**
+     * Batches the ids read from a shard, deleting a batch while the next one is read.
+     */
+    private final class ShardDeleter {
+        private final Expansion expansion;
+        private List<String> batch;
+        private CompletableFuture<Void> inFlight;
+
+        ShardDeleter(Expansion expansion) {
+            this.expansion = expansion;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        void add(String id) {
+            batch.add(id);
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            awaitInFlight();
+            if (expansion.failed) {
+                throw new CompletionException(new IOException("Delete-by-query expansion " + expansion.id
+                    + " failed on another shard"));
+            }
+            List<String> ids = batch;
+            batch = new ArrayList<>(batchSize);
+            inFlight = CompletableFuture.runAsync(() -> delete(expansion, ids), deleteExecutor);
+        }
+
+        void finish() {
+            if (!batch.isEmpty()) {
+                flush();
+            }
+            awaitInFlight();
+        }
+
+        private void awaitInFlight() {
+            if (inFlight != null) {
+                CompletableFuture<Void> previous = inFlight;
+                inFlight = null;
+                // interruptible, a delete dropped by the shutdown of the pool never completes
+                try {
+                    previous.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                } catch (ExecutionException e) {
+                    throw new CompletionException(e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * A delete-by-query being expanded.
+     */
+    static final class Expansion {
+        final long id;
+        final String collection;
+        final String query;
+        final int shards;
+        final long startNanos = System.nanoTime();
+        final AtomicInteger shardsDone = new AtomicInteger();
+        final AtomicLong deletedIds = new AtomicLong();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        // stops the other shards once one failed
+        volatile boolean failed;
+
+        Expansion(long id, String collection, String query, int shards) {
+            this.id = id;
+            this.collection = collection;
+            this.query = query;
+            this.shards = shards;
+        }
+
+        /**
+         * Waits for all the matching docs to be deleted.
+         *
+         * @throws ExecutionException if reading the ids or deleting them failed
+         */
+        void await() throws InterruptedException, ExecutionException {
+            done.get();
+        }
+
+        Map<String, Object> getProgress() {
+            Map<String, Object> progress = new LinkedHashMap<>();
+            progress.put("expansion", id);
+            progress.put("collection", collection);
+            progress.put("query", query);
+            progress.put("shards", shards);
+            progress.put("shardsDone", shardsDone.get());
+            progress.put("deletedIds", deletedIds.get());
+            progress.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            return progress;
+        }
+    }
+}
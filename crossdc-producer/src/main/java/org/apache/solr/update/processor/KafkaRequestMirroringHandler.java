@@ -16,7 +16,10 @@
  */
 package org.apache.solr.update.processor;
 
+import com.codahale.metrics.Timer;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.cloud.DocRouter;
 import org.apache.solr.crossdc.common.KafkaMirroringSink;
 import org.apache.solr.crossdc.common.MirroringException;
 import org.apache.solr.crossdc.common.KafkaCrossDcConf;
@@ -25,7 +28,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class KafkaRequestMirroringHandler implements RequestMirroringHandler {
 
@@ -33,9 +38,33 @@ public class KafkaRequestMirroringHandler implements RequestMirroringHandler {
 
     final KafkaMirroringSink sink;
 
+    // the time from sending a record to its acknowledgement, or null
+    private final Timer ackLatency;
+
+    // the shard the updates are mirrored from, to partition the records by shard, null if not known
+    private final String collection;
+    private final String shard;
+    private final Supplier<DocRouter.Range> shardRange;
+
     public KafkaRequestMirroringHandler(KafkaMirroringSink sink) {
+        this(sink, null);
+    }
+
+    public KafkaRequestMirroringHandler(KafkaMirroringSink sink, Timer ackLatency) {
+        this(sink, ackLatency, null, null, () -> null);
+    }
+
+    /**
+     * @param shardRange supplies the current hash range of the shard, or null if unknown
+     */
+    public KafkaRequestMirroringHandler(KafkaMirroringSink sink, Timer ackLatency, String collection, String shard,
+                                        Supplier<DocRouter.Range> shardRange) {
         log.debug("create KafkaRequestMirroringHandler");
         this.sink = sink;
+        this.ackLatency = ackLatency;
+        this.collection = collection;
+        this.shard = shard;
+        this.shardRange = shardRange;
     }
 
     /**
@@ -45,10 +74,30 @@ public class KafkaRequestMirroringHandler implements RequestMirroringHandler {
      */
     @Override
     public void mirror(UpdateRequest request) throws MirroringException {
+        mirrorAsync(request);
+    }
+
+    /**
+     * Submits the request to the queue, the returned future completes when Kafka acknowledges the record.
+     */
+    @Override
+    public CompletableFuture<RecordMetadata> mirrorAsync(UpdateRequest request) throws MirroringException {
         if (log.isTraceEnabled()) {
             log.trace("submit update to sink docs={}, deletes={}, params={}", request.getDocuments(), request.getDeleteById(), request.getParams());
         }
         // TODO: Enforce external version constraint for consistent update replication (cross-cluster)
-        sink.submit(new MirroredSolrRequest(1, request, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis())));
+        final long startNanos = System.nanoTime();
+        // the updates mirrored by a core all target its shard, as it only mirrors the updates of the shard it leads
+        CompletableFuture<RecordMetadata> acked = sink.submitAsync(new MirroredSolrRequest(1, request,
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis())), collection, shard, shardRange.get());
+        if (ackLatency != null) {
+            acked.thenRun(() -> ackLatency.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS));
+        }
+        return acked;
+    }
+
+    @Override
+    public String getRecordKey() {
+        return sink.recordKey(collection, shard);
     }
 }
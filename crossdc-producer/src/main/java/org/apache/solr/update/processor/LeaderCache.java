@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.update.processor;
+
+import org.apache.solr.cloud.CloudDescriptor;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.CollectionStateWatcher;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.SolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Set;
+
+/**
+ * Caches whether a core is the leader of its shard, so that the mirroring processor can tell whether to mirror a
+ * document without looking up the cluster state and the shard leader for each one. The cache is a state watcher of
+ * the collection of the core: it is refreshed on every change of the collection state, which includes the leader
+ * elections of its shards, and of the live nodes.
+ * <p>
+ * A core only belongs to its own shard, so a core that is not the leader of its shard is not the leader of the
+ * target shard of any document, and ids only need routing on a shard leader of a collection with several shards.
+ * While the shard has no live leader, e.g. during an election, the cache answers null and the processor looks the
+ * leader up as it used to.
+ */
+class LeaderCache implements CollectionStateWatcher {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final CloudDescriptor cloudDesc;
+    private final String collection;
+
+    private volatile Snapshot snapshot;
+    private volatile boolean closed;
+    private ZkStateReader zkStateReader;
+
+    /**
+     * The leadership of the core as of a collection state.
+     */
+    private static final class Snapshot {
+        final DocCollection collection;
+        final String shardId;
+        // null if the shard has no live leader
+        final Boolean shardLeader;
+        // whether the shard is the only active shard of the collection, so that no id needs routing
+        final boolean singleShard;
+
+        Snapshot(DocCollection collection, String shardId, Boolean shardLeader, boolean singleShard) {
+            this.collection = collection;
+            this.shardId = shardId;
+            this.shardLeader = shardLeader;
+            this.singleShard = singleShard;
+        }
+    }
+
+    LeaderCache(CloudDescriptor cloudDesc) {
+        this.cloudDesc = cloudDesc;
+        this.collection = cloudDesc.getCollectionName();
+    }
+
+    /**
+     * Starts watching the collection state, the watcher is called right away with the current state.
+     */
+    void register(ZkStateReader zkStateReader) {
+        this.zkStateReader = zkStateReader;
+        zkStateReader.registerCollectionStateWatcher(collection, this);
+    }
+
+    void close() {
+        closed = true;
+        snapshot = null;
+        if (zkStateReader != null) {
+            zkStateReader.removeCollectionStateWatcher(collection, this);
+        }
+    }
+
+    @Override
+    public boolean onStateChanged(Set<String> liveNodes, DocCollection collectionState) {
+        if (closed) {
+            return true;
+        }
+        snapshot = collectionState == null ? null : snapshot(liveNodes, collectionState);
+        if (log.isDebugEnabled()) {
+            Snapshot s = snapshot;
+            log.debug("Leadership of {} in {} is now shardLeader={}", cloudDesc.getCoreNodeName(), collection,
+                s == null ? null : s.shardLeader);
+        }
+        return false;
+    }
+
+    private Snapshot snapshot(Set<String> liveNodes, DocCollection collectionState) {
+        String shardId = cloudDesc.getShardId();
+        Slice slice = shardId == null ? null : collectionState.getSlice(shardId);
+        if (slice == null) {
+            return null;
+        }
+        Replica leader = slice.getLeader();
+        Boolean shardLeader = leader == null || !liveNodes.contains(leader.getNodeName()) ? null
+            : leader.getName().equals(cloudDesc.getCoreNodeName());
+        boolean singleShard = collectionState.getActiveSlices().size() == 1 && slice.getState() == Slice.State.ACTIVE;
+        return new Snapshot(collectionState, shardId, shardLeader, singleShard);
+    }
+
+    /**
+     * Returns the hash range of the shard of the core, or null if unknown or if the router does not hash ids.
+     */
+    DocRouter.Range getShardRange() {
+        Snapshot s = snapshot;
+        Slice slice = s == null ? null : s.collection.getSlice(s.shardId);
+        return slice == null ? null : slice.getRange();
+    }
+
+    /**
+     * Returns whether the core is the leader of its shard, or null if unknown.
+     */
+    Boolean isShardLeader() {
+        Snapshot s = snapshot;
+        return s == null ? null : s.shardLeader;
+    }
+
+    /**
+     * Returns whether the core is the leader of the target shard of the id, or null if unknown.
+     */
+    Boolean isLeader(String id, String route, SolrParams params, SolrInputDocument doc) {
+        Snapshot s = snapshot;
+        if (s == null || s.shardLeader == null) {
+            return null;
+        }
+        if (!s.shardLeader || s.singleShard) {
+            return s.shardLeader;
+        }
+        Slice slice = s.collection.getRouter().getTargetSlice(id, doc, route, params, s.collection);
+        // no target slice means the slice of this core, as for an uncached lookup
+        return slice == null || slice.getName().equals(s.shardId);
+    }
+}
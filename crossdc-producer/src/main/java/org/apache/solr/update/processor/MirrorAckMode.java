@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.update.processor;
+
+import org.apache.solr.common.SolrException;
+
+import java.util.Locale;
+
+/**
+ * When an update request waits for Kafka to acknowledge its mirrored updates, see
+ * {@link org.apache.solr.crossdc.common.KafkaCrossDcConf#MIRROR_ACK_MODE}.
+ */
+public enum MirrorAckMode {
+    /** Fire and forget: a failed delivery is only logged. */
+    NONE,
+    /** The request waits for all its records on finish, a failed delivery fails the request. */
+    REQUEST,
+    /** Each add and delete by id is sent in its own record and waited for. */
+    DOCUMENT;
+
+    public static MirrorAckMode parse(String mode) {
+        if (mode == null || mode.isBlank()) {
+            return NONE;
+        }
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Invalid mirrorAckMode " + mode
+                + ", expected one of none, request or document");
+        }
+    }
+
+    /**
+     * Returns the name of the mode in the config and in the metric names.
+     */
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
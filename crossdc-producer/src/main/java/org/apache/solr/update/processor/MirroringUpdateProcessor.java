@@ -1,19 +1,15 @@
 package org.apache.solr.update.processor;
 
-import org.apache.http.client.HttpClient;
-import org.apache.solr.client.solrj.SolrClient;
-import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import org.apache.solr.client.solrj.request.UpdateRequest;
-import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.cloud.CloudDescriptor;
-import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.cloud.*;
 import org.apache.solr.common.params.*;
+import org.apache.solr.crossdc.common.CapturedSolrInputDocument;
+import org.apache.solr.crossdc.common.MirroredSolrRequestSerializer;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.CommitUpdateCommand;
@@ -25,10 +21,11 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.apache.solr.common.SolrException.ErrorCode.SERVER_ERROR;
 
@@ -45,11 +42,19 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
   final RequestMirroringHandler requestMirroringHandler;
 
   /**
-   * The mirrored request starts as null, gets created and appended to at each process() call,
-   * then submitted on finish().
+   * The params of the mirrored requests.
    */
   private final SolrParams mirrorParams;
 
+  /**
+   * The mirrored request starts as null, gets created and appended to at each process() call, then submitted when
+   * the next update would take it over the max request size, and on finish(), so that a client request is mirrored
+   * in as few Kafka records as possible.
+   */
+  private UpdateRequest pendingRequest;
+  private long pendingBytes;
+  private boolean pendingDeletes;
+
 
   /**
    * Controls whether docs exceeding the max-size (and thus cannot be mirrored) are indexed locally.
@@ -58,6 +63,12 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
 
   private final long maxMirroringDocSizeBytes;
 
+  /**
+   * The bytes a mirrored request takes in a Kafka produce request besides its docs and deletes, computed on the first
+   * add or delete, -1 until then.
+   */
+  private long recordOverheadBytes = -1;
+
 
   /**
    * The distributed processor downstream from us so we can establish if we're running on a leader shard
@@ -69,12 +80,79 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
    */
   private DistributedUpdateProcessor.DistribPhase distribPhase;
 
+  /**
+   * The leadership of the core, shared by the processors of the core, or null to look the leader up for each update
+   */
+  private final LeaderCache leaderCache;
+
+  /**
+   * When the request waits for Kafka to acknowledge its mirrored updates, and for how long at most
+   */
+  private final MirrorAckMode ackMode;
+  private final long ackTimeoutMs;
+
+  /**
+   * The acknowledgements of the records submitted so far, awaited on finish() in REQUEST mode
+   */
+  private List<CompletableFuture<?>> pendingAcks;
+
+  /**
+   * The time spent submitting records to the handler and waiting for their acknowledgements, or null
+   */
+  private final Timer submitLatency;
+  private final Timer waitLatency;
+
+  /**
+   * Expands the deletes-by-query into deletes by id, shared by the processors of the core, or null if not in cloud mode
+   */
+  private final DeleteByQueryExpander dbqExpander;
+
   public MirroringUpdateProcessor(final UpdateRequestProcessor next, boolean doMirroring,
       final boolean indexUnmirrorableDocs,
       final long maxMirroringBatchSizeBytes,
       final SolrParams mirroredReqParams,
       final DistributedUpdateProcessor.DistribPhase distribPhase,
       final RequestMirroringHandler requestMirroringHandler) {
+    this(next, doMirroring, indexUnmirrorableDocs, maxMirroringBatchSizeBytes, mirroredReqParams, distribPhase,
+        requestMirroringHandler, null);
+  }
+
+  public MirroringUpdateProcessor(final UpdateRequestProcessor next, boolean doMirroring,
+      final boolean indexUnmirrorableDocs,
+      final long maxMirroringBatchSizeBytes,
+      final SolrParams mirroredReqParams,
+      final DistributedUpdateProcessor.DistribPhase distribPhase,
+      final RequestMirroringHandler requestMirroringHandler,
+      final LeaderCache leaderCache) {
+    this(next, doMirroring, indexUnmirrorableDocs, maxMirroringBatchSizeBytes, mirroredReqParams, distribPhase,
+        requestMirroringHandler, leaderCache, MirrorAckMode.NONE, 0L, null);
+  }
+
+  public MirroringUpdateProcessor(final UpdateRequestProcessor next, boolean doMirroring,
+      final boolean indexUnmirrorableDocs,
+      final long maxMirroringBatchSizeBytes,
+      final SolrParams mirroredReqParams,
+      final DistributedUpdateProcessor.DistribPhase distribPhase,
+      final RequestMirroringHandler requestMirroringHandler,
+      final LeaderCache leaderCache,
+      final MirrorAckMode ackMode,
+      final long ackTimeoutMs,
+      final MetricRegistry metrics) {
+    this(next, doMirroring, indexUnmirrorableDocs, maxMirroringBatchSizeBytes, mirroredReqParams, distribPhase,
+        requestMirroringHandler, leaderCache, ackMode, ackTimeoutMs, metrics, null);
+  }
+
+  public MirroringUpdateProcessor(final UpdateRequestProcessor next, boolean doMirroring,
+      final boolean indexUnmirrorableDocs,
+      final long maxMirroringBatchSizeBytes,
+      final SolrParams mirroredReqParams,
+      final DistributedUpdateProcessor.DistribPhase distribPhase,
+      final RequestMirroringHandler requestMirroringHandler,
+      final LeaderCache leaderCache,
+      final MirrorAckMode ackMode,
+      final long ackTimeoutMs,
+      final MetricRegistry metrics,
+      final DeleteByQueryExpander dbqExpander) {
     super(next);
     this.doMirroring = doMirroring;
     this.indexUnmirrorableDocs = indexUnmirrorableDocs;
@@ -82,11 +160,21 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
     this.mirrorParams = mirroredReqParams;
     this.distribPhase = distribPhase;
     this.requestMirroringHandler = requestMirroringHandler;
+    this.leaderCache = leaderCache;
+    this.ackMode = ackMode;
+    this.ackTimeoutMs = ackTimeoutMs;
+    this.submitLatency = metrics == null ? null : metrics.timer(metricName(ackMode, "submit"));
+    this.waitLatency = metrics == null ? null : metrics.timer(metricName(ackMode, "wait"));
+    this.dbqExpander = dbqExpander;
 
     // Find the downstream distributed update processor
 
   }
 
+  static String metricName(MirrorAckMode ackMode, String name) {
+    return MetricRegistry.name("UPDATE", "crossdc", "mirror", ackMode.getName(), name);
+  }
+
   UpdateRequest createMirrorRequest() {
     UpdateRequest mirrorRequest = new UpdateRequest();
       mirrorRequest.setParams(new ModifiableSolrParams(mirrorParams));
@@ -94,20 +182,23 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
   }
 
   @Override public void processAdd(final AddUpdateCommand cmd) throws IOException {
-    UpdateRequest mirrorRequest = createMirrorRequest();
-    final SolrInputDocument doc = cmd.getSolrInputDocument().deepCopy();
-    doc.removeField(CommonParams.VERSION_FIELD); // strip internal doc version
-    final long estimatedDocSizeInBytes = ObjectSizeEstimator.estimate(doc);
-    log.info("estimated doc size is {} bytes, max size is {}", estimatedDocSizeInBytes, maxMirroringDocSizeBytes);
-    final boolean tooLargeForKafka = estimatedDocSizeInBytes > maxMirroringDocSizeBytes;
+    // capture the doc as serialized for Kafka before the downstream processors modify it, instead of copying it
+    final CapturedSolrInputDocument doc = CapturedSolrInputDocument.capture(cmd.getSolrInputDocument(),
+        CommonParams.VERSION_FIELD); // strip internal doc version
+    final long docSizeInBytes = doc.getSizeInBytes();
+    if (log.isDebugEnabled()) {
+      log.debug("doc size is {} bytes, max size is {}", docSizeInBytes, maxMirroringDocSizeBytes);
+    }
+    // the doc alone in a record must fit in a Kafka request
+    final boolean tooLargeForKafka = recordOverheadBytes() + docSizeInBytes > maxMirroringDocSizeBytes;
     if (tooLargeForKafka && !indexUnmirrorableDocs) {
       throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Update exceeds the doc-size limit and is unmirrorable. id="
 
-          + cmd.getPrintableId() + " doc size=" + estimatedDocSizeInBytes + " maxDocSize=" + maxMirroringDocSizeBytes);
+          + cmd.getPrintableId() + " doc size=" + docSizeInBytes + " maxDocSize=" + maxMirroringDocSizeBytes);
     } else if (tooLargeForKafka) {
       log.warn(
           "Skipping mirroring of doc {} as it exceeds the doc-size limit ({} bytes) and is unmirrorable. doc size={}",
-          cmd.getPrintableId(), maxMirroringDocSizeBytes, estimatedDocSizeInBytes);
+          cmd.getPrintableId(), maxMirroringDocSizeBytes, docSizeInBytes);
     }
 
     super.processAdd(cmd); // let this throw to prevent mirroring invalid reqs
@@ -115,14 +206,13 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
     // submit only from the leader shards so we mirror each doc once
     boolean isLeader = isLeader(cmd.getReq(),  cmd.getIndexedIdStr(), null, cmd.getSolrInputDocument());
     if (!tooLargeForKafka && doMirroring && isLeader) {
-
-      mirrorRequest.add(doc, cmd.commitWithin, cmd.overwrite);
-
-      try {
-        requestMirroringHandler.mirror(mirrorRequest);
-      } catch (Exception e) {
-        log.error("mirror submit failed", e);
-        throw new SolrException(SERVER_ERROR, "mirror submit failed", e);
+      // Solr applies the docs of a request before its deletes, so a doc following a delete goes in the next request
+      if (pendingDeletes) {
+        flushPending();
+      }
+      pendingRequest(docSizeInBytes).add(doc, cmd.commitWithin, cmd.overwrite);
+      if (ackMode == MirrorAckMode.DOCUMENT) {
+        flushPending();
       }
     }
 
@@ -132,66 +222,25 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
 
   @Override public void processDelete(final DeleteUpdateCommand cmd) throws IOException {
     if (doMirroring && !cmd.isDeleteById() && !"*:*".equals(cmd.query)) {
+      // the updates before the DBQ are mirrored before the deletes it expands to
+      flushPending();
 
-      CloudDescriptor cloudDesc =
-          cmd.getReq().getCore().getCoreDescriptor().getCloudDescriptor();
-      String collection = cloudDesc.getCollectionName();
-
-      HttpClient httpClient = cmd.getReq().getCore().getCoreContainer().getUpdateShardHandler().getDefaultHttpClient();
-
-      try (HttpSolrClient client =
-          new HttpSolrClient.Builder(cmd.getReq().getCore().getCoreContainer().getZkController().getBaseUrl()).withHttpClient(httpClient).build()) {
-
-        String uniqueField = cmd.getReq().getSchema().getUniqueKeyField().getName();
-
-        int rows = Integer.getInteger("solr.crossdc.dbq_rows", 1000);
-        SolrQuery q = new SolrQuery(cmd.query).setRows(rows).setSort(SolrQuery.SortClause.asc(uniqueField)).setFields(uniqueField);
-        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
-
-        int cnt = 1;
-        boolean done = false;
-        while (!done) {
-          q.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
-          QueryResponse rsp =
-              client.query(collection, q);
-          String nextCursorMark = rsp.getNextCursorMark();
-
-          if (log.isDebugEnabled()) {
-            log.debug("resp: cm={}, ncm={}, cnt={}, results={} ", cursorMark, nextCursorMark, cnt,
-                rsp.getResults());
-            cnt++;
-          }
-
-          processDBQResults(client, collection, uniqueField, rsp);
-          if (cursorMark.equals(nextCursorMark)) {
-            done = true;
-          }
-          cursorMark = nextCursorMark;
-        }
-      } catch (SolrServerException e) {
-        throw new SolrException(SERVER_ERROR, e);
-      }
-
+      expandDeleteByQuery(cmd);
       return;
     }
     super.processDelete(cmd); // let this throw to prevent mirroring invalid requests
 
     if (doMirroring) {
       boolean isLeader = false;
-      UpdateRequest mirrorRequest = createMirrorRequest();
       if (cmd.isDeleteById()) {
         // deleteById requests runs once per leader, so we just submit the request from the leader shard
         isLeader = isLeader(cmd.getReq(),  ((DeleteUpdateCommand)cmd).getId(), null != cmd.getRoute() ? cmd.getRoute() : cmd.getReq().getParams().get(
             ShardParams._ROUTE_), null);
         if (isLeader) {
-
-          mirrorRequest.deleteById(cmd.getId()); // strip versions from deletes
-
-          try {
-            requestMirroringHandler.mirror(mirrorRequest);
-          } catch (Exception e) {
-            log.error("mirror submit failed", e);
-            throw new SolrException(SERVER_ERROR, "mirror submit failed", e);
+          pendingRequest(MirroredSolrRequestSerializer.deleteSizeInBytes(cmd.getId())).deleteById(cmd.getId()); // strip versions from deletes
+          pendingDeletes = true;
+          if (ackMode == MirrorAckMode.DOCUMENT) {
+            flushPending();
           }
         }
         if (log.isDebugEnabled())
@@ -203,14 +252,11 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
         // TODO: Can we actually support this considering DBQs aren't versioned.
 
         if (distribPhase == DistributedUpdateProcessor.DistribPhase.NONE) {
+          // the DBQ is mirrored on its own, after the updates that preceded it
+          flushPending();
+          UpdateRequest mirrorRequest = createMirrorRequest();
           mirrorRequest.deleteByQuery(cmd.query);
-
-          try {
-            requestMirroringHandler.mirror(mirrorRequest);
-          } catch (Exception e) {
-            log.error("mirror submit failed", e);
-            throw new SolrException(SERVER_ERROR, "mirror submit failed", e);
-          }
+          submit(mirrorRequest);
         }
         if (log.isDebugEnabled())
           log.debug("processDelete doMirroring={} cmd={}", true, cmd);
@@ -219,21 +265,133 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
     }
   }
 
-  private static void processDBQResults(SolrClient client, String collection, String uniqueField,
-      QueryResponse rsp)
-      throws SolrServerException, IOException {
-    SolrDocumentList results = rsp.getResults();
-    List<String> ids = new ArrayList<>(results.size());
-    results.forEach(entries -> {
-      String id = entries.getFirstValue(uniqueField).toString();
-      ids.add(id);
-    });
-    if (ids.size() > 0) {
-      client.deleteById(collection, ids);
+  /**
+   * Returns the pending mirrored request to append an update of the given size to, submitting the pending request
+   * first if the update would take its Kafka record over the max request size.
+   */
+  private UpdateRequest pendingRequest(long updateSizeBytes) {
+    if (pendingRequest != null && recordOverheadBytes() + pendingBytes + updateSizeBytes > maxMirroringDocSizeBytes) {
+      flushPending();
+    }
+    if (pendingRequest == null) {
+      pendingRequest = createMirrorRequest();
+    }
+    pendingBytes += updateSizeBytes;
+    return pendingRequest;
+  }
+
+  private long recordOverheadBytes() {
+    if (recordOverheadBytes < 0) {
+      recordOverheadBytes = MirroredSolrRequestSerializer.recordOverheadBytes(mirrorParams,
+          requestMirroringHandler == null ? null : requestMirroringHandler.getRecordKey());
+    }
+    return recordOverheadBytes;
+  }
+
+  /**
+   * Submits the pending mirrored request, if any.
+   */
+  void flushPending() {
+    if (pendingRequest == null) {
+      return;
+    }
+    UpdateRequest mirrorRequest = pendingRequest;
+    pendingRequest = null;
+    pendingBytes = 0;
+    pendingDeletes = false;
+    submit(mirrorRequest);
+  }
+
+  private void submit(UpdateRequest mirrorRequest) {
+    final long startNanos = System.nanoTime();
+    CompletableFuture<?> acked = null;
+    try {
+      if (ackMode == MirrorAckMode.NONE) {
+        requestMirroringHandler.mirror(mirrorRequest);
+      } else {
+        acked = requestMirroringHandler.mirrorAsync(mirrorRequest);
+      }
+    } catch (Exception e) {
+      log.error("mirror submit failed", e);
+      throw new SolrException(SERVER_ERROR, "mirror submit failed", e);
+    } finally {
+      if (submitLatency != null) {
+        submitLatency.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    if (ackMode == MirrorAckMode.DOCUMENT) {
+      awaitAcks(acked);
+    } else if (ackMode == MirrorAckMode.REQUEST) {
+      if (pendingAcks == null) {
+        pendingAcks = new ArrayList<>();
+      }
+      pendingAcks.add(acked);
+    }
+  }
+
+  /**
+   * Waits for Kafka to acknowledge the given records, failing the request if any of them is not delivered in time.
+   */
+  private void awaitAcks(CompletableFuture<?>... acks) {
+    final long startNanos = System.nanoTime();
+    try {
+      CompletableFuture.allOf(acks).get(ackTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      log.error("mirrored update was not acknowledged", e.getCause());
+      throw new SolrException(SERVER_ERROR, "mirrored update was not acknowledged", e.getCause());
+    } catch (TimeoutException e) {
+      log.error("mirrored update was not acknowledged within {} ms", ackTimeoutMs);
+      throw new SolrException(SERVER_ERROR, "mirrored update was not acknowledged within " + ackTimeoutMs + " ms", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(SERVER_ERROR, "interrupted waiting for mirrored updates to be acknowledged", e);
+    } finally {
+      if (waitLatency != null) {
+        waitLatency.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /**
+   * Deletes the docs matching the query by id instead, so that the deletes can be mirrored. Waits for the deletes:
+   * an expansion still running could otherwise delete a doc added again by a later update.
+   */
+  private void expandDeleteByQuery(DeleteUpdateCommand cmd) {
+    if (dbqExpander == null) {
+      throw new SolrException(SERVER_ERROR, "Cannot mirror delete-by-query " + cmd.query
+          + ", it can only be expanded into deletes by id in cloud mode");
+    }
+    CloudDescriptor cloudDesc = cmd.getReq().getCore().getCoreDescriptor().getCloudDescriptor();
+    DeleteByQueryExpander.Expansion expansion = dbqExpander.expand(cloudDesc.getCollectionName(), cmd.query,
+        cmd.getReq().getSchema().getUniqueKeyField());
+    try {
+      expansion.await();
+    } catch (ExecutionException e) {
+      throw new SolrException(SERVER_ERROR, "delete-by-query expansion failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(SERVER_ERROR, "interrupted expanding delete-by-query " + cmd.query, e);
     }
   }
 
   boolean isLeader(SolrQueryRequest req, String id, String route, SolrInputDocument doc) {
+    if (distribPhase == DistributedUpdateProcessor.DistribPhase.FROMLEADER) {
+      // a leader only forwards updates to the replicas of its shard
+      return false;
+    }
+    if (leaderCache != null) {
+      // a request forwarded to a leader targets its shard, no need to route the id
+      Boolean leader = distribPhase == DistributedUpdateProcessor.DistribPhase.TOLEADER ? leaderCache.isShardLeader()
+          : leaderCache.isLeader(id, route, req.getParams(), doc);
+      if (leader != null) {
+        return leader;
+      }
+    }
+    return lookupLeader(req, id, route, doc);
+  }
+
+  private boolean lookupLeader(SolrQueryRequest req, String id, String route, SolrInputDocument doc) {
     CloudDescriptor cloudDesc =
         req.getCore().getCoreDescriptor().getCloudDescriptor();
     String collection = cloudDesc.getCollectionName();
@@ -274,95 +432,16 @@ public class MirroringUpdateProcessor extends UpdateRequestProcessor {
   }
 
   @Override public final void finish() throws IOException {
-    super.finish();
-  }
-
-  // package private for testing
-  static class ObjectSizeEstimator {
-    /**
-     * Sizes of primitive classes.
-     */
-    private static final Map<Class<?>,Integer> primitiveSizes = new IdentityHashMap<>();
-    static {
-      primitiveSizes.put(boolean.class, 1);
-      primitiveSizes.put(Boolean.class, 1);
-      primitiveSizes.put(byte.class, 1);
-      primitiveSizes.put(Byte.class, 1);
-      primitiveSizes.put(char.class, Character.BYTES);
-      primitiveSizes.put(Character.class, Character.BYTES);
-      primitiveSizes.put(short.class, Short.BYTES);
-      primitiveSizes.put(Short.class, Short.BYTES);
-      primitiveSizes.put(int.class, Integer.BYTES);
-      primitiveSizes.put(Integer.class, Integer.BYTES);
-      primitiveSizes.put(float.class, Float.BYTES);
-      primitiveSizes.put(Float.class, Float.BYTES);
-      primitiveSizes.put(double.class, Double.BYTES);
-      primitiveSizes.put(Double.class, Double.BYTES);
-      primitiveSizes.put(long.class, Long.BYTES);
-      primitiveSizes.put(Long.class, Long.BYTES);
-    }
-
-    public static long estimate(SolrInputDocument doc) {
-      if (doc == null) return 0L;
-      long size = 0;
-      for (SolrInputField inputField : doc.values()) {
-        size += primitiveEstimate(inputField.getName(), 0L);
-        size += estimate(inputField.getValue());
-      }
-
-      if (doc.hasChildDocuments()) {
-        for (SolrInputDocument childDoc : doc.getChildDocuments()) {
-          size += estimate(childDoc);
-        }
-      }
-      return size;
-    }
-
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    static long estimate(Object obj) {
-      if (obj instanceof SolrInputDocument) {
-        return estimate((SolrInputDocument) obj);
-      }
-
-      if (obj instanceof Map) {
-        return estimate((Map) obj);
-      }
-
-      if (obj instanceof Collection) {
-        return estimate((Collection) obj);
-      }
-
-      return primitiveEstimate(obj, 0L);
-    }
-
-    private static long primitiveEstimate(Object obj, long def) {
-      Class<?> clazz = obj.getClass();
-      if (clazz.isPrimitive()) {
-        return primitiveSizes.get(clazz);
-      }
-      if (obj instanceof String) {
-        return ((String) obj).length() * Character.BYTES;
-      }
-      return def;
-    }
-
-    private static long estimate(Map<Object, Object> map) {
-      if (map.isEmpty()) return 0;
-      long size = 0;
-      for (Map.Entry<Object, Object> entry : map.entrySet()) {
-        size += primitiveEstimate(entry.getKey(), 0L);
-        size += estimate(entry.getValue());
-      }
-      return size;
-    }
-
-    private static long estimate(@SuppressWarnings({"rawtypes"})Collection collection) {
-      if (collection.isEmpty()) return 0;
-      long size = 0;
-      for (Object obj : collection) {
-        size += estimate(obj);
+    try {
+      flushPending();
+      if (pendingAcks != null) {
+        // one wait for all the records of the request, most of them are acknowledged by now
+        List<CompletableFuture<?>> acks = pendingAcks;
+        pendingAcks = null;
+        awaitAcks(acks.toArray(new CompletableFuture<?>[0]));
       }
-      return size;
+    } finally {
+      super.finish();
     }
   }
 }
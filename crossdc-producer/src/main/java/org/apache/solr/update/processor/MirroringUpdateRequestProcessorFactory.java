@@ -16,6 +16,9 @@
  */
 package org.apache.solr.update.processor;
 
+import com.codahale.metrics.MetricRegistry;
+import org.apache.solr.cloud.CloudDescriptor;
+import org.apache.solr.cloud.ZkController;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
@@ -66,11 +69,22 @@ public class MirroringUpdateRequestProcessorFactory extends UpdateRequestProcess
     /** This is instantiated in inform(SolrCore) and then shared by all processor instances - visible for testing */
     private volatile KafkaRequestMirroringHandler mirroringHandler;
 
+    /** The leadership of the core, instantiated in inform(SolrCore) when running in cloud mode */
+    private volatile LeaderCache leaderCache;
+
+    /** Expands the deletes-by-query of the core, instantiated in inform(SolrCore) when running in cloud mode */
+    private volatile DeleteByQueryExpander dbqExpander;
+
 
     private boolean enabled = true;
 
     private KafkaCrossDcConf conf;
 
+    private MirrorAckMode ackMode = MirrorAckMode.NONE;
+
+    /** The metrics of the core, the processors record their mirroring latencies in it */
+    private MetricRegistry metrics;
+
     private final Map<String,Object> properties = new HashMap<>();
 
     @Override
@@ -108,12 +122,26 @@ public class MirroringUpdateRequestProcessorFactory extends UpdateRequestProcess
 
     private static class Closer {
         private final KafkaMirroringSink sink;
+        private final LeaderCache leaderCache;
+        private final DeleteByQueryExpander dbqExpander;
 
-        public Closer(KafkaMirroringSink sink) {
+        public Closer(KafkaMirroringSink sink, LeaderCache leaderCache, DeleteByQueryExpander dbqExpander) {
             this.sink = sink;
+            this.leaderCache = leaderCache;
+            this.dbqExpander = dbqExpander;
         }
 
         public final void close() {
+            if (leaderCache != null) {
+                leaderCache.close();
+            }
+            if (dbqExpander != null) {
+                try {
+                    dbqExpander.close();
+                } catch (IOException e) {
+                    log.error("Exception closing delete-by-query expander", e);
+                }
+            }
             try {
                 this.sink.close();
             } catch (IOException e) {
@@ -179,14 +207,36 @@ public class MirroringUpdateRequestProcessorFactory extends UpdateRequestProcess
        // mirroringHandler = core.getResourceLoader().newInstance(RequestMirroringHandler.class.getName(), KafkaRequestMirroringHandler.class);
 
         conf = new KafkaCrossDcConf(properties);
-
+        ackMode = MirrorAckMode.parse(conf.get(MIRROR_ACK_MODE));
 
         KafkaMirroringSink sink = new KafkaMirroringSink(conf);
+        metrics = core.getCoreContainer().getMetricManager().registry(core.getCoreMetricManager().getRegistryName());
+
+        CloudDescriptor cloudDesc = core.getCoreDescriptor().getCloudDescriptor();
+        if (cloudDesc != null) {
+            LeaderCache cache = new LeaderCache(cloudDesc);
+            try {
+                cache.register(core.getCoreContainer().getZkController().getZkStateReader());
+                leaderCache = cache;
+            } catch (Exception e) {
+                log.warn("Could not watch the state of collection {}, the shard leader will be looked up for each update",
+                    cloudDesc.getCollectionName(), e);
+            }
+
+            ZkController zkController = core.getCoreContainer().getZkController();
+            dbqExpander = new DeleteByQueryExpander(zkController.getZkStateReader(), zkController.getBaseUrl(),
+                core.getCoreContainer().getUpdateShardHandler().getDefaultHttpClient(), conf.getInt(DBQ_EXPANSION_THREADS),
+                Integer.getInteger("solr.crossdc.dbq_rows", 1000), metrics);
+        }
 
-        Closer closer = new Closer(sink);
+        Closer closer = new Closer(sink, leaderCache, dbqExpander);
         core.addCloseHook(new MyCloseHook(closer));
 
-        mirroringHandler = new KafkaRequestMirroringHandler(sink);
+        LeaderCache cache = leaderCache;
+        mirroringHandler = new KafkaRequestMirroringHandler(sink,
+            metrics.timer(MetricRegistry.name("UPDATE", "crossdc", "mirror", "ack")),
+            cloudDesc == null ? null : cloudDesc.getCollectionName(), cloudDesc == null ? null : cloudDesc.getShardId(),
+            cache == null ? () -> null : cache::getShardRange);
     }
 
     private static Integer getIntegerPropValue(String name, Properties props) {
@@ -245,7 +295,8 @@ public class MirroringUpdateRequestProcessorFactory extends UpdateRequestProcess
         }
 
         return new MirroringUpdateProcessor(next, doMirroring, indexUnmirrorableDocs, maxMirroringBatchSizeBytes, mirroredParams,
-                DistribPhase.parseParam(req.getParams().get(DISTRIB_UPDATE_PARAM)), doMirroring ? mirroringHandler : null);
+                DistribPhase.parseParam(req.getParams().get(DISTRIB_UPDATE_PARAM)), doMirroring ? mirroringHandler : null,
+                leaderCache, ackMode, conf.getInt(DELIVERY_TIMEOUT_MS), metrics, dbqExpander);
     }
 
     private static class NoOpUpdateRequestProcessor extends UpdateRequestProcessor {
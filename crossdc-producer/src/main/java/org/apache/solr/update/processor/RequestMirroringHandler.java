@@ -18,8 +18,28 @@ package org.apache.solr.update.processor;
 
 import org.apache.solr.client.solrj.request.UpdateRequest;
 
+import java.util.concurrent.CompletableFuture;
+
 /** Plugin classes must implement this interface to be usable as the handlers for request mirroring */
 public interface RequestMirroringHandler {
     /** When called, should handle submitting the request to the replica clusters  */
     void mirror(UpdateRequest request) throws Exception;
+
+    /**
+     * Submits the request like {@link #mirror}, and returns a future completed when the request is durably queued
+     * for the replica clusters, or exceptionally if queuing it fails. The default implementation mirrors the request
+     * and returns a completed future.
+     */
+    default CompletableFuture<?> mirrorAsync(UpdateRequest request) throws Exception {
+        mirror(request);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns the key of the records the requests are mirrored as, which counts in the size of a record, or null if
+     * the records have no key.
+     */
+    default String getRecordKey() {
+        return null;
+    }
 }
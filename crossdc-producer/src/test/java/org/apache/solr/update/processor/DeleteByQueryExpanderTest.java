@@ -0,0 +1,314 @@
+package org.apache.solr.update.processor;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.io.SolrClientCache;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.schema.SchemaField;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DeleteByQueryExpanderTest extends SolrTestCaseJ4 {
+
+    private static final String COLLECTION = "coll1";
+
+    private ZkStateReader zkStateReader;
+    private SolrClient client;
+    private MetricRegistry metrics;
+    private List<List<String>> deletes;
+    private Map<String, TupleStream> streams;
+    private Map<String, SolrParams> exportParams;
+    private DeleteByQueryExpander expander;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        zkStateReader = Mockito.mock(ZkStateReader.class);
+        ClusterState clusterState = Mockito.mock(ClusterState.class);
+        DocCollection docCollection = Mockito.mock(DocCollection.class);
+        Mockito.when(zkStateReader.getClusterState()).thenReturn(clusterState);
+        Mockito.when(clusterState.getCollection(COLLECTION)).thenReturn(docCollection);
+        List<Slice> slices = new ArrayList<>();
+        for (String shard : new String[] {"shard1", "shard2"}) {
+            Slice slice = Mockito.mock(Slice.class);
+            Mockito.when(slice.getName()).thenReturn(shard);
+            slices.add(slice);
+            Replica leader = Mockito.mock(Replica.class);
+            Mockito.when(leader.getCoreUrl()).thenReturn(coreUrl(shard));
+            Mockito.when(zkStateReader.getLeaderRetry(COLLECTION, shard)).thenReturn(leader);
+        }
+        Mockito.when(docCollection.getActiveSlices()).thenReturn(slices);
+
+        client = Mockito.mock(SolrClient.class);
+        deletes = Collections.synchronizedList(new ArrayList<>());
+        Mockito.when(client.deleteById(ArgumentMatchers.eq(COLLECTION), ArgumentMatchers.<List<String>>any()))
+            .thenAnswer(invocation -> {
+                deletes.add(new ArrayList<>(invocation.<List<String>>getArgument(1)));
+                return null;
+            });
+        metrics = new MetricRegistry();
+        streams = new ConcurrentHashMap<>();
+        exportParams = new ConcurrentHashMap<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (expander != null) {
+            expander.close();
+        }
+        super.tearDown();
+    }
+
+    private static String coreUrl(String shard) {
+        return "http://localhost:8983/solr/" + COLLECTION + "_" + shard + "_replica_n1/";
+    }
+
+    private DeleteByQueryExpander newExpander(int batchSize) {
+        return new DeleteByQueryExpander(zkStateReader, client, new SolrClientCache(), 2, batchSize, metrics) {
+            @Override
+            TupleStream exportStream(String coreUrl, ModifiableSolrParams params) {
+                exportParams.put(coreUrl, params);
+                return streams.get(coreUrl);
+            }
+        };
+    }
+
+    private static SchemaField uniqueField(boolean docValues) {
+        SchemaField field = Mockito.mock(SchemaField.class);
+        Mockito.when(field.getName()).thenReturn("id");
+        Mockito.when(field.hasDocValues()).thenReturn(docValues);
+        return field;
+    }
+
+    private static Tuple tuple(String id) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("id", id);
+        return new Tuple(fields);
+    }
+
+    private static Tuple eof() {
+        Tuple eof = new Tuple(new HashMap<>());
+        eof.EOF = true;
+        return eof;
+    }
+
+    /**
+     * Returns a stream of the ids, counting the tuples read.
+     */
+    private static TupleStream stream(AtomicInteger reads, String... ids) throws IOException {
+        TupleStream stream = Mockito.mock(TupleStream.class);
+        Mockito.when(stream.read()).thenAnswer(invocation -> {
+            int read = reads.getAndIncrement();
+            return read < ids.length ? tuple(ids[read]) : eof();
+        });
+        return stream;
+    }
+
+    /**
+     * Returns a stream of ids that never ends.
+     */
+    private static TupleStream endlessStream() throws IOException {
+        AtomicInteger reads = new AtomicInteger();
+        TupleStream stream = Mockito.mock(TupleStream.class);
+        Mockito.when(stream.read()).thenAnswer(invocation -> tuple("x" + reads.incrementAndGet()));
+        return stream;
+    }
+
+    private static QueryResponse page(String nextCursorMark, String... ids) {
+        SolrDocumentList docs = new SolrDocumentList();
+        for (String id : ids) {
+            SolrDocument doc = new SolrDocument();
+            doc.addField("id", id);
+            docs.add(doc);
+        }
+        QueryResponse rsp = Mockito.mock(QueryResponse.class);
+        Mockito.when(rsp.getResults()).thenReturn(docs);
+        Mockito.when(rsp.getNextCursorMark()).thenReturn(nextCursorMark);
+        return rsp;
+    }
+
+    /** Should export the ids of each shard leader and delete them by batches of the batch size. */
+    @Test
+    public void testExpandWithExport() throws Exception {
+        streams.put(coreUrl("shard1"), stream(new AtomicInteger(), "a1", "a2", "a3", "a4", "a5"));
+        streams.put(coreUrl("shard2"), stream(new AtomicInteger(), "b1", "b2", "b3"));
+        expander = newExpander(2);
+
+        DeleteByQueryExpander.Expansion expansion = expander.expand(COLLECTION, "type:old", uniqueField(true));
+        expansion.done.get(30, TimeUnit.SECONDS);
+
+        assertEquals(5, deletes.size());
+        assertTrue(deletes.containsAll(Arrays.asList(Arrays.asList("a1", "a2"), Arrays.asList("a3", "a4"),
+            Collections.singletonList("a5"), Arrays.asList("b1", "b2"), Collections.singletonList("b3"))));
+        // the ids of a shard are deleted in the order they are read
+        assertTrue(deletes.indexOf(Arrays.asList("a1", "a2")) < deletes.indexOf(Arrays.asList("a3", "a4")));
+        assertTrue(deletes.indexOf(Arrays.asList("a3", "a4")) < deletes.indexOf(Collections.singletonList("a5")));
+
+        SolrParams params = exportParams.get(coreUrl("shard1"));
+        assertEquals("/export", params.get(CommonParams.QT));
+        assertEquals("type:old", params.get(CommonParams.Q));
+        assertEquals("id", params.get(CommonParams.FL));
+        assertEquals("id asc", params.get(CommonParams.SORT));
+        assertFalse(params.getBool(CommonParams.DISTRIB, true));
+        Mockito.verify(streams.get(coreUrl("shard1"))).close();
+        Mockito.verify(streams.get(coreUrl("shard2"))).close();
+        Mockito.verify(client, Mockito.never()).query(ArgumentMatchers.anyString(), ArgumentMatchers.any());
+
+        assertEquals(8, expansion.deletedIds.get());
+        assertEquals(2, expansion.shardsDone.get());
+        assertEquals(8, metrics.counter("UPDATE.crossdc.dbq.deletedIds").getCount());
+        assertEquals(1, metrics.timer("UPDATE.crossdc.dbq.expand").getCount());
+        assertTrue(expander.getProgress().isEmpty());
+    }
+
+    /** Should page through the ids of each shard with a cursorMark when the unique key has no docValues. */
+    @Test
+    public void testExpandWithCursorMark() throws Exception {
+        Map<String, QueryResponse> pages = new HashMap<>();
+        pages.put("shard1/" + CursorMarkParams.CURSOR_MARK_START, page("m1", "a1", "a2"));
+        pages.put("shard1/m1", page("m2", "a3"));
+        pages.put("shard1/m2", page("m2"));
+        pages.put("shard2/" + CursorMarkParams.CURSOR_MARK_START, page(CursorMarkParams.CURSOR_MARK_START, "b1"));
+        List<String> queried = Collections.synchronizedList(new ArrayList<>());
+        Mockito.when(client.query(ArgumentMatchers.eq(COLLECTION), ArgumentMatchers.any())).thenAnswer(invocation -> {
+            SolrParams params = invocation.getArgument(1);
+            assertEquals("type:old", params.get(CommonParams.Q));
+            assertEquals("2", params.get(CommonParams.ROWS));
+            assertEquals("id asc", params.get(CommonParams.SORT));
+            String page = params.get(ShardParams.SHARDS) + "/" + params.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            queried.add(page);
+            return pages.get(page);
+        });
+        expander = newExpander(2);
+
+        DeleteByQueryExpander.Expansion expansion = expander.expand(COLLECTION, "type:old", uniqueField(false));
+        expansion.done.get(30, TimeUnit.SECONDS);
+
+        assertEquals(4, queried.size());
+        assertTrue(queried.containsAll(pages.keySet()));
+        assertEquals(3, deletes.size());
+        assertTrue(deletes.containsAll(Arrays.asList(Arrays.asList("a1", "a2"), Collections.singletonList("a3"),
+            Collections.singletonList("b1"))));
+        assertTrue(exportParams.isEmpty());
+        assertEquals(4, expansion.deletedIds.get());
+    }
+
+    /** Should read the next batch of a shard while the previous one is deleted, but not the one after. */
+    @Test
+    public void testPipelineAtMostTwoBatches() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        String[] ids = new String[10];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "a" + i;
+        }
+        streams.put(coreUrl("shard1"), stream(reads, ids));
+        streams.put(coreUrl("shard2"), stream(new AtomicInteger()));
+        CountDownLatch deleting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(client.deleteById(ArgumentMatchers.eq(COLLECTION), ArgumentMatchers.<List<String>>any()))
+            .thenAnswer(invocation -> {
+                deleting.countDown();
+                release.await();
+                deletes.add(new ArrayList<>(invocation.<List<String>>getArgument(1)));
+                return null;
+            });
+        expander = newExpander(2);
+
+        DeleteByQueryExpander.Expansion expansion = expander.expand(COLLECTION, "*:*", uniqueField(true));
+        assertTrue(deleting.await(30, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (reads.get() < 4 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // the batch being deleted and the next one are held, the reader waits for the delete
+        Thread.sleep(200);
+        assertEquals(4, reads.get());
+        assertEquals(1, expander.getProgress().size());
+        assertFalse(expansion.done.isDone());
+
+        release.countDown();
+        expansion.done.get(30, TimeUnit.SECONDS);
+        assertEquals(5, deletes.size());
+        assertEquals(10, expansion.deletedIds.get());
+    }
+
+    /** Should stop reading the other shards and fail the expansion once a shard failed. */
+    @Test
+    public void testStopOtherShardsOnFailure() throws Exception {
+        TupleStream failing = Mockito.mock(TupleStream.class);
+        Mockito.when(failing.read()).thenThrow(new IOException("export failed"));
+        TupleStream endless = endlessStream();
+        streams.put(coreUrl("shard1"), failing);
+        streams.put(coreUrl("shard2"), endless);
+        expander = newExpander(2);
+
+        DeleteByQueryExpander.Expansion expansion = expander.expand(COLLECTION, "*:*", uniqueField(true));
+        ExecutionException e = expectThrows(ExecutionException.class, () -> expansion.done.get(30, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertTrue(expansion.failed);
+        Mockito.verify(failing).close();
+        Mockito.verify(endless).close();
+        assertEquals(0, expansion.shardsDone.get());
+        assertTrue(expander.getProgress().isEmpty());
+    }
+
+    /** Should fail the expansions in progress and return without waiting for their deletes when closed. */
+    @Test
+    public void testCloseStopsExpansions() throws Exception {
+        streams.put(coreUrl("shard1"), endlessStream());
+        streams.put(coreUrl("shard2"), endlessStream());
+        CountDownLatch deleting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(client.deleteById(ArgumentMatchers.eq(COLLECTION), ArgumentMatchers.<List<String>>any()))
+            .thenAnswer(invocation -> {
+                deleting.countDown();
+                release.await();
+                return null;
+            });
+        expander = newExpander(2);
+
+        DeleteByQueryExpander.Expansion expansion = expander.expand(COLLECTION, "*:*", uniqueField(true));
+        assertTrue(deleting.await(30, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        try {
+            expander.close();
+        } finally {
+            release.countDown();
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+        expectThrows(ExecutionException.class, () -> expansion.done.get(30, TimeUnit.SECONDS));
+        assertTrue(expansion.failed);
+        Mockito.verify(client).close();
+    }
+}
@@ -1,5 +1,6 @@
 package org.apache.solr.update.processor;
 
+import com.codahale.metrics.MetricRegistry;
 import org.apache.solr.SolrTestCaseJ4;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
@@ -11,6 +12,8 @@ import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.cloud.*;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.crossdc.common.MirroredSolrRequest;
+import org.apache.solr.crossdc.common.MirroredSolrRequestSerializer;
 import org.apache.solr.core.CoreContainer;
 import org.apache.solr.core.CoreDescriptor;
 import org.apache.solr.core.SolrCore;
@@ -20,9 +23,12 @@ import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.DeleteUpdateCommand;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 
 public class MirroringUpdateProcessorTest extends SolrTestCaseJ4 {
 
@@ -38,6 +44,7 @@ public class MirroringUpdateProcessorTest extends SolrTestCaseJ4 {
     private HttpSolrClient.Builder builder = Mockito.mock(HttpSolrClient.Builder.class);
     private HttpSolrClient client = Mockito.mock(HttpSolrClient.class);
     private CloudDescriptor cloudDesc;
+    private ZkStateReader zkStateReader;
 
     @Before
     public void setUp() throws Exception {
@@ -84,7 +91,7 @@ public class MirroringUpdateProcessorTest extends SolrTestCaseJ4 {
         DocCollection docCollection = Mockito.mock(DocCollection.class);
         DocRouter docRouter = Mockito.mock(DocRouter.class);
         Slice slice = Mockito.mock(Slice.class);
-        ZkStateReader zkStateReader = Mockito.mock(ZkStateReader.class);
+        zkStateReader = Mockito.mock(ZkStateReader.class);
         Replica replica = Mockito.mock(Replica.class);
 
         Mockito.when(replica.getName()).thenReturn("replica1");
@@ -132,6 +139,7 @@ public class MirroringUpdateProcessorTest extends SolrTestCaseJ4 {
         try {
             Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
             processor.processAdd(addUpdateCommand);
+            processor.finish();
             Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(requestMock);
         } catch (IOException e) {
             fail("IOException should not be thrown");
@@ -150,6 +158,7 @@ public class MirroringUpdateProcessorTest extends SolrTestCaseJ4 {
             Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
             deleteUpdateCommand.setId("test");
             processor.processDelete(deleteUpdateCommand);
+            processor.finish();
             Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(requestMock);
         } catch (Exception e) {
             fail("IOException should not be thrown");
@@ -167,7 +176,9 @@ public class MirroringUpdateProcessorTest extends SolrTestCaseJ4 {
         cmd.overwrite = true;
         processor.processAdd(cmd);
         Mockito.verify(next).processAdd(cmd);
+        processor.finish();
         Mockito.verify(requestMirroringHandler).mirror(requestMock);
+        Mockito.verify(requestMock).add(Mockito.any(SolrInputDocument.class), Mockito.eq(1000), Mockito.eq(true));
     }
 
     @Test
@@ -196,9 +207,337 @@ public class MirroringUpdateProcessorTest extends SolrTestCaseJ4 {
     public void testProcessAddLeader() throws Exception {
         Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
         processor.processAdd(addUpdateCommand);
+        processor.finish();
         Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(Mockito.any());
     }
 
+    /**
+     * Should mirror the docs of a client request in one request submitted on finish
+     */
+    @Test
+    public void testBatchAddsUntilFinish() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        for (int i = 0; i < 3; i++) {
+            processor.processAdd(addCommand(Integer.toString(i), 10));
+        }
+        Mockito.verify(requestMirroringHandler, Mockito.never()).mirror(Mockito.any());
+
+        processor.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(requestMock);
+        Mockito.verify(requestMock, Mockito.times(3)).add(Mockito.any(SolrInputDocument.class), Mockito.any(), Mockito.anyBoolean());
+    }
+
+    /**
+     * Should submit the pending request when the next doc would take its record over the max request size
+     */
+    @Test
+    public void testFlushWhenRequestSizeExceeded() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        MirroringUpdateProcessor processor = processor(DistributedUpdateProcessor.DistribPhase.NONE, null, 4096L);
+        // ~1500 bytes each once serialized, two fit in a record of at most 4096 bytes with its overhead
+        for (int i = 0; i < 3; i++) {
+            processor.processAdd(addCommand(Integer.toString(i), 1480));
+        }
+        Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(requestMock);
+
+        processor.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(2)).mirror(requestMock);
+    }
+
+    /**
+     * Should count the record overhead in the size of a doc, not mirroring a doc that fits the limit alone
+     */
+    @Test
+    public void testRecordOverheadCountsTowardsLimit() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        long overhead = MirroredSolrRequestSerializer.recordOverheadBytes(new ModifiableSolrParams());
+        MirroringUpdateProcessor processor = processor(DistributedUpdateProcessor.DistribPhase.NONE, null, overhead + 500L);
+        processor.processAdd(addCommand("1", 600));
+        processor.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.never()).mirror(Mockito.any());
+    }
+
+    /**
+     * Should not mirror a doc in the same request as a preceding delete, Solr applying the docs of a request first
+     */
+    @Test
+    public void testAddAfterDeleteStartsNewRequest() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        processor.processAdd(addCommand("1", 10));
+        deleteUpdateCommand.setId("1");
+        processor.processDelete(deleteUpdateCommand);
+        Mockito.verify(requestMirroringHandler, Mockito.never()).mirror(Mockito.any());
+
+        processor.processAdd(addCommand("1", 10));
+        Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(requestMock);
+
+        processor.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(2)).mirror(requestMock);
+    }
+
+    /**
+     * Should mirror the doc as it was received, not as modified by the downstream processors
+     */
+    @Test
+    public void testCaptureDocBeforeDownstreamChanges() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        AddUpdateCommand cmd = addCommand("1", 10);
+        cmd.solrDoc.addField("_version_", 5L);
+        Mockito.doAnswer(invocation -> {
+            cmd.solrDoc.setField("_version_", 6L);
+            cmd.solrDoc.addField("added_s", "downstream");
+            return null;
+        }).when(next).processAdd(cmd);
+
+        processor.processAdd(cmd);
+
+        ArgumentCaptor<SolrInputDocument> mirrored = ArgumentCaptor.forClass(SolrInputDocument.class);
+        Mockito.verify(requestMock).add(mirrored.capture(), Mockito.any(), Mockito.anyBoolean());
+        UpdateRequest request = new UpdateRequest();
+        request.add(mirrored.getValue());
+        MirroredSolrRequestSerializer serializer = new MirroredSolrRequestSerializer();
+        byte[] data = serializer.serialize("test-topic", new MirroredSolrRequest(request));
+        SolrInputDocument doc = ((UpdateRequest) serializer.deserialize("test-topic", data).getSolrRequest()).getDocuments().get(0);
+        assertEquals("1", doc.getFieldValue("id"));
+        assertEquals("xxxxxxxxxx", doc.getFieldValue("text"));
+        assertNull(doc.getField("_version_"));
+        assertNull(doc.getField("added_s"));
+    }
+
+    /**
+     * Should not mirror the docs forwarded by a leader to its replicas, without looking the leader up
+     */
+    @Test
+    public void testFromLeaderIsNotMirrored() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        MirroringUpdateProcessor fromLeader = processor(DistributedUpdateProcessor.DistribPhase.FROMLEADER, null);
+        fromLeader.processAdd(addCommand("1", 10));
+        fromLeader.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.never()).mirror(Mockito.any());
+        Mockito.verify(zkStateReader, Mockito.never()).getLeaderRetry(Mockito.any(), Mockito.any());
+    }
+
+    /**
+     * Should decide the leadership from the cache, routing the id only on a leader of a multi-shard collection
+     */
+    @Test
+    public void testCachedLeadership() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        DocRouter router = Mockito.mock(DocRouter.class);
+
+        MirroringUpdateProcessor notLeader = processor(DistributedUpdateProcessor.DistribPhase.NONE, leaderCache("replica2", 2, router));
+        notLeader.processAdd(addCommand("1", 10));
+        notLeader.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.never()).mirror(Mockito.any());
+        Mockito.verify(router, Mockito.never()).getTargetSlice(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+
+        MirroringUpdateProcessor toLeader = processor(DistributedUpdateProcessor.DistribPhase.TOLEADER, leaderCache("replica1", 2, router));
+        toLeader.processAdd(addCommand("1", 10));
+        toLeader.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(requestMock);
+        Mockito.verify(router, Mockito.never()).getTargetSlice(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+
+        MirroringUpdateProcessor leader = processor(DistributedUpdateProcessor.DistribPhase.NONE, leaderCache("replica1", 2, router));
+        leader.processAdd(addCommand("1", 10));
+        leader.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(2)).mirror(requestMock);
+        Mockito.verify(router, Mockito.times(1)).getTargetSlice(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+
+        Mockito.verify(zkStateReader, Mockito.never()).getLeaderRetry(Mockito.any(), Mockito.any());
+    }
+
+    /**
+     * Should look the leader up while the cached shard has no live leader
+     */
+    @Test
+    public void testLeaderLookupWithoutLiveLeader() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        LeaderCache cache = leaderCache("replica1", 1, Mockito.mock(DocRouter.class));
+        Slice slice = Mockito.mock(Slice.class);
+        DocCollection collection = Mockito.mock(DocCollection.class);
+        Mockito.when(collection.getSlice("shard1")).thenReturn(slice);
+        cache.onStateChanged(Collections.singleton("node1"), collection);
+
+        MirroringUpdateProcessor leader = processor(DistributedUpdateProcessor.DistribPhase.NONE, cache);
+        leader.processAdd(addCommand("1", 10));
+        leader.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirror(requestMock);
+        Mockito.verify(zkStateReader, Mockito.times(1)).getLeaderRetry(Mockito.any(), Mockito.any());
+    }
+
+    /**
+     * Should submit the records of a request without waiting, and wait for all of them on finish
+     */
+    @Test
+    public void testRequestAckModeWaitsOnFinish() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        CompletableFuture<Object> first = new CompletableFuture<>();
+        CompletableFuture<Object> second = new CompletableFuture<>();
+        Mockito.doReturn(first, second).when(requestMirroringHandler).mirrorAsync(Mockito.any());
+        MetricRegistry metrics = new MetricRegistry();
+        MirroringUpdateProcessor processor = processor(MirrorAckMode.REQUEST, metrics);
+
+        processor.processAdd(addCommand("1", 10));
+        deleteUpdateCommand.setId("1");
+        processor.processDelete(deleteUpdateCommand);
+        processor.processAdd(addCommand("1", 10));
+        Mockito.verify(requestMirroringHandler, Mockito.times(1)).mirrorAsync(requestMock);
+
+        first.complete(null);
+        second.complete(null);
+        processor.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(2)).mirrorAsync(requestMock);
+        Mockito.verify(requestMirroringHandler, Mockito.never()).mirror(Mockito.any());
+        assertEquals(2, metrics.timer(MirroringUpdateProcessor.metricName(MirrorAckMode.REQUEST, "submit")).getCount());
+        assertEquals(1, metrics.timer(MirroringUpdateProcessor.metricName(MirrorAckMode.REQUEST, "wait")).getCount());
+    }
+
+    /**
+     * Should fail the request on finish when one of its records is not delivered
+     */
+    @Test
+    public void testRequestAckModeFailsOnDeliveryFailure() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        CompletableFuture<Object> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("broker unavailable"));
+        Mockito.doReturn(failed).when(requestMirroringHandler).mirrorAsync(Mockito.any());
+        MirroringUpdateProcessor processor = processor(MirrorAckMode.REQUEST, null);
+
+        processor.processAdd(addCommand("1", 10));
+        SolrException e = expectThrows(SolrException.class, processor::finish);
+        assertEquals(SolrException.ErrorCode.SERVER_ERROR.code, e.code());
+        Mockito.verify(next, Mockito.times(1)).finish();
+    }
+
+    /**
+     * Should send each doc in its own record and wait for it before processing the next one
+     */
+    @Test
+    public void testDocumentAckModeWaitsForEachDoc() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        Mockito.doReturn(CompletableFuture.completedFuture(null)).when(requestMirroringHandler).mirrorAsync(Mockito.any());
+        MetricRegistry metrics = new MetricRegistry();
+        MirroringUpdateProcessor processor = processor(MirrorAckMode.DOCUMENT, metrics);
+
+        for (int i = 0; i < 3; i++) {
+            processor.processAdd(addCommand(Integer.toString(i), 10));
+            Mockito.verify(requestMirroringHandler, Mockito.times(i + 1)).mirrorAsync(requestMock);
+        }
+        processor.finish();
+        Mockito.verify(requestMirroringHandler, Mockito.times(3)).mirrorAsync(requestMock);
+        assertEquals(3, metrics.timer(MirroringUpdateProcessor.metricName(MirrorAckMode.DOCUMENT, "wait")).getCount());
+    }
+
+    /**
+     * Should fail the add when its record is not acknowledged in time
+     */
+    @Test
+    public void testDocumentAckModeTimeout() throws Exception {
+        Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica1");
+        Mockito.doReturn(new CompletableFuture<>()).when(requestMirroringHandler).mirrorAsync(Mockito.any());
+        MirroringUpdateProcessor processor = processor(MirrorAckMode.DOCUMENT, null);
+
+        SolrException e = expectThrows(SolrException.class, () -> processor.processAdd(addCommand("1", 10)));
+        assertTrue(e.getMessage(), e.getMessage().contains("within 10 ms"));
+    }
+
+    /**
+     * Should expand a delete-by-query into deletes by id and wait for them, without mirroring the query
+     */
+    @Test
+    public void testDeleteByQueryExpansion() throws Exception {
+        DeleteByQueryExpander expander = Mockito.mock(DeleteByQueryExpander.class);
+        DeleteByQueryExpander.Expansion expansion = new DeleteByQueryExpander.Expansion(1, "collection1", "type:old", 2);
+        Mockito.when(expander.expand(Mockito.any(), Mockito.eq("type:old"), Mockito.any())).thenReturn(expansion);
+        Mockito.when(cloudDesc.getCollectionName()).thenReturn("collection1");
+        MirroringUpdateProcessor processor = processor(expander);
+        deleteUpdateCommand.query = "type:old";
+
+        expansion.done.completeExceptionally(new IOException("shard2 unavailable"));
+        SolrException e = expectThrows(SolrException.class, () -> processor.processDelete(deleteUpdateCommand));
+        assertEquals(SolrException.ErrorCode.SERVER_ERROR.code, e.code());
+        Mockito.verify(expander, Mockito.times(1)).expand(Mockito.eq("collection1"), Mockito.eq("type:old"), Mockito.any());
+        Mockito.verify(next, Mockito.never()).processDelete(Mockito.any());
+        Mockito.verify(requestMirroringHandler, Mockito.never()).mirror(Mockito.any());
+    }
+
+    /**
+     * Should refuse a delete-by-query it cannot expand rather than silently not mirroring it
+     */
+    @Test
+    public void testDeleteByQueryWithoutExpander() {
+        deleteUpdateCommand.query = "type:old";
+        expectThrows(SolrException.class, () -> processor.processDelete(deleteUpdateCommand));
+    }
+
+    private MirroringUpdateProcessor processor(DeleteByQueryExpander expander) {
+        return new MirroringUpdateProcessor(next, true, true, 1000L, new ModifiableSolrParams(),
+                DistributedUpdateProcessor.DistribPhase.NONE, requestMirroringHandler, null, MirrorAckMode.NONE, 10L, null,
+                expander) {
+            UpdateRequest createMirrorRequest() {
+                return requestMock;
+            }
+        };
+    }
+
+    private MirroringUpdateProcessor processor(MirrorAckMode ackMode, MetricRegistry metrics) {
+        return new MirroringUpdateProcessor(next, true, true, 1000L, new ModifiableSolrParams(),
+                DistributedUpdateProcessor.DistribPhase.NONE, requestMirroringHandler, null, ackMode, 10L, metrics) {
+            UpdateRequest createMirrorRequest() {
+                return requestMock;
+            }
+        };
+    }
+
+    private MirroringUpdateProcessor processor(DistributedUpdateProcessor.DistribPhase distribPhase, LeaderCache leaderCache) {
+        return processor(distribPhase, leaderCache, 1000L);
+    }
+
+    private MirroringUpdateProcessor processor(DistributedUpdateProcessor.DistribPhase distribPhase, LeaderCache leaderCache,
+                                               long maxRequestSizeBytes) {
+        return new MirroringUpdateProcessor(next, true, true, maxRequestSizeBytes, new ModifiableSolrParams(), distribPhase,
+                requestMirroringHandler, leaderCache) {
+            UpdateRequest createMirrorRequest() {
+                return requestMock;
+            }
+        };
+    }
+
+    /**
+     * Returns a cache of the leadership of replica1 in shard1, of a collection with the given leader and number of
+     * active shards.
+     */
+    private LeaderCache leaderCache(String leaderName, int activeSlices, DocRouter router) {
+        CloudDescriptor desc = Mockito.mock(CloudDescriptor.class);
+        Mockito.when(desc.getCollectionName()).thenReturn("collection1");
+        Mockito.when(desc.getShardId()).thenReturn("shard1");
+        Mockito.when(desc.getCoreNodeName()).thenReturn("replica1");
+        Replica leader = Mockito.mock(Replica.class);
+        Mockito.when(leader.getName()).thenReturn(leaderName);
+        Mockito.when(leader.getNodeName()).thenReturn("node1");
+        Slice slice = Mockito.mock(Slice.class);
+        Mockito.when(slice.getName()).thenReturn("shard1");
+        Mockito.when(slice.getLeader()).thenReturn(leader);
+        Mockito.when(slice.getState()).thenReturn(Slice.State.ACTIVE);
+        DocCollection collection = Mockito.mock(DocCollection.class);
+        Mockito.when(collection.getSlice("shard1")).thenReturn(slice);
+        Mockito.when(collection.getActiveSlices()).thenReturn(Collections.nCopies(activeSlices, slice));
+        Mockito.when(collection.getRouter()).thenReturn(router);
+        Mockito.when(router.getTargetSlice(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(slice);
+
+        LeaderCache cache = new LeaderCache(desc);
+        cache.onStateChanged(Collections.singleton("node1"), collection);
+        return cache;
+    }
+
+    private AddUpdateCommand addCommand(String id, int textLength) {
+        AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.addField("id", id);
+        cmd.solrDoc.addField("text", "x".repeat(textLength));
+        return cmd;
+    }
+
     @Test
     public void testProcessAddNotLeader() throws Exception {
         Mockito.when(cloudDesc.getCoreNodeName()).thenReturn("replica2");